@@ -2,10 +2,15 @@ package cz.dearfuture.main;
 
 import cz.dearfuture.models.Capsule;
 import cz.dearfuture.repositories.CapsuleRepository;
+import cz.dearfuture.repositories.CapsuleStores;
+import cz.dearfuture.repositories.Durability;
 import cz.dearfuture.services.CapsuleService;
+import cz.dearfuture.utils.ComputePool;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
@@ -17,11 +22,37 @@ import java.util.Scanner;
  */
 public class DearFutureApp {
     private static final Scanner scanner = new Scanner(System.in);
-    private static final String FILE_PATH = "data/capsules.json"; // Define the storage file
-    private static final CapsuleRepository repository = new CapsuleRepository(FILE_PATH);
-    private static final CapsuleService service = new CapsuleService(repository);
+    private static final String DATA_PATH = "data/capsules"; // Storage file path without extension
+    // Storage engine (binary, mapped, json or memory), selectable with -Ddearfuture.storage=...
+    private static final String STORAGE_ENGINE = System.getProperty("dearfuture.storage", CapsuleStores.BINARY);
+    // Maximum delay (ms) before changes are written; by default (0) each change is written before it is reported
+    // as done, a positive delay batches writes but a crash can lose them (-Ddearfuture.writeDelayMs=...)
+    private static final long WRITE_DELAY_MS = Long.getLong("dearfuture.writeDelayMs", 0);
+    // When changes are forced to disk (commit, group or none), selectable with -Ddearfuture.durability=...
+    private static final Durability DURABILITY = switch (System.getProperty("dearfuture.durability", "commit")) {
+        case "none" -> Durability.NO_SYNC;
+        case "group" -> Durability.groupSync(Duration.ofMillis(100));
+        default -> Durability.EVERY_COMMIT;
+    };
+    // Number of compute workers for sorting, import, export and statistics (-Ddearfuture.parallelism=...)
+    private static final int PARALLELISM = Integer.getInteger("dearfuture.parallelism", ComputePool.DEFAULT_PARALLELISM);
+    // Hours between removals of capsules trashed over 15 days ago, 0 (default) never removes them
+    // automatically (-Ddearfuture.trashCleanupHours=...)
+    private static final long TRASH_CLEANUP_HOURS = Long.getLong("dearfuture.trashCleanupHours", 0);
+    // Whether file reads and writes run on virtual threads (-Ddearfuture.virtualThreads=true)
+    private static final boolean VIRTUAL_THREADS = Boolean.getBoolean("dearfuture.virtualThreads");
+    private static final CapsuleRepository repository = new CapsuleRepository(
+            CapsuleStores.open(STORAGE_ENGINE, DATA_PATH), Duration.ofMillis(WRITE_DELAY_MS), DURABILITY);
+    private static final CapsuleService service = new CapsuleService(repository,
+            new ComputePool(PARALLELISM, VIRTUAL_THREADS));
 
     public static void main(String[] args) {
+        // Pending writes are also drained when the app is interrupted (e.g. Ctrl+C)
+        Runtime.getRuntime().addShutdownHook(new Thread(repository::close, "capsule-shutdown"));
+        if (TRASH_CLEANUP_HOURS > 0) {
+            // Capsules expire from the trash after 15 days, checked at startup and periodically
+            repository.scheduleTrashCleanup(Duration.ofHours(TRASH_CLEANUP_HOURS));
+        }
         while (true) {
             showMenu();
             int choice = getUserChoice(0, 10);
@@ -116,7 +147,7 @@ public class DearFutureApp {
         if (service.addCapsule(capsule)) {
             System.out.println("Capsule created successfully!" );
         } else {
-            System.out.println( "Failed to create capsule. Ensure fields are not empty.");
+            System.out.println( "Failed to create capsule. Ensure fields are not empty and the capsule is not a duplicate.");
         }
     }
 
@@ -336,14 +367,61 @@ public class DearFutureApp {
             default -> "Title A-Z";
         };
 
-        List<Capsule> sortedCapsules = service.sortCapsules(sortOption);
-        paginateCapsules(sortedCapsules);
+        paginateSortedCapsules(sortOption);
+    }
+
+    /**
+     * Pages through all capsules in the order of a sorting option. Each page
+     * is fetched on demand when the user moves to it, starting after the last
+     * capsule of the previous page, so the full sorted list is never built.
+     *
+     * @param sortOption The sorting option to use.
+     */
+    private static void paginateSortedCapsules(String sortOption) {
+        int pageSize = 3;
+        List<Capsule> capsules = service.page(sortOption, null, pageSize);
+        if (capsules.isEmpty()) {
+            System.out.println(Capsule.YELLOW + "No capsules found." + Capsule.RESET);
+            return;
+        }
+        int totalPages = (int) Math.ceil((double) service.countCapsules() / pageSize);
+        // The capsule each visited page starts after, null for the first page
+        List<Capsule> cursors = new ArrayList<>();
+        cursors.add(null);
+
+        while (true) {
+            int page = cursors.size() - 1;
+
+            System.out.println("\n" + Capsule.CYAN + "=== Page " + (page + 1) + " of " + totalPages + " ===" + Capsule.RESET);
+            for (Capsule capsule : capsules) {
+                System.out.println(capsule);
+            }
+
+            System.out.println("\nN - Next Page | P - Previous Page | Q - Quit" +
+                             " (Page " + (page + 1) + "/" + totalPages + ")");
+            System.out.print("Choose an option: ");
+            String choice = scanner.nextLine().trim().toLowerCase();
+
+            if (choice.equals("n") && !capsules.isEmpty()) {
+                Capsule last = capsules.get(capsules.size() - 1);
+                List<Capsule> next = service.page(sortOption, last, pageSize);
+                if (!next.isEmpty()) {
+                    cursors.add(last);
+                    capsules = next;
+                }
+            } else if (choice.equals("p") && page > 0) {
+                cursors.remove(page);
+                capsules = service.page(sortOption, cursors.get(page - 1), pageSize);
+            } else if (choice.equals("q")) break;
+        }
     }
 
     /**
-     * Exits the application.
+     * Exits the application after stopping worker threads and writing all pending changes.
      */
     private static void exitApp() {
+        service.shutdown();
+        repository.close();
         System.out.println(Capsule.GREEN + "Goodbye!" + Capsule.RESET);
         System.exit(0);
     }
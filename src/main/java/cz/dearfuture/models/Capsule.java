@@ -2,6 +2,7 @@ package cz.dearfuture.models;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.function.Supplier;
 
 /**
  * Represents a time capsule that stores a message and unlocks at a future date.
@@ -26,6 +27,8 @@ public class Capsule {
     private LocalDateTime dateCreated;
     private CapsuleStatus status;
     private LocalDateTime deletedAt;
+    // Loads the message on demand while it is not held in memory
+    private transient Supplier<String> messageSource;
 
     /**
      * Constructs a new Capsule.
@@ -48,6 +51,50 @@ public class Capsule {
         this.deletedAt = null;
     }
 
+    /**
+     * Constructs a capsule with all of its state, e.g. when reading it back from storage.
+     *
+     * @param id          Unique identifier of the capsule.
+     * @param title       Title of the capsule.
+     * @param message     Message stored inside the capsule.
+     * @param color       Color of the capsule.
+     * @param unlockDate  The date and time when the capsule can be opened.
+     * @param category    Category of the capsule.
+     * @param dateCreated The date and time when the capsule was created.
+     * @param status      Status of the capsule.
+     * @param deletedAt   The time the capsule was moved to Trash, or {@code null}.
+     */
+    public Capsule(int id, String title, String message, String color, LocalDateTime unlockDate, String category,
+                   LocalDateTime dateCreated, CapsuleStatus status, LocalDateTime deletedAt) {
+        this.id = id;
+        this.title = title;
+        this.message = message;
+        this.color = color;
+        this.unlockDate = unlockDate;
+        this.category = category;
+        this.dateCreated = dateCreated;
+        this.status = status;
+        this.deletedAt = deletedAt;
+    }
+
+    /**
+     * Constructs a copy of another capsule, including its status and timestamps.
+     *
+     * @param other The capsule to copy.
+     */
+    public Capsule(Capsule other) {
+        this.id = other.id;
+        this.title = other.title;
+        this.message = other.message;
+        this.color = other.color;
+        this.unlockDate = other.unlockDate;
+        this.category = other.category;
+        this.dateCreated = other.dateCreated;
+        this.status = other.status;
+        this.deletedAt = other.deletedAt;
+        this.messageSource = other.messageSource;
+    }
+
     /** @return The unique ID of the capsule. */
     public int getId() { return id; }
 
@@ -58,7 +105,7 @@ public class Capsule {
      * @return The message stored inside the capsule if it is opened.
      * Otherwise, returns a locked message.
      */
-    public String getMessage() { return isOpened() ? message : "This capsule is locked!"; }
+    public String getMessage() { return isOpened() ? getRawMessage() : "This capsule is locked!"; }
 
     /** @return The color of the capsule. */
     public String getColor() { return color; }
@@ -88,7 +135,24 @@ public class Capsule {
     public void setTitle(String title) { this.title = title; }
 
     /** @param message Sets the message of the capsule. */
-    public void setMessage(String message) { this.message = message; }
+    public void setMessage(String message) {
+        this.message = message;
+        this.messageSource = null;
+    }
+
+    /**
+     * Makes the message load on demand instead of being held by the capsule,
+     * e.g. for storage engines that keep message bodies on disk.
+     *
+     * @param messageSource Supplies the message whenever it is read.
+     */
+    public void setMessageSource(Supplier<String> messageSource) {
+        this.message = null;
+        this.messageSource = messageSource;
+    }
+
+    /** @return The source the message is loaded from, or {@code null} if the message is held in memory. */
+    public Supplier<String> getMessageSource() { return messageSource; }
 
     /** @param color Sets the color of the capsule. */
     public void setColor(String color) { this.color = color; }
@@ -135,7 +199,7 @@ public class Capsule {
 
     /** @return The raw message regardless of capsule status (for export/backup purposes) */
     public String getRawMessage() { 
-        return message; 
+        return messageSource != null ? messageSource.get() : message;
     }
 
     /** @return The raw title (for export/backup purposes) */
@@ -185,7 +249,7 @@ public class Capsule {
             """,
                 statusColor, id, RESET, // ID Color
                 capsuleColor, title, RESET, // Title in Capsule's Color
-                isOpened() ? GREEN : YELLOW, isOpened() ? message : "This capsule is locked!", RESET, // Message Color
+                isOpened() ? GREEN : YELLOW, isOpened() ? getRawMessage() : "This capsule is locked!", RESET, // Message Color
                 color, // Hex Color Code
                 unlockDate.format(formatter),
                 category,
@@ -0,0 +1,988 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.Capsule;
+import cz.dearfuture.models.CapsuleStatus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Stores capsules in a binary record table with fixed-width records, a
+ * string heap for the short strings and a separate message file.
+ * <p>
+ * The table ({@code capsules.bin}) starts with a {@value #HEADER_SIZE}-byte
+ * header (magic, version, record size, file generation, removed record count)
+ * followed by one {@value #RECORD_SIZE}-byte record per capsule:
+ * <pre>
+ *  0  int   id
+ *  4  byte  status (-1 = null, {@value #REMOVED} = permanently removed)
+ *  5  long  deletedAt epoch second (UTC)     13  int  deletedAt nano
+ * 17  long  unlockDate epoch second          25  int  unlockDate nano
+ * 29  long  dateCreated epoch second         37  int  dateCreated nano
+ * 41  long  title offset     49  int  title length (-1 = null)
+ * 53  long  message offset   61  int  message length
+ * 65  long  color offset     73  int  color length
+ * 77  long  category offset  85  int  category length
+ * 89  int   message hash (see {@link CapsuleContentIndex#messageHash(String)})
+ * 93  reserved
+ * </pre>
+ * Title, color and category are UTF-8 byte ranges in the heap file
+ * ({@code capsules.bin.heap.<generation>}), message bodies in the message
+ * file ({@code capsules.bin.messages.<generation>}). Message bodies are never
+ * loaded with the capsules: each capsule gets a message source that reads its
+ * body on demand through a bounded LRU {@link MessageCache}.
+ * <p>
+ * Because records never move, trashing, restoring or opening a capsule is
+ * persisted as one positional write of the 13 bytes holding the status and
+ * deletion time, and a permanent removal as a one-byte tombstone. New capsules
+ * are appended. Checkpoints compact tombstones and unreferenced bytes into
+ * new files of the next generation; the table rename is the commit point, so
+ * a crash never pairs a table with the wrong heap or message file.
+ * <p>
+ * In mapped mode {@link #open()} returns a {@link MappedCapsuleList} over a
+ * memory mapping of the files instead of reading every record, so opening
+ * takes the same time regardless of the number of capsules.
+ */
+public class BinaryCapsuleStore implements CapsuleStore {
+    /** "DFCB" - Dear Future Capsule Binary. */
+    static final int MAGIC = 0x44464342;
+    static final int VERSION = 4;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 96;
+    /** Status byte of a permanently removed record. */
+    static final byte REMOVED = 0x7F;
+
+    // Field offsets within a record
+    static final int ID = 0;
+    static final int STATUS = 4;
+    static final int DELETED_AT = 5;
+    static final int UNLOCK_DATE = 17;
+    static final int DATE_CREATED = 29;
+    static final int TITLE = 41;
+    static final int MESSAGE = 53;
+    static final int COLOR = 65;
+    static final int CATEGORY = 77;
+    static final int MESSAGE_HASH = 89;
+
+    // Field offsets within the header
+    static final int GENERATION = 12;
+    static final int REMOVED_COUNT = 20;
+
+    /** Default size of the message body cache, in bytes. */
+    public static final long DEFAULT_MESSAGE_CACHE_BYTES = 4L * 1024 * 1024;
+
+    private static final int STATUS_SPAN = 13;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /** Reclaimable space is only reported once it reaches this fraction of the files. */
+    private static final int GARBAGE_RATIO = 4;
+
+    private final Path tablePath;
+    private final boolean mapped;
+    private final MessageCache messageCache;
+    private FileChannel table;
+    private FileChannel heap;
+    private FileChannel messages;
+    private long generation;
+    private long heapSize;
+    private long messagesSize;
+    private int recordCount;
+    private int removedCount;
+    /** Changes whenever message offsets become invalid (clear or compaction). */
+    private volatile int epoch;
+
+    /** Record index of every live capsule ID; built on first use. */
+    private CapsuleIdIndex recordById;
+    private long garbageBytes;
+    private MappedCapsuleList mappedList;
+
+    /** Changes made while a checkpoint is being written, replayed onto its result. */
+    private List<StoreMutation> changesSinceMark;
+
+    /**
+     * Constructs a binary store that reads all capsule metadata at startup.
+     *
+     * @param filePath The record table file; the heap and message files are kept next to it.
+     */
+    public BinaryCapsuleStore(String filePath) {
+        this(filePath, false);
+    }
+
+    /**
+     * Constructs a binary store with the default message cache.
+     *
+     * @param filePath The record table file; the heap and message files are kept next to it.
+     * @param mapped   Whether {@link #open()} maps the files and materializes capsules lazily.
+     */
+    public BinaryCapsuleStore(String filePath, boolean mapped) {
+        this(filePath, mapped, DEFAULT_MESSAGE_CACHE_BYTES);
+    }
+
+    /**
+     * Constructs a binary store.
+     *
+     * @param filePath          The record table file; the heap and message files are kept next to it.
+     * @param mapped            Whether {@link #open()} maps the files and materializes capsules lazily.
+     * @param messageCacheBytes The maximum size of message bodies cached in memory.
+     */
+    public BinaryCapsuleStore(String filePath, boolean mapped, long messageCacheBytes) {
+        this.tablePath = Paths.get(filePath);
+        this.mapped = mapped;
+        this.messageCache = new MessageCache(messageCacheBytes);
+    }
+
+    private Path heapPath(long generation) {
+        return tablePath.resolveSibling(tablePath.getFileName() + ".heap." + generation);
+    }
+
+    private Path messagesPath(long generation) {
+        return tablePath.resolveSibling(tablePath.getFileName() + ".messages." + generation);
+    }
+
+    /**
+     * Opens the stored capsules. In mapped mode they are materialized on first access.
+     */
+    @Override
+    public synchronized List<Capsule> open() throws IOException {
+        if (!mapped) {
+            return CapsuleStore.super.open();
+        }
+        openFiles();
+        mappedList = new MappedCapsuleList(this, tablePath, heapPath(generation), recordCount, removedCount > 0);
+        return mappedList;
+    }
+
+    /**
+     * Reads the metadata of all live records in table order. Message bodies
+     * are left on disk until they are read.
+     */
+    @Override
+    public synchronized void load(List<Capsule> target) throws IOException {
+        openFiles();
+        HeapReader strings = new HeapReader(heap);
+        forEachRecord((record, start, i) -> {
+            if (record.get(start + STATUS) != REMOVED) {
+                target.add(decode(record, start, strings));
+            }
+        });
+    }
+
+    @Override
+    public synchronized void capsuleAdded(Capsule capsule) throws IOException {
+        Capsule copy = new Capsule(capsule);
+        recordChange(() -> capsuleAdded(copy));
+        int existing = index().get(capsule.getId());
+        if (existing != CapsuleIdIndex.MISSING) {
+            writeRecord(capsule, existing, readRecord(existing));
+        } else {
+            appendRecord(capsule);
+        }
+    }
+
+    /**
+     * Persists a changed capsule in place. If only the status and deletion time
+     * changed this is a single 13-byte write; otherwise the changed strings are
+     * appended and the fixed-width record is rewritten.
+     */
+    @Override
+    public synchronized void capsuleUpdated(Capsule capsule) throws IOException {
+        Capsule copy = new Capsule(capsule);
+        recordChange(() -> capsuleUpdated(copy));
+        int index = index().get(capsule.getId());
+        if (index == CapsuleIdIndex.MISSING) {
+            appendRecord(capsule);
+            return;
+        }
+        ByteBuffer stored = readRecord(index);
+        if (sameContent(stored, capsule)) {
+            ByteBuffer status = ByteBuffer.allocate(STATUS_SPAN);
+            putStatus(status, capsule);
+            status.flip();
+            writeFully(table, status, recordOffset(index) + STATUS);
+        } else {
+            writeRecord(capsule, index, stored);
+        }
+    }
+
+    /**
+     * Marks the record as removed with a single-byte positional write.
+     */
+    @Override
+    public synchronized void capsuleRemoved(int id) throws IOException {
+        recordChange(() -> capsuleRemoved(id));
+        int index = index().remove(id);
+        if (index != CapsuleIdIndex.MISSING) {
+            garbageBytes += RECORD_SIZE + storedLength(readRecord(index), 0);
+            // The count is raised first, so a crash can only overstate it
+            writeFully(table, ByteBuffer.allocate(Integer.BYTES).putInt(0, ++removedCount), REMOVED_COUNT);
+            writeFully(table, ByteBuffer.wrap(new byte[]{REMOVED}), recordOffset(index) + STATUS);
+        }
+    }
+
+    @Override
+    public synchronized void cleared() throws IOException {
+        if (changesSinceMark != null) {
+            changesSinceMark.clear();
+            changesSinceMark.add(this::cleared);
+        }
+        releaseMapping();
+        openFiles();
+        table.truncate(HEADER_SIZE);
+        heap.truncate(0);
+        messages.truncate(0);
+        writeFully(table, ByteBuffer.allocate(Integer.BYTES), REMOVED_COUNT);
+        recordCount = 0;
+        removedCount = 0;
+        heapSize = 0;
+        messagesSize = 0;
+        garbageBytes = 0;
+        recordById = new CapsuleIdIndex(0);
+        invalidateMessages();
+    }
+
+    /**
+     * Forces the message and string files before the table, so a durable
+     * record never references strings that were lost.
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+        if (table != null) {
+            messages.force(false);
+            heap.force(false);
+            table.force(false);
+        }
+    }
+
+    /**
+     * @return The reclaimable bytes (tombstones and unreferenced strings) once they
+     * make up a significant part of the files, otherwise 0.
+     */
+    @Override
+    public synchronized long pendingBytes() {
+        long total = (long) recordCount * RECORD_SIZE + heapSize + messagesSize;
+        return garbageBytes * GARBAGE_RATIO >= total ? garbageBytes : 0;
+    }
+
+    /**
+     * Starts collecting changes, so they can be replayed onto the compacted files.
+     */
+    @Override
+    public synchronized long checkpointMark() {
+        changesSinceMark = new ArrayList<>();
+        return 0;
+    }
+
+    /**
+     * Writes the snapshot as new files of the next generation, replays the
+     * changes made since the mark onto them and atomically replaces the current table.
+     * <p>
+     * A snapshot of the {@link MappedCapsuleList} returned by {@link #open()}
+     * copies the records it did not materialize byte for byte, and the list is
+     * remapped onto the new files instead of being loaded into memory.
+     */
+    @Override
+    public void checkpoint(List<Capsule> snapshot, long mark) throws IOException {
+        long next;
+        int snapshotEpoch;
+        OldFiles old;
+        synchronized (this) {
+            openFiles();
+            next = generation + 1;
+            snapshotEpoch = epoch;
+            old = new OldFiles(new HeapReader(table), new HeapReader(heap), new HeapReader(messages));
+        }
+        Path tempTable = tablePath.resolveSibling(tablePath.getFileName() + ".tmp");
+        writeFiles(snapshot, tempTable, next, snapshotEpoch, old);
+
+        CapsuleIdIndex index = new CapsuleIdIndex(snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            index.put(snapshot instanceof MappedCapsuleList.Snapshot mapped ? mapped.id(i) : snapshot.get(i).getId(), i);
+        }
+
+        synchronized (this) {
+            List<StoreMutation> changes = changesSinceMark;
+            changesSinceMark = null;
+            MappedCapsuleList list = mappedList;
+            if (list != null && snapshot instanceof MappedCapsuleList.Snapshot taken && taken.isOf(list)) {
+                synchronized (list) {
+                    int previousCount = recordCount;
+                    long previous = generation;
+                    list.unmap();
+                    try {
+                        replaceFiles(tempTable);
+                    } catch (IOException e) {
+                        if (Files.exists(heapPath(previous))) {
+                            list.remap(tablePath, heapPath(previous), previousCount, null);
+                        }
+                        throw e;
+                    }
+                    list.remap(tablePath, heapPath(generation), recordCount, taken);
+                }
+            } else {
+                releaseMapping();
+                replaceFiles(tempTable);
+            }
+            invalidateMessages();
+            recordById = index;
+            garbageBytes = 0;
+            if (changes != null) {
+                for (StoreMutation change : changes) {
+                    change.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the current files with the table written to {@code tempTable}
+     * and opens the new generation.
+     */
+    private void replaceFiles(Path tempTable) throws IOException {
+        long previous = generation;
+        closeFiles();
+        Files.move(tempTable, tablePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(heapPath(previous));
+        Files.deleteIfExists(messagesPath(previous));
+        openFiles();
+    }
+
+    /**
+     * Writes a complete table, heap and message file for the given capsules.
+     * Message bodies that are still on disk are copied without going through the
+     * cache, and records a mapped snapshot did not materialize are copied from
+     * the old files without being decoded.
+     */
+    private void writeFiles(List<Capsule> capsules, Path tableFile, long generation, int snapshotEpoch,
+                            OldFiles old) throws IOException {
+        try (FileChannel tableOut = create(tableFile);
+             FileChannel heapOut = create(heapPath(generation));
+             FileChannel messagesOut = create(messagesPath(generation))) {
+            ByteBuffer records = ByteBuffer.allocate(READ_BUFFER_SIZE - READ_BUFFER_SIZE % RECORD_SIZE);
+            ByteBuffer strings = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            ByteBuffer bodies = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            records.put(header(generation));
+            long heapOffset = 0;
+            long messageOffset = 0;
+            MappedCapsuleList.Snapshot mapped = capsules instanceof MappedCapsuleList.Snapshot taken ? taken : null;
+            for (int i = 0; i < capsules.size(); i++) {
+                int record = mapped == null ? -1 : mapped.record(i);
+                Capsule capsule = null;
+                byte[] stored = null;
+                byte[][] values;
+                byte[] message;
+                int messageHash;
+                if (record >= 0) {
+                    stored = old.records().readBytes(recordOffset(record), RECORD_SIZE);
+                    ByteBuffer in = ByteBuffer.wrap(stored);
+                    values = new byte[][]{storedBytes(in, TITLE, old.strings()), storedBytes(in, COLOR, old.strings()),
+                            storedBytes(in, CATEGORY, old.strings())};
+                    message = storedBytes(in, MESSAGE, old.messages());
+                    messageHash = in.getInt(MESSAGE_HASH);
+                } else {
+                    capsule = capsules.get(i);
+                    values = heapStrings(capsule);
+                    message = snapshotMessage(capsule, snapshotEpoch, old.messages());
+                    messageHash = messageHash(capsule);
+                }
+                int length = length(values);
+                strings = reserve(heapOut, strings, length);
+                for (byte[] value : values) {
+                    if (value != null) {
+                        strings.put(value);
+                    }
+                }
+                if (message != null) {
+                    bodies = reserve(messagesOut, bodies, message.length);
+                    bodies.put(message);
+                }
+                records = reserve(tableOut, records, RECORD_SIZE);
+                int messageLength = message == null ? -1 : message.length;
+                if (stored != null) {
+                    encodeStored(records, stored, values, heapOffset, messageOffset, messageLength, messageHash);
+                } else {
+                    encode(records, capsule, values, heapOffset, messageOffset, messageLength, messageHash);
+                }
+                heapOffset += length;
+                messageOffset += message == null ? 0 : message.length;
+            }
+            drain(heapOut, strings);
+            drain(messagesOut, bodies);
+            drain(tableOut, records);
+            heapOut.force(true);
+            messagesOut.force(true);
+            tableOut.force(true);
+        }
+    }
+
+    /**
+     * Reads the bytes a stored record references at the given field.
+     *
+     * @return The bytes, or {@code null} if the field is not set.
+     */
+    private static byte[] storedBytes(ByteBuffer record, int field, HeapReader file) throws IOException {
+        int length = record.getInt(field + 8);
+        return length < 0 ? null : file.readBytes(record.getLong(field), length);
+    }
+
+    private static int messageHash(Capsule capsule) {
+        if (capsule.getMessageSource() instanceof CapsuleContentIndex.HashedMessage hashed) {
+            return hashed.messageHash();
+        }
+        return CapsuleContentIndex.messageHash(capsule.getRawMessage());
+    }
+
+    private byte[] snapshotMessage(Capsule capsule, int snapshotEpoch, HeapReader oldMessages) throws IOException {
+        if (capsule.getMessageSource() instanceof StoredMessage source && source.store() == this) {
+            MessageRef ref = source.ref;
+            if (ref.epoch() == snapshotEpoch) {
+                return oldMessages.readBytes(ref.offset(), ref.length());
+            }
+        }
+        return utf8(capsule.getRawMessage());
+    }
+
+    private static FileChannel create(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static ByteBuffer header(long generation) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putLong(generation).putInt(0);
+        return header.position(HEADER_SIZE).flip();
+    }
+
+    /**
+     * @return A buffer with room for {@code length} more bytes, draining (and if needed growing) the given one.
+     */
+    private static ByteBuffer reserve(FileChannel channel, ByteBuffer buffer, int length) throws IOException {
+        if (buffer.remaining() >= length) {
+            return buffer;
+        }
+        drain(channel, buffer);
+        return buffer.capacity() >= length ? buffer : ByteBuffer.allocate(length);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Appends the capsule's strings and a new record.
+     */
+    private void appendRecord(Capsule capsule) throws IOException {
+        writeRecord(capsule, recordCount, null);
+        index().put(capsule.getId(), recordCount);
+        recordCount++;
+    }
+
+    /**
+     * Appends the capsule's strings and writes its full record at the given index.
+     * A message body that is still stored in the current files is referenced, not copied.
+     *
+     * @param stored The record being replaced, or {@code null} for a new record.
+     */
+    private void writeRecord(Capsule capsule, int index, ByteBuffer stored) throws IOException {
+        byte[][] values = heapStrings(capsule);
+        ByteBuffer strings = ByteBuffer.allocate(length(values));
+        for (byte[] value : values) {
+            if (value != null) {
+                strings.put(value);
+            }
+        }
+        strings.flip();
+        long heapOffset = heapSize;
+        heapSize += strings.remaining();
+        writeFully(heap, strings, heapOffset);
+
+        MessageRef reused = currentMessage(capsule);
+        long messageOffset;
+        int messageLength;
+        int messageHash;
+        if (reused != null) {
+            messageOffset = reused.offset();
+            messageLength = reused.length();
+            messageHash = reused.hash();
+        } else {
+            byte[] message = utf8(capsule.getRawMessage());
+            messageOffset = message == null ? 0 : messagesSize;
+            messageLength = message == null ? -1 : message.length;
+            messageHash = messageHash(capsule);
+            if (message != null) {
+                messagesSize += message.length;
+                writeFully(messages, ByteBuffer.wrap(message), messageOffset);
+            }
+        }
+        if (stored != null) {
+            garbageBytes += storedLength(stored, 0);
+            if (reused != null) {
+                garbageBytes -= Math.max(0, stored.getInt(MESSAGE + 8));
+            }
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        encode(record, capsule, values, heapOffset, messageOffset, messageLength, messageHash);
+        record.flip();
+        writeFully(table, record, recordOffset(index));
+    }
+
+    /**
+     * @return The stored record at the given index.
+     */
+    private ByteBuffer readRecord(int index) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        readFully(table, record, recordOffset(index));
+        return record.flip();
+    }
+
+    /**
+     * @return {@code true} if the stored record differs from the capsule at most in
+     * its status and deletion time.
+     */
+    private boolean sameContent(ByteBuffer record, Capsule capsule) throws IOException {
+        if (record.getLong(UNLOCK_DATE) != CapsuleBinaryCodec.epochSecond(capsule.getUnlockDate())
+                || record.getInt(UNLOCK_DATE + 8) != nano(capsule.getUnlockDate())
+                || record.getLong(DATE_CREATED) != CapsuleBinaryCodec.epochSecond(capsule.getDateCreated())
+                || record.getInt(DATE_CREATED + 8) != nano(capsule.getDateCreated())) {
+            return false;
+        }
+        byte[][] values = heapStrings(capsule);
+        int[] fields = {TITLE, COLOR, CATEGORY};
+        for (int i = 0; i < fields.length; i++) {
+            if (!sameBytes(heap, record, fields[i], values[i])) {
+                return false;
+            }
+        }
+        MessageRef message = currentMessage(capsule);
+        if (message != null) {
+            return message.offset() == record.getLong(MESSAGE) && message.length() == record.getInt(MESSAGE + 8);
+        }
+        return sameBytes(messages, record, MESSAGE, utf8(capsule.getRawMessage()));
+    }
+
+    private static boolean sameBytes(FileChannel channel, ByteBuffer record, int field, byte[] value)
+            throws IOException {
+        if (record.getInt(field + 8) != (value == null ? -1 : value.length)) {
+            return false;
+        }
+        if (value == null || value.length == 0) {
+            return true;
+        }
+        ByteBuffer stored = ByteBuffer.allocate(value.length);
+        readFully(channel, stored, record.getLong(field));
+        return Arrays.equals(stored.array(), value);
+    }
+
+    /**
+     * @return The ID to record index map, scanning the table on first use.
+     */
+    private CapsuleIdIndex index() throws IOException {
+        if (recordById == null) {
+            openFiles();
+            CapsuleIdIndex index = new CapsuleIdIndex(recordCount);
+            forEachRecord((record, start, i) -> {
+                if (record.get(start + STATUS) == REMOVED) {
+                    garbageBytes += RECORD_SIZE + storedLength(record, start);
+                } else {
+                    index.put(record.getInt(start + ID), i);
+                }
+            });
+            recordById = index;
+        }
+        return recordById;
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor {
+        void visit(ByteBuffer buffer, int start, int index) throws IOException;
+    }
+
+    /**
+     * Reads the table sequentially and passes every record to the visitor.
+     */
+    private void forEachRecord(RecordVisitor visitor) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE - READ_BUFFER_SIZE % RECORD_SIZE);
+        long position = HEADER_SIZE;
+        int index = 0;
+        while (index < recordCount) {
+            buffer.clear();
+            int records = Math.min(readFully(table, buffer, position) / RECORD_SIZE, recordCount - index);
+            if (records == 0) {
+                break;
+            }
+            for (int i = 0; i < records; i++, index++) {
+                visitor.visit(buffer, i * RECORD_SIZE, index);
+            }
+            position += (long) records * RECORD_SIZE;
+        }
+    }
+
+    /**
+     * Encodes a record. {@code values} are the title, color and category bytes,
+     * stored consecutively in the heap from {@code heapOffset}.
+     */
+    private static void encode(ByteBuffer out, Capsule capsule, byte[][] values, long heapOffset,
+                               long messageOffset, int messageLength, int messageHash) {
+        int start = out.position();
+        out.putInt(capsule.getId());
+        putStatus(out, capsule);
+        putDate(out, capsule.getUnlockDate());
+        putDate(out, capsule.getDateCreated());
+        putReferences(out, values, heapOffset, messageOffset, messageLength, messageHash);
+        out.position(start + RECORD_SIZE);
+    }
+
+    /**
+     * Encodes a record copied from an older table, pointing its strings and
+     * message at their new locations.
+     */
+    private static void encodeStored(ByteBuffer out, byte[] stored, byte[][] values, long heapOffset,
+                                     long messageOffset, int messageLength, int messageHash) {
+        int start = out.position();
+        out.put(stored, 0, TITLE);
+        putReferences(out, values, heapOffset, messageOffset, messageLength, messageHash);
+        out.position(start + RECORD_SIZE);
+    }
+
+    private static void putReferences(ByteBuffer out, byte[][] values, long heapOffset, long messageOffset,
+                                      int messageLength, int messageHash) {
+        long colorOffset = heapOffset + (values[0] == null ? 0 : values[0].length);
+        long categoryOffset = colorOffset + (values[1] == null ? 0 : values[1].length);
+        putString(out, heapOffset, values[0]);
+        out.putLong(messageOffset).putInt(messageLength);
+        putString(out, colorOffset, values[1]);
+        putString(out, categoryOffset, values[2]);
+        out.putInt(messageHash);
+    }
+
+    private static void putString(ByteBuffer out, long offset, byte[] value) {
+        out.putLong(value == null ? 0 : offset);
+        out.putInt(value == null ? -1 : value.length);
+    }
+
+    private static void putStatus(ByteBuffer out, Capsule capsule) {
+        out.put(CapsuleBinaryCodec.statusCode(capsule.getStatus()));
+        putDate(out, capsule.getDeletedAt());
+    }
+
+    private static void putDate(ByteBuffer out, LocalDateTime date) {
+        out.putLong(CapsuleBinaryCodec.epochSecond(date));
+        out.putInt(nano(date));
+    }
+
+    private static int nano(LocalDateTime date) {
+        return date == null ? 0 : date.getNano();
+    }
+
+    private Capsule decode(ByteBuffer in, int start, HeapReader strings) throws IOException {
+        int id = in.getInt(start + ID);
+        CapsuleStatus status = CapsuleBinaryCodec.status(in.get(start + STATUS));
+        LocalDateTime deletedAt = date(in, start + DELETED_AT);
+        LocalDateTime unlockDate = date(in, start + UNLOCK_DATE);
+        LocalDateTime dateCreated = date(in, start + DATE_CREATED);
+        String title = string(in, start + TITLE, strings);
+        String color = string(in, start + COLOR, strings);
+        String category = string(in, start + CATEGORY, strings);
+        Capsule capsule = new Capsule(id, title, null, color, unlockDate, category, dateCreated, status, deletedAt);
+        Supplier<String> message = messageSource(id, in.getLong(start + MESSAGE), in.getInt(start + MESSAGE + 8),
+                in.getInt(start + MESSAGE_HASH));
+        if (message != null) {
+            capsule.setMessageSource(message);
+        }
+        return capsule;
+    }
+
+    private static LocalDateTime date(ByteBuffer in, int field) {
+        return CapsuleBinaryCodec.date(in.getLong(field), in.getInt(field + 8));
+    }
+
+    private static String string(ByteBuffer in, int field, HeapReader strings) throws IOException {
+        return strings.read(in.getLong(field), in.getInt(field + 8));
+    }
+
+    /**
+     * Creates the on-demand source of a stored message body. Safe to call
+     * without the store lock.
+     *
+     * @return The source, or {@code null} for a {@code null} message.
+     */
+    Supplier<String> messageSource(int id, long offset, int length, int hash) {
+        return length < 0 ? null : new StoredMessage(id, new MessageRef(offset, length, hash, epoch));
+    }
+
+    /**
+     * Reads a message body through the cache. If the offsets have changed since
+     * the source was created, the body is located again through the capsule ID.
+     * An empty body shares its offset with the next body, so it is neither
+     * cached nor read.
+     */
+    private synchronized String readMessage(StoredMessage source) {
+        try {
+            MessageRef ref = source.ref;
+            if (ref.epoch() != epoch) {
+                int index = index().get(source.id);
+                if (index == CapsuleIdIndex.MISSING) {
+                    return null;
+                }
+                ByteBuffer record = readRecord(index);
+                ref = new MessageRef(record.getLong(MESSAGE), record.getInt(MESSAGE + 8), record.getInt(MESSAGE_HASH),
+                        epoch);
+                source.ref = ref;
+            }
+            if (ref.length() <= 0) {
+                return ref.length() == 0 ? "" : null;
+            }
+            String message = messageCache.get(ref.offset());
+            if (message == null) {
+                openFiles();
+                ByteBuffer bytes = ByteBuffer.allocate(ref.length());
+                readFully(messages, bytes, ref.offset());
+                message = new String(bytes.array(), StandardCharsets.UTF_8);
+                messageCache.put(ref.offset(), message);
+            }
+            return message;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The stored message the capsule still refers to in the current files,
+     * or {@code null} if its message is held in memory.
+     */
+    private MessageRef currentMessage(Capsule capsule) {
+        if (capsule.getMessageSource() instanceof StoredMessage source && source.store() == this) {
+            MessageRef ref = source.ref;
+            return ref.epoch() == epoch ? ref : null;
+        }
+        return null;
+    }
+
+    private void invalidateMessages() {
+        epoch++;
+        messageCache.clear();
+    }
+
+    /** @return The message cache, for tests. */
+    MessageCache messageCache() {
+        return messageCache;
+    }
+
+    /** @return The UTF-8 bytes of title, color and category ({@code null} entries for null strings). */
+    private static byte[][] heapStrings(Capsule capsule) {
+        return new byte[][]{utf8(capsule.getRawTitle()), utf8(capsule.getColor()), utf8(capsule.getCategory())};
+    }
+
+    private static int length(byte[][] values) {
+        int length = 0;
+        for (byte[] value : values) {
+            length += value == null ? 0 : value.length;
+        }
+        return length;
+    }
+
+    /** @return The number of heap and message bytes referenced by the record at {@code start}. */
+    private static int storedLength(ByteBuffer record, int start) {
+        int length = 0;
+        for (int field : new int[]{TITLE, MESSAGE, COLOR, CATEGORY}) {
+            length += Math.max(0, record.getInt(start + field + 8));
+        }
+        return length;
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void recordChange(StoreMutation change) {
+        if (changesSinceMark != null) {
+            changesSinceMark.add(change);
+        }
+    }
+
+    private static long recordOffset(int index) {
+        return HEADER_SIZE + (long) index * RECORD_SIZE;
+    }
+
+    /**
+     * Opens the table, heap and message file, creating an empty table if none exists.
+     */
+    private void openFiles() throws IOException {
+        if (table != null) {
+            return;
+        }
+        boolean exists = Files.exists(tablePath) && Files.size(tablePath) >= HEADER_SIZE;
+        table = FileChannel.open(tablePath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (exists) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(table, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a capsule binary file: " + tablePath);
+            }
+            int version = header.getInt();
+            if (version != VERSION || header.getInt() != RECORD_SIZE) {
+                throw new IOException("Unsupported capsule binary format version " + version);
+            }
+            generation = header.getLong(GENERATION);
+            removedCount = header.getInt(REMOVED_COUNT);
+        } else {
+            generation = 0;
+            removedCount = 0;
+            writeFully(table, header(generation), 0);
+        }
+        recordCount = (int) ((table.size() - HEADER_SIZE) / RECORD_SIZE);
+        heap = FileChannel.open(heapPath(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        heapSize = heap.size();
+        messages = FileChannel.open(messagesPath(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        messagesSize = messages.size();
+    }
+
+    private void closeFiles() throws IOException {
+        if (table != null) {
+            table.close();
+            heap.close();
+            messages.close();
+            table = null;
+            heap = null;
+            messages = null;
+        }
+    }
+
+    /**
+     * Materializes whatever the mapped list has not read yet and unmaps the files,
+     * which must happen before they are replaced or truncated.
+     */
+    private void releaseMapping() {
+        if (mappedList != null) {
+            mappedList.detach();
+            mappedList = null;
+        }
+    }
+
+    static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mappedList != null) {
+            mappedList.close();
+            mappedList = null;
+        }
+        closeFiles();
+    }
+
+    /** Readers over the files of the generation a checkpoint replaces. */
+    private record OldFiles(HeapReader records, HeapReader strings, HeapReader messages) {
+    }
+
+    /** Location of a message body in the files of one epoch. */
+    private record MessageRef(long offset, int length, int hash, int epoch) {
+    }
+
+    /**
+     * Message source of a capsule whose body stays in the message file.
+     */
+    private final class StoredMessage implements Supplier<String>, CapsuleContentIndex.HashedMessage {
+        private final int id;
+        private volatile MessageRef ref;
+
+        StoredMessage(int id, MessageRef ref) {
+            this.id = id;
+            this.ref = ref;
+        }
+
+        BinaryCapsuleStore store() {
+            return BinaryCapsuleStore.this;
+        }
+
+        @Override
+        public String get() {
+            return readMessage(this);
+        }
+
+        @Override
+        public int messageHash() {
+            return ref.hash();
+        }
+    }
+
+    /**
+     * Reads byte ranges through a sliding window, which is cheap for the
+     * mostly sequential access pattern of a full load or compaction.
+     */
+    private static class HeapReader {
+        private final FileChannel channel;
+        private final ByteBuffer window = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private long windowStart;
+        private int windowLength;
+
+        HeapReader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        String read(long offset, int length) throws IOException {
+            if (length < 0) {
+                return null;
+            }
+            if (length > window.capacity()) {
+                return new String(readBytes(offset, length), StandardCharsets.UTF_8);
+            }
+            fill(offset, length);
+            return new String(window.array(), (int) (offset - windowStart), length, StandardCharsets.UTF_8);
+        }
+
+        byte[] readBytes(long offset, int length) throws IOException {
+            if (length > window.capacity()) {
+                ByteBuffer large = ByteBuffer.allocate(length);
+                readFully(channel, large, offset);
+                return large.array();
+            }
+            fill(offset, length);
+            int start = (int) (offset - windowStart);
+            return Arrays.copyOfRange(window.array(), start, start + length);
+        }
+
+        private void fill(long offset, int length) throws IOException {
+            if (offset < windowStart || offset + length > windowStart + windowLength) {
+                window.clear();
+                windowLength = readFully(channel, window, offset);
+                windowStart = offset;
+            }
+        }
+    }
+}
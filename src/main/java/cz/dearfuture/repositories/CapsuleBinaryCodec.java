@@ -0,0 +1,42 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.CapsuleStatus;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Binary encoding of the fixed-width capsule fields.
+ * <p>
+ * Statuses are stored as their ordinal ({@code -1} for {@code null}) and dates
+ * as UTC epoch seconds plus nano-of-second ({@link #NO_DATE} for {@code null}).
+ */
+final class CapsuleBinaryCodec {
+    /** Epoch-second value marking a {@code null} date. */
+    static final long NO_DATE = Long.MIN_VALUE;
+
+    private static final CapsuleStatus[] STATUSES = CapsuleStatus.values();
+
+    private CapsuleBinaryCodec() {
+    }
+
+    /** @return The stored code of a status, {@code -1} for {@code null}. */
+    static byte statusCode(CapsuleStatus status) {
+        return (byte) (status == null ? -1 : status.ordinal());
+    }
+
+    /** @return The status for a stored code, {@code null} for {@code -1}. */
+    static CapsuleStatus status(byte code) {
+        return code < 0 ? null : STATUSES[code];
+    }
+
+    /** @return The UTC epoch second of a date, {@link #NO_DATE} for {@code null}. */
+    static long epochSecond(LocalDateTime date) {
+        return date == null ? NO_DATE : date.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    /** @return The date for a stored epoch second and nano-of-second, {@code null} for {@link #NO_DATE}. */
+    static LocalDateTime date(long epochSecond, int nano) {
+        return epochSecond == NO_DATE ? null : LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,118 @@
+package cz.dearfuture.repositories;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Runs repository checkpoints, and other periodic maintenance such as trash
+ * cleanup, on a background thread.
+ * <p>
+ * A checkpoint is triggered when the change log grows past a size threshold
+ * or when the checkpoint interval elapses with unsaved changes. At most one
+ * checkpoint is pending at a time, so bursts of mutations never queue up
+ * several multi-megabyte writes.
+ */
+class CapsuleCheckpointer {
+    private final Runnable checkpoint;
+    private final long maxLogBytes;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+
+    /**
+     * Creates and starts a checkpointer.
+     *
+     * @param checkpoint  The checkpoint to run.
+     * @param maxLogBytes Log size (in bytes) that triggers a checkpoint.
+     * @param interval    Maximum time between checkpoints while the log is not empty.
+     * @param logSize     Supplies the current log size.
+     */
+    CapsuleCheckpointer(Runnable checkpoint, long maxLogBytes, Duration interval, LongSupplier logSize) {
+        this.checkpoint = checkpoint;
+        this.maxLogBytes = maxLogBytes;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "capsule-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long millis = interval.toMillis();
+        executor.scheduleWithFixedDelay(reporting(() -> {
+            if (logSize.getAsLong() > 0) {
+                request();
+            }
+        }), millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Requests a checkpoint if the log has reached the size threshold.
+     *
+     * @param logBytes The current size of the change log.
+     */
+    void onLogGrowth(long logBytes) {
+        if (logBytes >= maxLogBytes) {
+            request();
+        }
+    }
+
+    /**
+     * Schedules a checkpoint unless one is already pending.
+     */
+    void request() {
+        if (pending.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> {
+                    pending.set(false);
+                    checkpoint.run();
+                });
+            } catch (RejectedExecutionException e) {
+                pending.set(false); // Already shut down, the final checkpoint is done by the repository
+            }
+        }
+    }
+
+    /**
+     * Runs a maintenance task now and then periodically until shutdown. A run
+     * that fails is reported and does not cancel the later runs.
+     *
+     * @param task   The task.
+     * @param period The time between runs.
+     */
+    void schedulePeriodic(Runnable task, Duration period) {
+        long millis = period.toMillis();
+        try {
+            executor.scheduleWithFixedDelay(reporting(task), 0, millis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Already shut down, the repository is closed
+        }
+    }
+
+    /**
+     * Wraps a periodic task so an exception is reported instead of silently
+     * cancelling all its future runs.
+     */
+    private static Runnable reporting(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        };
+    }
+
+    /**
+     * Stops the background thread, waiting for a pending checkpoint to finish.
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.Capsule;
+
+import java.util.Arrays;
+
+/**
+ * Index of capsule IDs by a hash of their normalized title and raw message,
+ * for finding duplicate capsules in constant time.
+ * <p>
+ * Only hashes are kept, never the texts (message bodies may live on disk), so
+ * callers must verify candidates. The message part of the hash is computed
+ * separately, so a storage engine can store it with the body when the body
+ * is written and hand it out through a {@link HashedMessage} source; the
+ * index can then be built without reading any body. The hash ignores surrounding whitespace and
+ * case in the same way as {@link String#trim()} and
+ * {@link String#equalsIgnoreCase(String)}: texts that are equal under those
+ * rules always have the same hash.
+ * <p>
+ * Entries are kept in an open-addressing table of (hash, ID) pairs in which
+ * a hash may occur several times; a {@link CapsuleIdIndex} remembers the hash
+ * each ID was indexed under, so it can be removed after its texts changed.
+ */
+final class CapsuleContentIndex {
+    private static final int EMPTY = -1;
+
+    private int[] hashes;
+    private int[] ids;
+    private int size;
+    private final CapsuleIdIndex hashById;
+
+    /**
+     * @param expectedSize The number of capsules to make room for without resizing.
+     */
+    CapsuleContentIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(8, expectedSize) * 2 - 1) << 1;
+        hashes = new int[capacity];
+        ids = new int[capacity];
+        Arrays.fill(hashes, EMPTY);
+        hashById = new CapsuleIdIndex(expectedSize);
+    }
+
+    /**
+     * Message source that knows the hash of its message without reading it.
+     */
+    interface HashedMessage {
+        /** @return The hash of the message from {@link #messageHash(String)}. */
+        int messageHash();
+    }
+
+    /**
+     * Computes the content hash of a title and message.
+     *
+     * @param title   The title, may be {@code null}.
+     * @param message The raw message, may be {@code null}.
+     * @return A non-negative hash.
+     */
+    static int hash(String title, String message) {
+        return hash(title, messageHash(message));
+    }
+
+    /**
+     * Computes the content hash of a title and a message hash.
+     *
+     * @param title       The title, may be {@code null}.
+     * @param messageHash The hash of the raw message from {@link #messageHash(String)}.
+     * @return A non-negative hash.
+     */
+    static int hash(String title, int messageHash) {
+        return (fold(title, 17) * 0x9E3779B9 + messageHash) & 0x7FFFFFFF;
+    }
+
+    /**
+     * Computes the content hash of a capsule, reading its message only if the
+     * message source does not know its hash.
+     *
+     * @param capsule The capsule.
+     * @return A non-negative hash.
+     */
+    static int hash(Capsule capsule) {
+        int messageHash = capsule.getMessageSource() instanceof HashedMessage hashed
+                ? hashed.messageHash() : messageHash(capsule.getRawMessage());
+        return hash(capsule.getTitle(), messageHash);
+    }
+
+    /**
+     * Computes the message part of a content hash.
+     *
+     * @param message The raw message, may be {@code null}.
+     * @return The hash.
+     */
+    static int messageHash(String message) {
+        return fold(message, 17);
+    }
+
+    private static int fold(String text, int hash) {
+        if (text == null) {
+            return hash * 31 - 1;
+        }
+        String trimmed = text.trim();
+        for (int i = 0; i < trimmed.length(); ) {
+            int codePoint = trimmed.codePointAt(i);
+            hash = hash * 31 + Character.toLowerCase(Character.toUpperCase(codePoint));
+            i += Character.charCount(codePoint);
+        }
+        return hash;
+    }
+
+    /**
+     * Indexes a capsule under a content hash, replacing its previous entry.
+     *
+     * @param id   The capsule ID.
+     * @param hash The content hash from {@link #hash(String, String)}.
+     */
+    void put(int id, int hash) {
+        if (hashById.get(id) == hash) {
+            return;
+        }
+        remove(id);
+        int mask = hashes.length - 1;
+        int slot = slot(hash, mask);
+        while (hashes[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        hashes[slot] = hash;
+        ids[slot] = id;
+        hashById.put(id, hash);
+        if (++size * 2 > hashes.length) {
+            resize(hashes.length * 2);
+        }
+    }
+
+    /**
+     * Removes a capsule from the index.
+     *
+     * @param id The capsule ID.
+     */
+    void remove(int id) {
+        int hash = hashById.remove(id);
+        if (hash == CapsuleIdIndex.MISSING) {
+            return;
+        }
+        int mask = hashes.length - 1;
+        int slot = slot(hash, mask);
+        while (hashes[slot] != hash || ids[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        size--;
+        int gap = slot;
+        for (int next = (gap + 1) & mask; hashes[next] != EMPTY; next = (next + 1) & mask) {
+            int home = slot(hashes[next], mask);
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                hashes[gap] = hashes[next];
+                ids[gap] = ids[next];
+                gap = next;
+            }
+        }
+        hashes[gap] = EMPTY;
+    }
+
+    /**
+     * @param hash The content hash.
+     * @return The IDs of the capsules indexed under the hash.
+     */
+    int[] candidates(int hash) {
+        int mask = hashes.length - 1;
+        int[] found = new int[4];
+        int count = 0;
+        for (int slot = slot(hash, mask); hashes[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = ids[slot];
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private void resize(int capacity) {
+        int[] oldHashes = hashes;
+        int[] oldIds = ids;
+        hashes = new int[capacity];
+        ids = new int[capacity];
+        Arrays.fill(hashes, EMPTY);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != EMPTY) {
+                int slot = slot(oldHashes[i], mask);
+                while (hashes[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[i];
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+
+    private static int slot(int hash, int mask) {
+        return (hash ^ hash >>> 16) & mask;
+    }
+}
@@ -0,0 +1,198 @@
+package cz.dearfuture.repositories;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * Ordered index of capsule IDs by a date, answering range counts in O(log n).
+ * <p>
+ * Dates are keyed by UTC epoch second and nano-of-second, so the number of
+ * entries before any date is found in a single descent of the
+ * size-augmented treap. Capsules without a date are not indexed.
+ */
+final class CapsuleDateIndex extends CapsuleOrderedIndex {
+    private long[] seconds;
+    private int[] nanos;
+
+    /**
+     * @param expectedSize The number of capsules to make room for without resizing.
+     */
+    CapsuleDateIndex(int expectedSize) {
+        super(expectedSize);
+        seconds = new long[capacity(expectedSize)];
+        nanos = new int[capacity(expectedSize)];
+    }
+
+    /**
+     * Indexes a capsule under a date, replacing its previous date.
+     *
+     * @param id   The capsule ID.
+     * @param date The date, or {@code null} to remove the capsule.
+     */
+    void put(int id, LocalDateTime date) {
+        if (date == null) {
+            remove(id);
+        } else {
+            put(id, CapsuleBinaryCodec.epochSecond(date), date.getNano());
+        }
+    }
+
+    /**
+     * Indexes a capsule under a date, replacing its previous date.
+     *
+     * @param id          The capsule ID.
+     * @param epochSecond The UTC epoch second of the date.
+     * @param nano        The nano-of-second of the date.
+     */
+    void put(int id, long epochSecond, int nano) {
+        int node = nodes.get(id);
+        if (node != CapsuleIdIndex.MISSING) {
+            if (seconds[node] == epochSecond && nanos[node] == nano) {
+                return;
+            }
+            remove(id);
+        }
+        node = allocate(id);
+        seconds[node] = epochSecond;
+        nanos[node] = nano;
+        insert(node);
+    }
+
+    /**
+     * Counts the capsules dated strictly between two dates.
+     *
+     * @param from The exclusive lower bound.
+     * @param to   The exclusive upper bound.
+     * @return The number of capsules.
+     */
+    int countBetween(LocalDateTime from, LocalDateTime to) {
+        int count = countBefore(to, false) - countBefore(from, true);
+        return Math.max(0, count);
+    }
+
+    /**
+     * Lists the capsules dated strictly between two dates, in date order.
+     *
+     * @param from The exclusive lower bound.
+     * @param to   The exclusive upper bound.
+     * @return The capsule IDs.
+     */
+    int[] idsBetween(LocalDateTime from, LocalDateTime to) {
+        int[] result = new int[countBetween(from, to)];
+        if (result.length > 0) {
+            collect(root, CapsuleBinaryCodec.epochSecond(from), from.getNano(),
+                    CapsuleBinaryCodec.epochSecond(to), to.getNano(), result, 0);
+        }
+        return result;
+    }
+
+    /**
+     * Lists the capsules dated strictly before a date, oldest first.
+     *
+     * @param to The exclusive upper bound.
+     * @return The capsule IDs.
+     */
+    int[] idsBefore(LocalDateTime to) {
+        int[] result = new int[countBefore(to, false)];
+        if (result.length > 0) {
+            collectBefore(root, CapsuleBinaryCodec.epochSecond(to), to.getNano(), result, 0);
+        }
+        return result;
+    }
+
+    /**
+     * Lists the capsules ordered after a cursor position.
+     *
+     * @param date       The date at the cursor, or {@code null} to start from the first capsule.
+     * @param id         The ID at the cursor.
+     * @param limit      The maximum number of capsules to list.
+     * @param descending Whether the order runs from the latest date down.
+     * @return The IDs of up to {@code limit} capsules following the cursor.
+     */
+    int[] idsAfter(LocalDateTime date, int id, int limit, boolean descending) {
+        if (date == null) {
+            return page(null, id, limit, descending);
+        }
+        long second = CapsuleBinaryCodec.epochSecond(date);
+        int nano = date.getNano();
+        return page(node -> compareDate(node, second, nano), id, limit, descending);
+    }
+
+    /**
+     * @param date      The date.
+     * @param inclusive Whether capsules dated exactly at the date count.
+     * @return The number of capsules dated before (or at) the date.
+     */
+    private int countBefore(LocalDateTime date, boolean inclusive) {
+        long second = CapsuleBinaryCodec.epochSecond(date);
+        int nano = date.getNano();
+        int count = 0;
+        int node = root;
+        while (node != NIL) {
+            int order = compareDate(node, second, nano);
+            if (order < 0 || (inclusive && order == 0)) {
+                count += size(left[node]) + 1;
+                node = right[node];
+            } else {
+                node = left[node];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the IDs of the subtree dated strictly between the bounds in order.
+     *
+     * @return The next free position in the result.
+     */
+    private int collect(int node, long fromSecond, int fromNano, long toSecond, int toNano, int[] result, int next) {
+        if (node == NIL) {
+            return next;
+        }
+        boolean afterFrom = compareDate(node, fromSecond, fromNano) > 0;
+        boolean beforeTo = compareDate(node, toSecond, toNano) < 0;
+        if (afterFrom) {
+            next = collect(left[node], fromSecond, fromNano, toSecond, toNano, result, next);
+        }
+        if (afterFrom && beforeTo) {
+            result[next++] = ids[node];
+        }
+        if (beforeTo) {
+            next = collect(right[node], fromSecond, fromNano, toSecond, toNano, result, next);
+        }
+        return next;
+    }
+
+    /**
+     * Writes the IDs of the subtree dated strictly before the bound in order.
+     *
+     * @return The next free position in the result.
+     */
+    private int collectBefore(int node, long toSecond, int toNano, int[] result, int next) {
+        while (node != NIL) {
+            next = collectBefore(left[node], toSecond, toNano, result, next);
+            if (compareDate(node, toSecond, toNano) >= 0) {
+                break;
+            }
+            result[next++] = ids[node];
+            node = right[node];
+        }
+        return next;
+    }
+
+    @Override
+    int compareKeys(int a, int b) {
+        return compareDate(a, seconds[b], nanos[b]);
+    }
+
+    @Override
+    void growKeys(int capacity) {
+        seconds = Arrays.copyOf(seconds, capacity);
+        nanos = Arrays.copyOf(nanos, capacity);
+    }
+
+    private int compareDate(int node, long second, int nano) {
+        int order = Long.compare(seconds[node], second);
+        return order != 0 ? order : Integer.compare(nanos[node], nano);
+    }
+}
@@ -0,0 +1,60 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.Capsule;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts an existing {@code capsules.json} (including its change log) into
+ * the binary format of {@link BinaryCapsuleStore}.
+ * <p>
+ * Usage: {@code java cz.dearfuture.repositories.CapsuleFileConverter data/capsules.json data/capsules.bin}
+ */
+public final class CapsuleFileConverter {
+
+    private CapsuleFileConverter() {
+    }
+
+    /**
+     * Converts a JSON capsule file into a binary capsule file, replacing the
+     * binary file if it exists.
+     *
+     * @param jsonPath   The JSON file to read.
+     * @param binaryPath The binary table file to write.
+     * @return The number of converted capsules.
+     * @throws IOException If reading or writing fails.
+     */
+    public static int jsonToBinary(Path jsonPath, Path binaryPath) throws IOException {
+        List<Capsule> capsules = new ArrayList<>();
+        try (JsonCapsuleStore source = new JsonCapsuleStore(jsonPath.toString())) {
+            source.load(capsules);
+        }
+        try (BinaryCapsuleStore target = new BinaryCapsuleStore(binaryPath.toString())) {
+            target.checkpoint(capsules, target.checkpointMark());
+        }
+        return capsules.size();
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: CapsuleFileConverter <capsules.json> <capsules.bin>");
+            return;
+        }
+        Path json = Paths.get(args[0]);
+        if (!Files.exists(json)) {
+            System.out.println("❌ File not found: " + json);
+            return;
+        }
+        try {
+            int count = jsonToBinary(json, Paths.get(args[1]));
+            System.out.println("✅ Converted " + count + " capsules to " + args[1]);
+        } catch (IOException e) {
+            System.out.println("❌ Conversion failed: " + e.getMessage());
+        }
+    }
+}
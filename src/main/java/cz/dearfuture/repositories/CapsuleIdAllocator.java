@@ -0,0 +1,111 @@
+package cz.dearfuture.repositories;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free allocator of positive capsule IDs that reuses released IDs.
+ * <p>
+ * IDs in use are bits of a bitset made of fixed-size segments that are created
+ * on demand, so it grows without copying. A bit is claimed with a
+ * compare-and-set, so concurrent callers never receive the same ID. A hint
+ * below which all IDs are known to be in use makes allocation start at the
+ * lowest gap; without concurrent releases the lowest free ID is returned.
+ */
+final class CapsuleIdAllocator {
+    private static final int SEGMENT_BITS = 1 << 16;
+    private static final int SEGMENT_WORDS = SEGMENT_BITS / Long.SIZE;
+    private static final int SEGMENTS = (int) ((Integer.MAX_VALUE + 1L) / SEGMENT_BITS);
+
+    private final AtomicReferenceArray<AtomicLongArray> segments = new AtomicReferenceArray<>(SEGMENTS);
+    /** All IDs below the hint are in use. */
+    private final AtomicInteger lowestFree = new AtomicInteger(1);
+
+    CapsuleIdAllocator() {
+        segment(0).set(0, 1L); // ID 0 is never handed out
+    }
+
+    /**
+     * Claims the lowest free ID.
+     *
+     * @return The claimed ID.
+     * @throws IllegalStateException If all positive int IDs are in use.
+     */
+    int allocate() {
+        while (true) {
+            int start = lowestFree.get();
+            int id = claimFrom(start);
+            if (id >= 0) {
+                if (id < Integer.MAX_VALUE) {
+                    lowestFree.compareAndSet(start, id + 1); // A concurrent release keeps the lower hint
+                }
+                return id;
+            }
+            if (lowestFree.get() == start) {
+                throw new IllegalStateException("No capsule IDs left");
+            }
+        }
+    }
+
+    /**
+     * Marks an ID as in use, e.g. for capsules loaded or imported with their own IDs.
+     *
+     * @param id The ID; IDs that are not positive are ignored.
+     */
+    void markUsed(int id) {
+        if (id > 0) {
+            AtomicLongArray words = segment(id / SEGMENT_BITS);
+            int word = (id % SEGMENT_BITS) / Long.SIZE;
+            words.getAndUpdate(word, bits -> bits | 1L << id);
+        }
+    }
+
+    /**
+     * Makes an ID available again.
+     *
+     * @param id The ID; IDs that are not positive are ignored.
+     */
+    void release(int id) {
+        if (id > 0) {
+            AtomicLongArray words = segments.get(id / SEGMENT_BITS);
+            if (words != null) {
+                int word = (id % SEGMENT_BITS) / Long.SIZE;
+                words.getAndUpdate(word, bits -> bits & ~(1L << id));
+                lowestFree.accumulateAndGet(id, Math::min);
+            }
+        }
+    }
+
+    /**
+     * Claims the first free ID at or above a start ID.
+     *
+     * @return The claimed ID, or -1 if there is none.
+     */
+    private int claimFrom(int start) {
+        for (int segment = start / SEGMENT_BITS; segment < SEGMENTS; segment++) {
+            AtomicLongArray words = segment(segment);
+            int firstWord = segment == start / SEGMENT_BITS ? (start % SEGMENT_BITS) / Long.SIZE : 0;
+            for (int word = firstWord; word < SEGMENT_WORDS; word++) {
+                long bits = words.get(word);
+                while (bits != -1L) {
+                    int bit = Long.numberOfTrailingZeros(~bits);
+                    if (words.compareAndSet(word, bits, bits | 1L << bit)) {
+                        return segment * SEGMENT_BITS + word * Long.SIZE + bit;
+                    }
+                    bits = words.get(word);
+                }
+            }
+        }
+        return -1;
+    }
+
+    private AtomicLongArray segment(int index) {
+        AtomicLongArray words = segments.get(index);
+        if (words == null) {
+            segments.compareAndSet(index, null, new AtomicLongArray(SEGMENT_WORDS));
+            words = segments.get(index);
+        }
+        return words;
+    }
+}
@@ -0,0 +1,134 @@
+package cz.dearfuture.repositories;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from capsule IDs to non-negative ints (list positions or record
+ * numbers), stored in two primitive arrays without boxing.
+ * <p>
+ * Collisions are resolved by linear probing and removals shift the following
+ * entries back, so there are no tombstones and lookups stay constant time
+ * however many capsules come and go.
+ */
+final class CapsuleIdIndex {
+    /** Value returned for IDs that are not in the index. */
+    static final int MISSING = -1;
+
+    private int[] keys;
+    /** The value plus one per slot, so that 0 marks an empty slot. */
+    private int[] values;
+    private int size;
+
+    /**
+     * @param expectedSize The number of IDs to make room for without resizing.
+     */
+    CapsuleIdIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(8, expectedSize) * 2 - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * @param id The capsule ID.
+     * @return The value stored for the ID, or {@link #MISSING}.
+     */
+    int get(int id) {
+        int mask = keys.length - 1;
+        for (int slot = slot(id, mask); values[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == id) {
+                return values[slot] - 1;
+            }
+        }
+        return MISSING;
+    }
+
+    /**
+     * Stores a value for an ID, replacing the previous one.
+     *
+     * @param id    The capsule ID.
+     * @param value The value, which must not be negative.
+     */
+    void put(int id, int value) {
+        int mask = keys.length - 1;
+        int slot = slot(id, mask);
+        while (values[slot] != 0) {
+            if (keys[slot] == id) {
+                values[slot] = value + 1;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = id;
+        values[slot] = value + 1;
+        if (++size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+    }
+
+    /**
+     * Removes an ID.
+     *
+     * @param id The capsule ID.
+     * @return The value that was stored for the ID, or {@link #MISSING}.
+     */
+    int remove(int id) {
+        int mask = keys.length - 1;
+        int slot = slot(id, mask);
+        while (values[slot] != 0 && keys[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        if (values[slot] == 0) {
+            return MISSING;
+        }
+        int removed = values[slot] - 1;
+        size--;
+        // Shift back following entries that would otherwise become unreachable
+        int gap = slot;
+        for (int next = (gap + 1) & mask; values[next] != 0; next = (next + 1) & mask) {
+            int home = slot(keys[next], mask);
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        values[gap] = 0;
+        return removed;
+    }
+
+    /** Removes all IDs. */
+    void clear() {
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    /** @return The number of IDs in the index. */
+    int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                int slot = slot(oldKeys[i], mask);
+                while (values[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Spreads sequential IDs over the table (Fibonacci hashing).
+     */
+    private static int slot(int id, int mask) {
+        return (id * 0x9E3779B9 >>> 16 ^ id * 0x9E3779B9) & mask;
+    }
+}
@@ -0,0 +1,237 @@
+package cz.dearfuture.repositories;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import cz.dearfuture.models.Capsule;
+import cz.dearfuture.models.CapsuleStatus;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDateTime;
+import java.util.function.Consumer;
+
+/**
+ * Streaming JSON codec for {@link Capsule} and {@link CapsuleStatus}.
+ * <p>
+ * Fields are read and written directly with {@link JsonReader} and
+ * {@link JsonWriter}, without reflection or intermediate {@code JsonElement}
+ * trees. The output is byte-compatible with the format Gson's reflective
+ * binding produced for {@code capsules.json}: fields in declaration order,
+ * {@code null} fields omitted, dates as ISO-8601 strings, HTML-safe escaping
+ * and two-space indentation for snapshots.
+ */
+public final class CapsuleJsonCodec extends TypeAdapter<Capsule> {
+    /** Shared, stateless instance. */
+    public static final CapsuleJsonCodec INSTANCE = new CapsuleJsonCodec();
+
+    /** Codec for {@link CapsuleStatus}, written as the constant name. */
+    public static final TypeAdapter<CapsuleStatus> STATUS = new TypeAdapter<>() {
+        @Override
+        public void write(JsonWriter out, CapsuleStatus status) throws IOException {
+            if (status == null) {
+                out.nullValue();
+            } else {
+                out.value(status.name());
+            }
+        }
+
+        @Override
+        public CapsuleStatus read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return CapsuleStatus.valueOf(in.nextString());
+        }
+    };
+
+    private CapsuleJsonCodec() {
+    }
+
+    /**
+     * Writes a capsule as a JSON object.
+     *
+     * @param out     The writer.
+     * @param capsule The capsule to write.
+     * @throws IOException If writing fails.
+     */
+    @Override
+    public void write(JsonWriter out, Capsule capsule) throws IOException {
+        if (capsule == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("id").value(capsule.getId());
+        writeString(out, "title", capsule.getRawTitle());
+        writeString(out, "message", capsule.getRawMessage());
+        writeString(out, "color", capsule.getColor());
+        writeDate(out, "unlockDate", capsule.getUnlockDate());
+        writeString(out, "category", capsule.getCategory());
+        writeDate(out, "dateCreated", capsule.getDateCreated());
+        if (capsule.getStatus() != null) {
+            out.name("status");
+            STATUS.write(out, capsule.getStatus());
+        }
+        writeDate(out, "deletedAt", capsule.getDeletedAt());
+        out.endObject();
+    }
+
+    /**
+     * Reads a capsule from a JSON object. Unknown fields are skipped and
+     * missing fields are left {@code null}.
+     *
+     * @param in The reader.
+     * @return The capsule, or {@code null} for a JSON {@code null}.
+     * @throws IOException If reading fails.
+     */
+    @Override
+    public Capsule read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        int id = 0;
+        String title = null;
+        String message = null;
+        String color = null;
+        LocalDateTime unlockDate = null;
+        String category = null;
+        LocalDateTime dateCreated = null;
+        CapsuleStatus status = null;
+        LocalDateTime deletedAt = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id" -> id = in.nextInt();
+                case "title" -> title = in.nextString();
+                case "message" -> message = in.nextString();
+                case "color" -> color = in.nextString();
+                case "unlockDate" -> unlockDate = parseDate(in.nextString());
+                case "category" -> category = in.nextString();
+                case "dateCreated" -> dateCreated = parseDate(in.nextString());
+                case "status" -> status = STATUS.read(in);
+                case "deletedAt" -> deletedAt = parseDate(in.nextString());
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        return new Capsule(id, title, message, color, unlockDate, category, dateCreated, status, deletedAt);
+    }
+
+    /**
+     * Writes capsules as a pretty-printed JSON array, in the {@code capsules.json} format.
+     *
+     * @param capsules The capsules to write.
+     * @param writer   The destination.
+     * @throws IOException If writing fails.
+     */
+    public static void writeArray(Iterable<Capsule> capsules, Writer writer) throws IOException {
+        JsonWriter out = new JsonWriter(writer);
+        out.setIndent("  ");
+        out.setHtmlSafe(true);
+        out.beginArray();
+        for (Capsule capsule : capsules) {
+            INSTANCE.write(out, capsule);
+        }
+        out.endArray();
+        out.flush();
+    }
+
+    /**
+     * Reads a JSON array of capsules element by element.
+     *
+     * @param in   The reader positioned at the start of the array.
+     * @param sink Receives each capsule as soon as it is read.
+     * @throws IOException If reading fails.
+     */
+    public static void readArray(JsonReader in, Consumer<Capsule> sink) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return;
+        }
+        in.beginArray();
+        while (in.hasNext()) {
+            sink.accept(INSTANCE.read(in));
+        }
+        in.endArray();
+    }
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    private static void writeDate(JsonWriter out, String name, LocalDateTime value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value.toString());
+        }
+    }
+
+    /**
+     * Parses an ISO-8601 local date-time as written by {@link LocalDateTime#toString()}.
+     * The common {@code yyyy-MM-ddTHH:mm[:ss[.fraction]]} shapes are parsed by hand;
+     * anything else falls back to {@link LocalDateTime#parse(CharSequence)}.
+     *
+     * @param text The text to parse.
+     * @return The parsed date-time.
+     */
+    static LocalDateTime parseDate(String text) {
+        int length = text.length();
+        if (length < 16 || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T'
+                || text.charAt(13) != ':') {
+            return LocalDateTime.parse(text);
+        }
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 7);
+        int day = digits(text, 8, 10);
+        int hour = digits(text, 11, 13);
+        int minute = digits(text, 14, 16);
+        int second = 0;
+        int nano = 0;
+        if (length > 16) {
+            if (length < 19 || text.charAt(16) != ':') {
+                return LocalDateTime.parse(text);
+            }
+            second = digits(text, 17, 19);
+            if (length > 19) {
+                int fractionDigits = length - 20;
+                if (text.charAt(19) != '.' || fractionDigits < 1 || fractionDigits > 9) {
+                    return LocalDateTime.parse(text);
+                }
+                nano = digits(text, 20, length);
+                for (int i = fractionDigits; i < 9; i++) {
+                    nano *= 10;
+                }
+            }
+        }
+        if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0 || nano < 0) {
+            return LocalDateTime.parse(text);
+        }
+        return LocalDateTime.of(year, month, day, hour, minute, second, nano);
+    }
+
+    /**
+     * @return The decimal value of {@code text[from, to)}, or -1 if it contains a non-digit.
+     */
+    private static int digits(String text, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
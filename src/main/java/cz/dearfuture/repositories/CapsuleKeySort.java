@@ -0,0 +1,364 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.Capsule;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Sorts capsules by a {@link CapsuleSortKey} on keys extracted up front.
+ * <p>
+ * A comparator sort calls the getters and compares {@link LocalDateTime}s or
+ * folds the case of both strings on each of its O(n log n) comparisons. This
+ * sort reads each capsule's key once into primitive arrays: dates become epoch
+ * seconds and nanoseconds, texts become a case-folded collation key. It then
+ * sorts an index permutation, comparing mostly {@code long}s, and gathers the
+ * capsules in the sorted order. The result matches {@link CapsuleSortKey#comparator(boolean)}.
+ * <p>
+ * Date keys are radix-sorted instead: a stable LSD radix sort over the 64-bit
+ * epoch second, nanosecond and ID orders them in linear time, and large inputs
+ * split each digit pass across a fork/join pool. Passes in which all capsules
+ * share the digit, like the unused high bits of a timestamp, are skipped.
+ */
+public class CapsuleKeySort {
+    /** Size of the ranges sorted by insertion before merging. */
+    private static final int INSERTION_THRESHOLD = 32;
+    /** Bits ordered per radix pass. */
+    private static final int RADIX_BITS = 11;
+    private static final int RADIX_MASK = (1 << RADIX_BITS) - 1;
+    /** Size from which radix passes are split across the pool. */
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    private final long[] keys; // Epoch second, or the rank or prefix of the text's collation key
+    private final int[] nanos; // Nanosecond of the second, for dates
+    private String[] folded;   // Whole collation key, for mostly distinct texts
+    private final int[] ids;
+    private final boolean descending;
+
+    private CapsuleKeySort(Capsule[] capsules, CapsuleSortKey key, boolean descending) {
+        int size = capsules.length;
+        this.keys = new long[size];
+        this.ids = new int[size];
+        this.descending = descending;
+        boolean date = isDate(key);
+        this.nanos = date ? new int[size] : null;
+        String[] texts = date ? null : new String[size];
+        for (int i = 0; i < size; i++) {
+            Capsule capsule = capsules[i];
+            ids[i] = capsule.getId();
+            switch (key) {
+                case UNLOCK_DATE -> extractDate(i, capsule.getUnlockDate());
+                case CREATED_DATE -> extractDate(i, capsule.getDateCreated());
+                case TITLE -> texts[i] = capsule.getTitle();
+                case CATEGORY -> texts[i] = capsule.getCategory();
+            }
+        }
+        if (texts != null) {
+            extractTexts(texts);
+        }
+    }
+
+    /**
+     * Sorts capsules by a key, radix-sorting date keys on the common pool.
+     *
+     * @param capsules   The capsules to sort.
+     * @param key        The sort key.
+     * @param descending Whether to sort from the largest key down.
+     * @return A new list of the capsules in the order of {@code key.comparator(descending)}.
+     */
+    public static List<Capsule> sort(List<Capsule> capsules, CapsuleSortKey key, boolean descending) {
+        return sort(capsules, key, descending, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sorts capsules by a key. Date keys are radix-sorted, text keys merge-sorted.
+     *
+     * @param capsules   The capsules to sort.
+     * @param key        The sort key.
+     * @param descending Whether to sort from the largest key down.
+     * @param pool       The pool to run parallel radix passes on.
+     * @return A new list of the capsules in the order of {@code key.comparator(descending)}.
+     */
+    public static List<Capsule> sort(List<Capsule> capsules, CapsuleSortKey key, boolean descending,
+                                     ForkJoinPool pool) {
+        Capsule[] input = capsules.toArray(new Capsule[0]);
+        CapsuleKeySort sort = new CapsuleKeySort(input, key, descending);
+        return gather(input, isDate(key) ? sort.radixPermutation(pool) : sort.sortedPermutation());
+    }
+
+    /**
+     * Radix-sorts capsules by a date key in linear time.
+     *
+     * @param capsules   The capsules to sort.
+     * @param key        The sort key; {@link CapsuleSortKey#UNLOCK_DATE} or {@link CapsuleSortKey#CREATED_DATE}.
+     * @param descending Whether to sort from the latest date down.
+     * @param pool       The pool to run parallel radix passes on.
+     * @return A new list of the capsules in the order of {@code key.comparator(descending)}.
+     * @throws IllegalArgumentException If the key is not a date.
+     */
+    public static List<Capsule> radixSort(List<Capsule> capsules, CapsuleSortKey key, boolean descending,
+                                          ForkJoinPool pool) {
+        if (!isDate(key)) {
+            throw new IllegalArgumentException("Radix sort needs a date key: " + key);
+        }
+        Capsule[] input = capsules.toArray(new Capsule[0]);
+        return gather(input, new CapsuleKeySort(input, key, descending).radixPermutation(pool));
+    }
+
+    /**
+     * @param key A sort key.
+     * @return Whether the key is a date, which {@link #radixSort} can order.
+     */
+    public static boolean isDate(CapsuleSortKey key) {
+        return key == CapsuleSortKey.UNLOCK_DATE || key == CapsuleSortKey.CREATED_DATE;
+    }
+
+    private static List<Capsule> gather(Capsule[] input, int[] order) {
+        Capsule[] sorted = new Capsule[input.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = input[order[i]];
+        }
+        return Arrays.asList(sorted);
+    }
+
+    private void extractDate(int i, LocalDateTime date) {
+        keys[i] = date.toEpochSecond(ZoneOffset.UTC);
+        nanos[i] = date.getNano();
+    }
+
+    /**
+     * Folds each character the way {@link String#CASE_INSENSITIVE_ORDER} does,
+     * so comparing the folded keys by character gives the same order.
+     */
+    private static String fold(String text) {
+        char[] chars = text.toCharArray();
+        for (int c = 0; c < chars.length; c++) {
+            chars[c] = Character.toLowerCase(Character.toUpperCase(chars[c]));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Extracts the collation keys of texts. When texts repeat (like categories),
+     * each is replaced by the rank of its key among the distinct keys, so texts
+     * compare as {@code long}s after sorting only the few distinct keys. Mostly
+     * distinct texts (like titles) instead keep their whole key for ties and
+     * pack the four characters after the prefix all keys share into a
+     * {@code long}, which settles most comparisons of texts that differ early.
+     */
+    private void extractTexts(String[] texts) {
+        String[] folded = new String[texts.length];
+        Map<String, Integer> ranks = new HashMap<>();
+        int distinctLimit = texts.length / 2;
+        for (int i = 0; i < texts.length; i++) {
+            folded[i] = fold(texts[i]);
+            if (ranks != null && ranks.putIfAbsent(folded[i], 0) == null && ranks.size() > distinctLimit) {
+                ranks = null; // Mostly distinct; ranking would sort nearly all of them
+            }
+        }
+        if (ranks != null) {
+            String[] distinct = ranks.keySet().toArray(new String[0]);
+            Arrays.sort(distinct);
+            for (int rank = 0; rank < distinct.length; rank++) {
+                ranks.put(distinct[rank], rank);
+            }
+            for (int i = 0; i < texts.length; i++) {
+                keys[i] = ranks.get(folded[i]);
+            }
+            return;
+        }
+        this.folded = folded;
+        int common = commonPrefixLength(folded);
+        for (int i = 0; i < texts.length; i++) {
+            long prefix = 0;
+            for (int c = common; c < common + 4; c++) {
+                // Shorter texts pad with 0, so prefixes sort first; the whole key settles equal prefixes
+                prefix = prefix << 16 | (c < folded[i].length() ? folded[i].charAt(c) : 0);
+            }
+            keys[i] = prefix ^ Long.MIN_VALUE; // Signed comparison of the unsigned prefix
+        }
+    }
+
+    /**
+     * @return The length of the prefix all texts share.
+     */
+    private static int commonPrefixLength(String[] texts) {
+        if (texts.length == 0) {
+            return 0;
+        }
+        String first = texts[0];
+        int length = first.length();
+        for (int i = 1; i < texts.length && length > 0; i++) {
+            length = Math.min(length, texts[i].length());
+            for (int c = 0; c < length; c++) {
+                if (texts[i].charAt(c) != first.charAt(c)) {
+                    length = c;
+                }
+            }
+        }
+        return length;
+    }
+
+    private int compare(int a, int b) {
+        int result = Long.compare(keys[a], keys[b]);
+        if (result == 0 && nanos != null) {
+            result = Integer.compare(nanos[a], nanos[b]);
+        } else if (result == 0 && folded != null) {
+            result = folded[a].compareTo(folded[b]);
+        }
+        if (result == 0) {
+            result = Integer.compare(ids[a], ids[b]);
+        }
+        return descending ? -result : result;
+    }
+
+    /**
+     * @return The capsule positions in sorted order; ties keep their input order.
+     */
+    private int[] sortedPermutation() {
+        int size = keys.length;
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        for (int from = 0; from < size; from += INSERTION_THRESHOLD) {
+            insertionSort(order, from, Math.min(from + INSERTION_THRESHOLD, size));
+        }
+        int[] buffer = new int[size];
+        for (int width = INSERTION_THRESHOLD; width < size; width *= 2) {
+            for (int from = 0; from < size - width; from += 2 * width) {
+                merge(order, buffer, from, from + width, Math.min(from + 2 * width, size));
+            }
+        }
+        return order;
+    }
+
+    private void insertionSort(int[] order, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            int next = order[i];
+            int j = i - 1;
+            while (j >= from && compare(order[j], next) > 0) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = next;
+        }
+    }
+
+    /**
+     * Merges the sorted runs {@code [from, mid)} and {@code [mid, to)} in place,
+     * moving only the left run out to the buffer.
+     */
+    private void merge(int[] order, int[] buffer, int from, int mid, int to) {
+        if (compare(order[mid - 1], order[mid]) <= 0) {
+            return; // Already in order
+        }
+        System.arraycopy(order, from, buffer, from, mid - from);
+        int left = from;
+        int right = mid;
+        int next = from;
+        while (left < mid && right < to) {
+            // Take from the left on ties to keep the sort stable
+            order[next++] = compare(order[right], buffer[left]) < 0 ? order[right++] : buffer[left++];
+        }
+        System.arraycopy(buffer, left, order, next, mid - left);
+    }
+
+    /**
+     * @return The capsule positions ordered by date, nanosecond and ID; ties keep their input order.
+     */
+    private int[] radixPermutation(ForkJoinPool pool) {
+        int size = keys.length;
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        if (size < 2) {
+            return order;
+        }
+        long[] digits = new long[size];
+        int[] orderBuffer = new int[size];
+        long[] digitBuffer = new long[size];
+        // Least significant field first: ID, then nanosecond, then epoch second
+        for (int field = 0; field < 3; field++) {
+            for (int i = 0; i < size; i++) {
+                int position = order[i];
+                long value = field == 0 ? ids[position] : field == 1 ? nanos[position] : keys[position];
+                value ^= Long.MIN_VALUE; // Unsigned order of the signed value
+                digits[i] = descending ? ~value : value;
+            }
+            for (int shift = 0; shift < Long.SIZE; shift += RADIX_BITS) {
+                if (radixPass(order, digits, orderBuffer, digitBuffer, shift, pool)) {
+                    int[] sortedOrder = orderBuffer;
+                    orderBuffer = order;
+                    order = sortedOrder;
+                    long[] sortedDigits = digitBuffer;
+                    digitBuffer = digits;
+                    digits = sortedDigits;
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Stably orders the elements by one digit into the output arrays. Each
+     * chunk of the input counts its digits and then scatters its elements to
+     * offsets that follow all smaller digits and all earlier chunks.
+     *
+     * @return Whether the elements were moved; {@code false} if they all share the digit.
+     */
+    private static boolean radixPass(int[] order, long[] digits, int[] orderOut, long[] digitsOut, int shift,
+                                     ForkJoinPool pool) {
+        int size = order.length;
+        int chunks = size < PARALLEL_THRESHOLD ? 1 : Math.max(1, pool.getParallelism());
+        int chunkSize = (size + chunks - 1) / chunks;
+        int[][] counts = new int[chunks][RADIX_MASK + 1];
+        forEachChunk(chunks, pool, chunk -> {
+            int[] count = counts[chunk];
+            for (int i = chunk * chunkSize, end = Math.min(size, i + chunkSize); i < end; i++) {
+                count[(int) (digits[i] >>> shift) & RADIX_MASK]++;
+            }
+        });
+        int first = (int) (digits[0] >>> shift) & RADIX_MASK;
+        int sharingFirst = 0;
+        for (int[] count : counts) {
+            sharingFirst += count[first];
+        }
+        if (sharingFirst == size) {
+            return false;
+        }
+        int offset = 0;
+        for (int digit = 0; digit <= RADIX_MASK; digit++) {
+            for (int[] count : counts) {
+                int elements = count[digit];
+                count[digit] = offset;
+                offset += elements;
+            }
+        }
+        forEachChunk(chunks, pool, chunk -> {
+            int[] next = counts[chunk];
+            for (int i = chunk * chunkSize, end = Math.min(size, i + chunkSize); i < end; i++) {
+                int to = next[(int) (digits[i] >>> shift) & RADIX_MASK]++;
+                orderOut[to] = order[i];
+                digitsOut[to] = digits[i];
+            }
+        });
+        return true;
+    }
+
+    private static void forEachChunk(int chunks, ForkJoinPool pool, IntConsumer action) {
+        if (chunks == 1) {
+            action.accept(0);
+        } else {
+            pool.submit(() -> IntStream.range(0, chunks).parallel().forEach(action)).join();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package cz.dearfuture.repositories;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import cz.dearfuture.models.Capsule;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only mutation log kept next to the capsule JSON file.
+ * <p>
+ * Every repository mutation is written as a single JSON line (encoded with
+ * {@link CapsuleJsonCodec}), so a change costs
+ * one small append instead of a full rewrite of the snapshot. On startup the
+ * records are replayed on top of the last snapshot. Replay is idempotent
+ * (additions and updates are upserts by ID), so a crash between writing a
+ * snapshot and truncating the log cannot corrupt the restored state.
+ * <p>
+ * All methods are synchronized, so a background checkpoint can discard the
+ * records it covers while the repository keeps appending new ones.
+ */
+class CapsuleLog implements Closeable {
+    static final String OP_ADD = "ADD";
+    static final String OP_UPDATE = "UPDATE";
+    static final String OP_REMOVE = "REMOVE";
+    static final String OP_CLEAR = "CLEAR";
+
+    private final Path path;
+    private FileChannel channel;
+
+    /**
+     * Creates a log stored at the given path.
+     *
+     * @param path The file path of the log.
+     */
+    CapsuleLog(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Replays all records of the log on top of the given list of capsules.
+     * A torn final record (bytes after the last newline, e.g. after a crash
+     * mid-append) is ignored and cut off the file, so the next append starts
+     * on a fresh line instead of merging with the partial one. A complete
+     * record that cannot be parsed is not a torn append: replay fails and the
+     * file is left untouched, so no record after it is lost.
+     * <p>
+     * Records are applied through a map from ID to list position, so replay
+     * takes time linear in the number of capsules and records.
+     *
+     * @param capsules The capsules loaded from the last snapshot.
+     * @throws IOException If the log cannot be read or truncated, or contains a corrupt record.
+     */
+    synchronized void replay(List<Capsule> capsules) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        List<Capsule> replayed = new ArrayList<>(capsules);
+        Map<Integer, Integer> positions = new HashMap<>();
+        for (int i = 0; i < replayed.size(); i++) {
+            positions.putIfAbsent(replayed.get(i).getId(), i);
+        }
+        long complete = 0; // End of the last complete record
+        boolean applied = false;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long position = 0;
+            int next;
+            while ((next = in.read()) != -1) {
+                position++;
+                if (next != '\n') {
+                    line.write(next);
+                    continue;
+                }
+                String record = line.toString(StandardCharsets.UTF_8);
+                line.reset();
+                if (!record.isBlank()) {
+                    try {
+                        readRecord(record, replayed, positions);
+                        applied = true;
+                    } catch (IOException | RuntimeException e) {
+                        throw new IOException("Corrupt log record at byte offset " + complete + " in " + path, e);
+                    }
+                }
+                complete = position;
+            }
+        }
+        if (applied) {
+            capsules.clear();
+            for (Capsule capsule : replayed) {
+                if (capsule != null) {
+                    capsules.add(capsule);
+                }
+            }
+        }
+        if (complete < Files.size(path)) {
+            channel().truncate(complete);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Parses a single log record and applies it to the list of capsules.
+     * The record is fully parsed before it is applied, so a torn record leaves
+     * the list untouched. Removed capsules leave a {@code null} in their place
+     * until replay finishes, so the positions of the others stay valid.
+     */
+    private void readRecord(String line, List<Capsule> capsules, Map<Integer, Integer> positions)
+            throws IOException {
+        String op = null;
+        Capsule capsule = null;
+        int id = 0;
+        try (JsonReader in = new JsonReader(new StringReader(line))) {
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "op" -> op = in.nextString();
+                    case "capsule" -> capsule = CapsuleJsonCodec.INSTANCE.read(in);
+                    case "id" -> id = in.nextInt();
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+        }
+        if (op == null) {
+            throw new IOException("Log record without operation: " + line);
+        }
+        switch (op) {
+            case OP_ADD, OP_UPDATE -> {
+                Integer position = positions.get(capsule.getId());
+                if (position != null) {
+                    capsules.set(position, capsule);
+                } else {
+                    positions.put(capsule.getId(), capsules.size());
+                    capsules.add(capsule);
+                }
+            }
+            case OP_REMOVE -> {
+                Integer position = positions.remove(id);
+                if (position != null) {
+                    capsules.set(position, null);
+                }
+            }
+            case OP_CLEAR -> {
+                capsules.clear();
+                positions.clear();
+            }
+        }
+    }
+
+    /** @param capsule Records that a capsule was added. */
+    synchronized void appendAdd(Capsule capsule) throws IOException {
+        appendCapsule(OP_ADD, capsule);
+    }
+
+    /** @param capsule Records the new state of a changed capsule. */
+    synchronized void appendUpdate(Capsule capsule) throws IOException {
+        appendCapsule(OP_UPDATE, capsule);
+    }
+
+    /** @param id Records that the capsule with the given ID was removed. */
+    synchronized void appendRemove(int id) throws IOException {
+        StringWriter line = new StringWriter();
+        JsonWriter out = new JsonWriter(line);
+        out.beginObject();
+        out.name("op").value(OP_REMOVE);
+        out.name("id").value(id);
+        out.endObject();
+        append(line);
+    }
+
+    /** Records that all capsules were removed. */
+    synchronized void appendClear() throws IOException {
+        StringWriter line = new StringWriter();
+        JsonWriter out = new JsonWriter(line);
+        out.beginObject();
+        out.name("op").value(OP_CLEAR);
+        out.endObject();
+        append(line);
+    }
+
+    private void appendCapsule(String op, Capsule capsule) throws IOException {
+        StringWriter line = new StringWriter();
+        JsonWriter out = new JsonWriter(line);
+        out.beginObject();
+        out.name("op").value(op);
+        out.name("capsule");
+        CapsuleJsonCodec.INSTANCE.write(out, capsule);
+        out.endObject();
+        append(line);
+    }
+
+    /**
+     * Writes one record as a single line. It is only forced to disk by {@link #force()}.
+     */
+    private void append(StringWriter record) throws IOException {
+        byte[] line = record.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+        FileChannel out = channel();
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Forces the records appended so far to disk.
+     *
+     * @throws IOException If the log cannot be forced.
+     */
+    synchronized void force() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * @return The current size of the log in bytes.
+     * @throws IOException If the size cannot be determined.
+     */
+    synchronized long size() throws IOException {
+        if (channel != null) {
+            return channel.size();
+        }
+        return Files.exists(path) ? Files.size(path) : 0;
+    }
+
+    /**
+     * Discards all records. Called once a snapshot covering them is on disk.
+     *
+     * @throws IOException If the log cannot be truncated.
+     */
+    synchronized void truncate() throws IOException {
+        channel().truncate(0);
+        channel.force(true);
+    }
+
+    /**
+     * Discards the records in the first {@code covered} bytes of the log.
+     * Records appended after that point are kept, so a snapshot taken while
+     * the repository kept changing only drops what it actually contains.
+     *
+     * @param covered The log size at the moment the snapshot was taken.
+     * @throws IOException If the log cannot be rewritten.
+     */
+    synchronized void discardUpTo(long covered) throws IOException {
+        long size = size();
+        if (covered >= size) {
+            truncate();
+            return;
+        }
+        if (covered == 0) {
+            return;
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = covered;
+            while (position < size) {
+                position += channel().transferTo(position, size - position, out);
+            }
+            out.force(true);
+        }
+        close();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return channel;
+    }
+
+    /**
+     * Closes the underlying file channel.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
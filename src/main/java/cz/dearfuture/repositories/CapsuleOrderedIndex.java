@@ -0,0 +1,367 @@
+package cz.dearfuture.repositories;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Ordered index of capsule IDs by a key, kept as a treap (a randomized
+ * balanced binary search tree) whose nodes live in primitive arrays.
+ * <p>
+ * Every node also stores the size of its subtree, so subclasses can count
+ * entries before a key in a single descent. Equal keys are ordered by ID.
+ * Inserting, moving and removing a capsule take O(log n); listing all IDs in
+ * either direction is a single in-order walk, and a page after a cursor
+ * position takes O(log n + page size). Subclasses store the keys in
+ * arrays of their own, indexed by node.
+ * <p>
+ * Not thread-safe; the repository only uses it while holding its lock.
+ */
+abstract class CapsuleOrderedIndex {
+    static final int NIL = -1;
+
+    int[] ids;
+    private int[] priorities;
+    int[] left;
+    int[] right;
+    private int[] sizes;
+    int root = NIL;
+    /** Head of the list of unused nodes, linked through {@link #left}. */
+    private int free = NIL;
+    private int allocated;
+    /** Node of each indexed ID. */
+    final CapsuleIdIndex nodes;
+    private int seed = 0x2545F491;
+    private int splitLeft;
+    private int splitRight;
+
+    /**
+     * @param expectedSize The number of capsules to make room for without resizing.
+     */
+    CapsuleOrderedIndex(int expectedSize) {
+        int capacity = capacity(expectedSize);
+        ids = new int[capacity];
+        priorities = new int[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        sizes = new int[capacity];
+        nodes = new CapsuleIdIndex(expectedSize);
+    }
+
+    /**
+     * @param expectedSize The number of capsules to make room for.
+     * @return The initial node capacity, for sizing the key arrays of subclasses.
+     */
+    static int capacity(int expectedSize) {
+        return Math.max(16, expectedSize);
+    }
+
+    /**
+     * Compares the keys of two nodes, not considering their IDs.
+     */
+    abstract int compareKeys(int a, int b);
+
+    /**
+     * Resizes the key arrays of subclasses.
+     *
+     * @param capacity The new node capacity.
+     */
+    abstract void growKeys(int capacity);
+
+    /**
+     * Takes an unused node for an ID. The caller stores its key and then
+     * links it with {@link #insert(int)}.
+     *
+     * @param id The capsule ID, which must not be indexed.
+     * @return The node.
+     */
+    final int allocate(int id) {
+        int node;
+        if (free != NIL) {
+            node = free;
+            free = left[node];
+        } else {
+            if (allocated == ids.length) {
+                int capacity = ids.length + (ids.length >> 1);
+                ids = Arrays.copyOf(ids, capacity);
+                priorities = Arrays.copyOf(priorities, capacity);
+                left = Arrays.copyOf(left, capacity);
+                right = Arrays.copyOf(right, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                growKeys(capacity);
+            }
+            node = allocated++;
+        }
+        ids[node] = id;
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        priorities[node] = seed;
+        left[node] = NIL;
+        right[node] = NIL;
+        sizes[node] = 1;
+        return node;
+    }
+
+    /**
+     * Links an allocated node whose key has been stored into the tree.
+     *
+     * @param node The node.
+     */
+    final void insert(int node) {
+        nodes.put(ids[node], node);
+        root = insert(root, node);
+    }
+
+    /**
+     * Removes a capsule from the index.
+     *
+     * @param id The capsule ID.
+     */
+    final void remove(int id) {
+        int node = nodes.remove(id);
+        if (node != CapsuleIdIndex.MISSING) {
+            root = delete(root, node);
+            left[node] = free;
+            free = node;
+        }
+    }
+
+    /** @return The number of indexed capsules. */
+    final int size() {
+        return size(root);
+    }
+
+    /**
+     * Lists all indexed capsules in key order.
+     *
+     * @param descending Whether to list them from the largest key down.
+     * @return The capsule IDs.
+     */
+    final int[] ids(boolean descending) {
+        int[] result = new int[size()];
+        int[] next = {0};
+        walk(descending, id -> {
+            result[next[0]++] = id;
+            return true;
+        });
+        return result;
+    }
+
+    /**
+     * Lists the capsules ordered after a cursor position, for keyset pagination.
+     *
+     * @param cursorKey  Compares the key of a node with the cursor key, or
+     *                   {@code null} to start from the first capsule.
+     * @param cursorId   The ID at the cursor position, ordering equal keys.
+     * @param limit      The maximum number of capsules to list.
+     * @param descending Whether the order runs from the largest key down.
+     * @return The IDs of up to {@code limit} capsules following the cursor.
+     */
+    final int[] page(IntUnaryOperator cursorKey, int cursorId, int limit, boolean descending) {
+        int[] result = new int[Math.min(limit, size())];
+        int[] stack = new int[64];
+        int depth = 0;
+        int node = root;
+        // Stack the path to the first node after the cursor; its stacked ancestors follow it
+        while (node != NIL) {
+            boolean after = true;
+            if (cursorKey != null) {
+                int order = cursorKey.applyAsInt(node);
+                if (order == 0) {
+                    order = Integer.compare(ids[node], cursorId);
+                }
+                after = descending ? order < 0 : order > 0;
+            }
+            if (after) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = node;
+                node = descending ? right[node] : left[node];
+            } else {
+                node = descending ? left[node] : right[node];
+            }
+        }
+        int next = 0;
+        while (next < result.length && depth > 0) {
+            node = stack[--depth];
+            result[next++] = ids[node];
+            for (node = descending ? left[node] : right[node]; node != NIL;
+                 node = descending ? right[node] : left[node]) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = node;
+            }
+        }
+        return next == result.length ? result : Arrays.copyOf(result, next);
+    }
+
+    /**
+     * Counts the nodes before a position, given as a predicate that holds for
+     * a prefix of the order (e.g. "key is less than x").
+     *
+     * @param before Whether a node lies before the position.
+     * @return The number of nodes before the position, found in O(log n).
+     */
+    final int rank(IntPredicate before) {
+        int count = 0;
+        int node = root;
+        while (node != NIL) {
+            if (before.test(node)) {
+                count += size(left[node]) + 1;
+                node = right[node];
+            } else {
+                node = left[node];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lists the capsules between two positions in key order.
+     *
+     * @param beforeStart Whether a node lies before the range, see {@link #rank(IntPredicate)}.
+     * @param beforeEnd   Whether a node lies before the end of the range.
+     * @return The capsule IDs in the range.
+     */
+    final int[] range(IntPredicate beforeStart, IntPredicate beforeEnd) {
+        int[] result = new int[Math.max(0, rank(beforeEnd) - rank(beforeStart))];
+        if (result.length > 0) {
+            collect(root, beforeStart, beforeEnd, result, 0);
+        }
+        return result;
+    }
+
+    private int collect(int node, IntPredicate beforeStart, IntPredicate beforeEnd, int[] result, int next) {
+        if (node == NIL) {
+            return next;
+        }
+        boolean afterStart = !beforeStart.test(node);
+        boolean inEnd = beforeEnd.test(node);
+        if (afterStart) {
+            next = collect(left[node], beforeStart, beforeEnd, result, next);
+        }
+        if (afterStart && inEnd) {
+            result[next++] = ids[node];
+        }
+        if (inEnd) {
+            next = collect(right[node], beforeStart, beforeEnd, result, next);
+        }
+        return next;
+    }
+
+    /**
+     * Visits the capsules in key order until the visitor asks to stop.
+     *
+     * @param descending Whether to visit them from the largest key down.
+     * @param visitor    Receives each capsule ID and returns whether to continue.
+     */
+    final void walk(boolean descending, IntPredicate visitor) {
+        int[] stack = new int[64];
+        int depth = 0;
+        int node = root;
+        while (node != NIL || depth > 0) {
+            while (node != NIL) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = node;
+                node = descending ? right[node] : left[node];
+            }
+            node = stack[--depth];
+            if (!visitor.test(ids[node])) {
+                return;
+            }
+            node = descending ? left[node] : right[node];
+        }
+    }
+
+    final int size(int node) {
+        return node == NIL ? 0 : sizes[node];
+    }
+
+    private int insert(int node, int inserted) {
+        if (node == NIL) {
+            return inserted;
+        }
+        if (priorities[inserted] > priorities[node]) {
+            split(node, inserted);
+            left[inserted] = splitLeft;
+            right[inserted] = splitRight;
+            update(inserted);
+            return inserted;
+        }
+        if (compare(inserted, node) < 0) {
+            left[node] = insert(left[node], inserted);
+        } else {
+            right[node] = insert(right[node], inserted);
+        }
+        update(node);
+        return node;
+    }
+
+    /**
+     * Splits a subtree into the nodes ordered before the pivot ({@link #splitLeft})
+     * and the others ({@link #splitRight}).
+     */
+    private void split(int node, int pivot) {
+        if (node == NIL) {
+            splitLeft = NIL;
+            splitRight = NIL;
+        } else if (compare(node, pivot) < 0) {
+            split(right[node], pivot);
+            right[node] = splitLeft;
+            update(node);
+            splitLeft = node;
+        } else {
+            split(left[node], pivot);
+            left[node] = splitRight;
+            update(node);
+            splitRight = node;
+        }
+    }
+
+    private int delete(int node, int deleted) {
+        if (node == deleted) {
+            return merge(left[node], right[node]);
+        }
+        if (compare(deleted, node) < 0) {
+            left[node] = delete(left[node], deleted);
+        } else {
+            right[node] = delete(right[node], deleted);
+        }
+        update(node);
+        return node;
+    }
+
+    /**
+     * Merges two subtrees where all nodes of the first are ordered before the second.
+     */
+    private int merge(int first, int second) {
+        if (first == NIL) {
+            return second;
+        }
+        if (second == NIL) {
+            return first;
+        }
+        if (priorities[first] > priorities[second]) {
+            right[first] = merge(right[first], second);
+            update(first);
+            return first;
+        }
+        left[second] = merge(first, left[second]);
+        update(second);
+        return second;
+    }
+
+    private void update(int node) {
+        sizes[node] = size(left[node]) + size(right[node]) + 1;
+    }
+
+    private int compare(int a, int b) {
+        int order = compareKeys(a, b);
+        return order != 0 ? order : Integer.compare(ids[a], ids[b]);
+    }
+}
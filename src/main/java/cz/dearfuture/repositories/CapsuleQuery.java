@@ -0,0 +1,196 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.Capsule;
+import cz.dearfuture.models.CapsuleStatus;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Query for capsules, run by {@link CapsuleRepository#query(CapsuleQuery)}.
+ * <p>
+ * All set conditions must hold. Texts are compared ignoring case and date
+ * ranges exclude their bounds, like the rest of the repository's API. The
+ * setters return the query itself, so a query reads as one expression:
+ * {@code new CapsuleQuery().status(CapsuleStatus.LOCKED).unlockBetween(from, to).limit(10)}.
+ */
+public final class CapsuleQuery {
+    private CapsuleStatus status;
+    private String category;
+    private String color;
+    private LocalDateTime unlockFrom;
+    private LocalDateTime unlockTo;
+    private LocalDateTime createdFrom;
+    private LocalDateTime createdTo;
+    private String titlePrefix;
+    private CapsuleSortKey sortKey;
+    private boolean descending;
+    private int limit = Integer.MAX_VALUE;
+
+    /**
+     * @param status The status capsules must have.
+     * @return This query.
+     */
+    public CapsuleQuery status(CapsuleStatus status) {
+        this.status = status;
+        return this;
+    }
+
+    /**
+     * @param category The category capsules must have, ignoring case.
+     * @return This query.
+     */
+    public CapsuleQuery category(String category) {
+        this.category = category;
+        return this;
+    }
+
+    /**
+     * @param color The color capsules must have, ignoring case.
+     * @return This query.
+     */
+    public CapsuleQuery color(String color) {
+        this.color = color;
+        return this;
+    }
+
+    /**
+     * @param from The exclusive lower bound of the unlock date, or {@code null} for none.
+     * @param to   The exclusive upper bound of the unlock date, or {@code null} for none.
+     * @return This query.
+     */
+    public CapsuleQuery unlockBetween(LocalDateTime from, LocalDateTime to) {
+        this.unlockFrom = from == null ? LocalDateTime.MIN : from;
+        this.unlockTo = to == null ? LocalDateTime.MAX : to;
+        return this;
+    }
+
+    /**
+     * @param from The exclusive lower bound of the creation date, or {@code null} for none.
+     * @param to   The exclusive upper bound of the creation date, or {@code null} for none.
+     * @return This query.
+     */
+    public CapsuleQuery createdBetween(LocalDateTime from, LocalDateTime to) {
+        this.createdFrom = from == null ? LocalDateTime.MIN : from;
+        this.createdTo = to == null ? LocalDateTime.MAX : to;
+        return this;
+    }
+
+    /**
+     * @param prefix The text titles must start with, ignoring case.
+     * @return This query.
+     */
+    public CapsuleQuery titleStartsWith(String prefix) {
+        this.titlePrefix = prefix;
+        return this;
+    }
+
+    /**
+     * @param key        The key to sort results by.
+     * @param descending Whether to sort from the largest key down.
+     * @return This query.
+     */
+    public CapsuleQuery sortBy(CapsuleSortKey key, boolean descending) {
+        this.sortKey = key;
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * @param limit The maximum number of results.
+     * @return This query.
+     * @throws IllegalArgumentException If the limit is negative.
+     */
+    public CapsuleQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative: " + limit);
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    CapsuleStatus status() {
+        return status;
+    }
+
+    String category() {
+        return category;
+    }
+
+    LocalDateTime unlockFrom() {
+        return unlockFrom;
+    }
+
+    LocalDateTime unlockTo() {
+        return unlockTo;
+    }
+
+    LocalDateTime createdFrom() {
+        return createdFrom;
+    }
+
+    LocalDateTime createdTo() {
+        return createdTo;
+    }
+
+    String titlePrefix() {
+        return titlePrefix;
+    }
+
+    CapsuleSortKey sortKey() {
+        return sortKey;
+    }
+
+    boolean descending() {
+        return descending;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    /**
+     * @return The names of the set conditions, for describing query plans.
+     */
+    List<String> conditions() {
+        List<String> conditions = new ArrayList<>();
+        if (status != null) {
+            conditions.add("status");
+        }
+        if (category != null) {
+            conditions.add("category");
+        }
+        if (color != null) {
+            conditions.add("color");
+        }
+        if (unlockFrom != null) {
+            conditions.add("unlock date");
+        }
+        if (createdFrom != null) {
+            conditions.add("created date");
+        }
+        if (titlePrefix != null) {
+            conditions.add("title prefix");
+        }
+        return conditions;
+    }
+
+    /**
+     * @param capsule A capsule.
+     * @return Whether the capsule meets all set conditions.
+     */
+    boolean matches(Capsule capsule) {
+        return (status == null || capsule.getStatus() == status)
+                && (category == null || category.equalsIgnoreCase(capsule.getCategory()))
+                && (color == null || color.equalsIgnoreCase(capsule.getColor()))
+                && (unlockFrom == null || between(capsule.getUnlockDate(), unlockFrom, unlockTo))
+                && (createdFrom == null || between(capsule.getDateCreated(), createdFrom, createdTo))
+                && (titlePrefix == null || (capsule.getTitle() != null
+                && capsule.getTitle().regionMatches(true, 0, titlePrefix, 0, titlePrefix.length())));
+    }
+
+    private static boolean between(LocalDateTime date, LocalDateTime from, LocalDateTime to) {
+        return date != null && date.isAfter(from) && date.isBefore(to);
+    }
+}
@@ -1,21 +1,105 @@
 package cz.dearfuture.repositories;
 
-import com.google.gson.*;
 import cz.dearfuture.models.Capsule;
 import cz.dearfuture.models.CapsuleStatus;
+import cz.dearfuture.utils.TopKSelection;
 
-import java.io.*;
-import java.lang.reflect.Type;
-import java.nio.file.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.function.Supplier;
 
 /**
- * Handles storing, retrieving, and managing Capsule objects using a JSON file.
+ * Handles storing, retrieving, and managing Capsule objects.
+ * <p>
+ * Capsules are kept in memory; persistence is delegated to a {@link CapsuleStore}
+ * engine, which records each mutation incrementally. Full snapshots are only
+ * written at checkpoints, which run on a background thread once the store's
+ * pending change records grow large enough or the checkpoint interval elapses.
+ * Engines may open the capsules as a lazily materialized list. Lookups by ID
+ * go through a primitive hash index of list positions, built on first use
+ * without materializing any capsules, so they take constant time. Permanent
+ * removal moves the last capsule into the freed position instead of shifting
+ * the list, so it does not preserve insertion order.
+ * <p>
+ * Capsule IDs are also partitioned by status, so the locked, archived and
+ * trash views take time proportional to their size. The partitions are kept
+ * up to date by the repository's mutations; a capsule whose status is changed
+ * directly (e.g. by {@link Capsule#openCapsule()}) must be passed to
+ * {@link #updateCapsule(Capsule)}. Unlock-date range queries use an ordered
+ * index that is built on the first query and then maintained the same way,
+ * and so is the queue of trashed capsules ordered by deletion time that
+ * trash cleanup pops expired capsules from. Duplicate checks use a hash
+ * index of normalized titles and messages, also built on first use.
+ * Sorted views by title, unlock date, creation date and category walk
+ * ordered indexes that are likewise built on first use and then updated in
+ * O(log n) per mutation, instead of sorting all capsules on every request.
+ * {@link #query(CapsuleQuery)} reads candidates from the most selective of
+ * these indexes that is available and only scans all capsules otherwise;
+ * {@link #explain(CapsuleQuery)} describes the chosen plan.
+ * <p>
+ * New capsule IDs come from {@link #allocateCapsuleId()}, a lock-free bitset
+ * allocator built together with the ID index and kept in step with it, so
+ * IDs freed by permanent deletion are reused and concurrent creators never
+ * receive the same ID.
+ * <p>
+ * Mutations are persisted synchronously by default. With a write delay they
+ * only mark the changed capsules dirty and a background writer persists
+ * them at most once per delay, so repeated changes of the same capsule are
+ * written once. {@link #flush()} and {@link #close()} persist pending writes
+ * immediately.
+ * <p>
+ * When written changes are forced to disk is decided by a {@link Durability}
+ * policy, by default {@link Durability#EVERY_COMMIT}. A synchronous mutation
+ * and each asynchronous flush count as one commit.
  */
-public class CapsuleRepository {
-    private final String filePath;
+public class CapsuleRepository implements AutoCloseable {
+    /** Default size of pending change records (in bytes) that triggers a checkpoint. */
+    public static final long DEFAULT_CHECKPOINT_LOG_BYTES = 4L * 1024 * 1024;
+    /** Default maximum time between checkpoints while there are unsaved changes. */
+    public static final Duration DEFAULT_CHECKPOINT_INTERVAL = Duration.ofSeconds(30);
+    /** Write delay that persists every mutation before it returns. */
+    public static final Duration SYNCHRONOUS = Duration.ZERO;
+    /** How long capsules stay in the trash before cleanup removes them. */
+    public static final Duration TRASH_RETENTION = Duration.ofDays(15);
+    /** Default durability policy. */
+    public static final Durability DEFAULT_DURABILITY = Durability.EVERY_COMMIT;
+
+    private final CapsuleStore store;
+    private final long checkpointLogBytes;
+    private final Duration checkpointInterval;
+    private final Duration writeDelay;
+    /** Started on first use, so the constructor never publishes {@code this} to another thread. */
+    private CapsuleCheckpointer checkpointer;
+    /** Created on the first asynchronous write, for the same reason. */
+    private CapsuleWriteBehind writer;
+    private final CapsuleSyncer syncer;
+    private final Object checkpointLock = new Object();
     private List<Capsule> capsules;
+    /** Position of each capsule in {@link #capsules} by ID, {@code null} until first needed. */
+    private CapsuleIdIndex positions;
+    /** Capsule IDs by status, {@code null} until first needed. */
+    private CapsuleStatusPartitions partitions;
+    /** Capsule IDs ordered by unlock date, {@code null} until first queried. */
+    private CapsuleDateIndex unlockDates;
+    /** Trashed capsule IDs ordered by deletion time, {@code null} until first needed. */
+    private CapsuleDateIndex trashQueue;
+    /** Capsule IDs by content hash, {@code null} until first needed. */
+    private CapsuleContentIndex contents;
+    /** Capsule IDs ordered by title, {@code null} until first needed. */
+    private CapsuleTextIndex titles;
+    /** Capsule IDs ordered by creation date, {@code null} until first needed. */
+    private CapsuleDateIndex createdDates;
+    /** Capsule IDs ordered by category, {@code null} until first needed. */
+    private CapsuleTextIndex categories;
+    /** IDs in use and reserved, built together with {@link #positions}. */
+    private volatile CapsuleIdAllocator idAllocator;
+    /** Capsules changed since the last flush by ID, in order; {@code null} marks a removal. */
+    private final LinkedHashMap<Integer, Capsule> pendingWrites = new LinkedHashMap<>();
+    private boolean clearPending;
+    private boolean closed;
 
     /**
      * Constructs a repository for managing capsules stored in a JSON file.
@@ -23,41 +107,262 @@ public class CapsuleRepository {
      * @param filePath The file path where capsules are stored.
      */
     public CapsuleRepository(String filePath) {
-        this.filePath = filePath;
-        this.capsules = loadCapsulesFromFile();
+        this(new JsonCapsuleStore(filePath));
+    }
+
+    /**
+     * Constructs a repository backed by the given storage engine.
+     *
+     * @param store The storage engine.
+     */
+    public CapsuleRepository(CapsuleStore store) {
+        this(store, DEFAULT_CHECKPOINT_LOG_BYTES, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Constructs a repository with custom checkpoint triggers.
+     *
+     * @param store              The storage engine.
+     * @param checkpointLogBytes Size of pending change records (in bytes) that triggers a checkpoint.
+     * @param checkpointInterval Maximum time between checkpoints while there are unsaved changes.
+     */
+    public CapsuleRepository(CapsuleStore store, long checkpointLogBytes, Duration checkpointInterval) {
+        this(store, checkpointLogBytes, checkpointInterval, SYNCHRONOUS, DEFAULT_DURABILITY);
+    }
+
+    /**
+     * Constructs a repository that persists mutations asynchronously.
+     *
+     * @param store      The storage engine.
+     * @param writeDelay Maximum time a mutation waits before it is persisted,
+     *                   or {@link #SYNCHRONOUS} to persist it before returning.
+     */
+    public CapsuleRepository(CapsuleStore store, Duration writeDelay) {
+        this(store, writeDelay, DEFAULT_DURABILITY);
+    }
+
+    /**
+     * Constructs a repository with the given write mode and durability policy.
+     *
+     * @param store      The storage engine.
+     * @param writeDelay Maximum time a mutation waits before it is persisted,
+     *                   or {@link #SYNCHRONOUS} to persist it before returning.
+     * @param durability When persisted changes are forced to disk.
+     */
+    public CapsuleRepository(CapsuleStore store, Duration writeDelay, Durability durability) {
+        this(store, DEFAULT_CHECKPOINT_LOG_BYTES, DEFAULT_CHECKPOINT_INTERVAL, writeDelay, durability);
+    }
+
+    /**
+     * Constructs a repository with custom checkpoint triggers, write mode and durability policy.
+     *
+     * @param store              The storage engine.
+     * @param checkpointLogBytes Size of pending change records (in bytes) that triggers a checkpoint.
+     * @param checkpointInterval Maximum time between checkpoints while there are unsaved changes.
+     * @param writeDelay         Maximum time a mutation waits before it is persisted,
+     *                           or {@link #SYNCHRONOUS} to persist it before returning.
+     * @param durability         When persisted changes are forced to disk.
+     */
+    public CapsuleRepository(CapsuleStore store, long checkpointLogBytes, Duration checkpointInterval,
+                             Duration writeDelay, Durability durability) {
+        this.store = store;
+        this.capsules = loadCapsules();
+        this.checkpointLogBytes = checkpointLogBytes;
+        this.checkpointInterval = checkpointInterval;
+        this.writeDelay = writeDelay;
+        this.syncer = new CapsuleSyncer(store, durability);
     }
 
     /**
-     * Loads capsules from the JSON storage file.
+     * Loads capsules from the storage engine. Files that cannot be read fail
+     * the construction, since starting empty would overwrite them at the next
+     * checkpoint.
      *
-     * @return A list of capsules loaded from the file.
+     * @return A list of capsules loaded from storage.
+     * @throws UncheckedIOException If the stored capsules cannot be read.
      */
-    private List<Capsule> loadCapsulesFromFile() {
+    private List<Capsule> loadCapsules() {
         try {
-            if (!Files.exists(Paths.get(filePath))) {
-                return new ArrayList<>();
-            }
-            String json = Files.readString(Paths.get(filePath));
-            Gson gson = new GsonBuilder()
-                    .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
-                    .create();
-            Capsule[] capsuleArray = gson.fromJson(json, Capsule[].class);
-            return capsuleArray != null ? new ArrayList<>(Arrays.asList(capsuleArray)) : new ArrayList<>();
+            return store.open();
         } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load capsules", e);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
             return new ArrayList<>();
         }
     }
 
     /**
-     * Saves the current list of capsules to the JSON storage file.
+     * @return The checkpointer, started on first use. If the repository is
+     *         already closed it is shut down right away and accepts no work.
+     */
+    private synchronized CapsuleCheckpointer checkpointer() {
+        if (checkpointer == null) {
+            checkpointer = new CapsuleCheckpointer(this::checkpoint, checkpointLogBytes, checkpointInterval,
+                    store::pendingBytes);
+            if (closed) {
+                checkpointer.shutdown();
+            }
+        }
+        return checkpointer;
+    }
+
+    /**
+     * @return The background writer of asynchronous writes, created on first use.
+     */
+    private synchronized CapsuleWriteBehind writer() {
+        if (writer == null) {
+            writer = new CapsuleWriteBehind(this::flush, writeDelay);
+            if (closed) {
+                writer.shutdown();
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * Persists a single mutation through the storage engine as one commit.
+     * Must be called while holding the repository lock.
+     *
+     * @param mutation The store call describing the mutation.
+     */
+    private void persist(StoreMutation mutation) {
+        write(mutation);
+        syncer.committed();
+    }
+
+    /**
+     * Passes a mutation to the storage engine, and requests a background
+     * checkpoint once enough change records are pending.
+     *
+     * @param mutation The store call describing the mutation.
+     */
+    private void write(StoreMutation mutation) {
+        try {
+            mutation.run();
+            checkpointer().onLogGrowth(store.pendingBytes());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Persists a changed capsule now, or marks it dirty when writes are asynchronous.
+     * Must be called while holding the repository lock.
+     *
+     * @param capsule  The changed capsule.
+     * @param mutation The store call persisting it synchronously.
+     */
+    private void persist(Capsule capsule, StoreMutation mutation) {
+        if (writeDelay.isZero()) {
+            persist(mutation);
+        } else {
+            pendingWrites.put(capsule.getId(), capsule);
+            writer().markDirty();
+        }
+    }
+
+    /**
+     * Persists a removal now, or marks it dirty when writes are asynchronous.
+     * Must be called while holding the repository lock.
+     *
+     * @param id The ID of the removed capsule.
+     */
+    private void persistRemoval(int id) {
+        if (writeDelay.isZero()) {
+            persist(() -> store.capsuleRemoved(id));
+        } else {
+            pendingWrites.put(id, null);
+            writer().markDirty();
+        }
+    }
+
+    /**
+     * Persists all pending asynchronous writes as one commit. Capsules changed
+     * several times since the last flush are written once, in their current state.
+     */
+    public synchronized void flush() {
+        if (!clearPending && pendingWrites.isEmpty()) {
+            return;
+        }
+        if (clearPending) {
+            clearPending = false;
+            write(store::cleared);
+        }
+        Iterator<Map.Entry<Integer, Capsule>> pending = pendingWrites.entrySet().iterator();
+        while (pending.hasNext()) {
+            Map.Entry<Integer, Capsule> write = pending.next();
+            pending.remove();
+            int id = write.getKey();
+            Capsule capsule = write.getValue();
+            write(capsule == null ? () -> store.capsuleRemoved(id) : () -> store.capsuleUpdated(capsule));
+        }
+        syncer.committed();
+    }
+
+    /**
+     * Writes a consistent snapshot of all capsules and lets the storage engine
+     * discard the change records it covers.
+     * <p>
+     * Only copying the capsules happens under the repository lock; the snapshot
+     * is written without it, so mutations can continue while it is saved.
+     * Capsules of a memory-mapped list are only copied if they were read; the
+     * others are copied by the storage engine straight from the mapped records.
+     */
+    public void checkpoint() {
+        synchronized (checkpointLock) {
+            try {
+                List<Capsule> snapshot;
+                long mark;
+                synchronized (this) {
+                    flush();
+                    if (capsules instanceof MappedCapsuleList mapped) {
+                        snapshot = mapped.snapshot();
+                    } else {
+                        snapshot = new ArrayList<>(capsules.size());
+                        for (Capsule capsule : capsules) {
+                            snapshot.add(new Capsule(capsule));
+                        }
+                    }
+                    mark = store.checkpointMark();
+                }
+                store.checkpoint(snapshot, mark);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops the background writer, syncer and checkpointer, persists pending writes,
+     * writes a final checkpoint if there are unsaved changes and closes the
+     * storage engine. Closing an already closed repository does nothing.
      */
-    private void saveCapsulesToFile() {
-        try (Writer writer = new FileWriter(filePath)) {
-            Gson gson = new GsonBuilder()
-                    .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
-                    .setPrettyPrinting()
-                    .create();
-            gson.toJson(capsules, writer);
+    @Override
+    public void close() {
+        CapsuleWriteBehind startedWriter;
+        CapsuleCheckpointer startedCheckpointer;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            startedWriter = writer;
+            startedCheckpointer = checkpointer;
+        }
+        if (startedWriter != null) {
+            startedWriter.shutdown();
+        }
+        flush();
+        syncer.shutdown();
+        if (startedCheckpointer != null) {
+            startedCheckpointer.shutdown();
+        }
+        if (store.pendingBytes() > 0) {
+            checkpoint();
+        }
+        try {
+            store.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -68,7 +373,7 @@ public class CapsuleRepository {
      *
      * @return A list of non-deleted capsules.
      */
-    public List<Capsule> getAllCapsules() {
+    public synchronized List<Capsule> getAllCapsules() {
         return capsules.stream()
                 .toList();
     }
@@ -79,21 +384,322 @@ public class CapsuleRepository {
      * @param id The ID of the capsule to retrieve.
      * @return The capsule with the given ID, or {@code null} if not found.
      */
-    public Capsule getCapsuleById(int id) {
-        return capsules.stream()
-                .filter(capsule -> capsule.getId() == id && capsule.getStatus() != CapsuleStatus.DELETED)
-                .findFirst()
-                .orElse(null);
+    public synchronized Capsule getCapsuleById(int id) {
+        int index = indexOf(id);
+        if (index < 0) {
+            return null;
+        }
+        Capsule capsule = capsules.get(index);
+        return capsule.getStatus() != CapsuleStatus.DELETED ? capsule : null;
+    }
+
+    /**
+     * Finds the position of a capsule by ID.
+     *
+     * @param id The capsule ID.
+     * @return The position in {@link #capsules}, or -1 if there is no such capsule.
+     */
+    private int indexOf(int id) {
+        return positions().get(id);
+    }
+
+    /** @return The ID index, built on first use. */
+    private CapsuleIdIndex positions() {
+        if (positions == null) {
+            buildIndexes();
+        }
+        return positions;
+    }
+
+    /** @return The status partitions, built on first use. */
+    private CapsuleStatusPartitions partitions() {
+        if (partitions == null) {
+            buildIndexes();
+        }
+        return partitions;
+    }
+
+    /**
+     * Builds the ID index and the status partitions. A mapped list is read
+     * without materializing its capsules; of duplicate IDs the first one wins.
+     */
+    private void buildIndexes() {
+        int[] ids;
+        CapsuleStatus[] statuses;
+        if (capsules instanceof MappedCapsuleList mapped) {
+            ids = mapped.ids();
+            statuses = mapped.statuses();
+        } else {
+            ids = capsules.stream().mapToInt(Capsule::getId).toArray();
+            statuses = capsules.stream().map(Capsule::getStatus).toArray(CapsuleStatus[]::new);
+        }
+        CapsuleIdIndex index = new CapsuleIdIndex(ids.length);
+        CapsuleStatusPartitions byStatus = new CapsuleStatusPartitions(ids.length);
+        CapsuleIdAllocator allocator = new CapsuleIdAllocator();
+        for (int i = 0; i < ids.length; i++) {
+            int id = ids[i];
+            if (index.get(id) == CapsuleIdIndex.MISSING) {
+                index.put(id, i);
+                byStatus.put(id, statuses[i]);
+                allocator.markUsed(id);
+            }
+        }
+        positions = index;
+        partitions = byStatus;
+        idAllocator = allocator;
+    }
+
+    /**
+     * Reserves the lowest capsule ID that is neither used by a capsule nor
+     * already reserved. Safe to call concurrently; only building the allocator
+     * on first use takes the repository lock.
+     *
+     * @return The reserved ID.
+     */
+    public int allocateCapsuleId() {
+        CapsuleIdAllocator allocator = idAllocator;
+        if (allocator == null) {
+            synchronized (this) {
+                positions();
+                allocator = idAllocator;
+            }
+        }
+        return allocator.allocate();
+    }
+
+    /**
+     * Returns a reserved ID that was not used for a capsule after all, so it
+     * can be allocated again. IDs of existing capsules stay in use.
+     *
+     * @param id The reserved ID.
+     */
+    public synchronized void releaseCapsuleId(int id) {
+        if (indexOf(id) < 0) {
+            idAllocator.release(id);
+        }
+    }
+
+    /**
+     * Resolves the capsules of one status partition in list order. The
+     * partition's own order changes whenever a capsule leaves it, so its
+     * positions are sorted, which costs O(k log k) for k capsules.
+     *
+     * @param status The status.
+     * @return The capsules with the status, in list order.
+     */
+    private List<Capsule> withStatus(CapsuleStatus status) {
+        int[] ids = partitions().ids(status);
+        CapsuleIdIndex index = positions();
+        int[] order = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            order[i] = index.get(ids[i]);
+        }
+        Arrays.sort(order);
+        Capsule[] result = new Capsule[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = capsules.get(order[i]);
+        }
+        return List.of(result);
+    }
+
+    /**
+     * Resolves capsule IDs taken from an index.
+     *
+     * @param ids The IDs of existing capsules.
+     * @return The capsules in the same order.
+     */
+    private List<Capsule> resolve(int[] ids) {
+        CapsuleIdIndex index = positions();
+        Capsule[] result = new Capsule[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            result[i] = capsules.get(index.get(ids[i]));
+        }
+        return List.of(result);
+    }
+
+    /** @return The unlock-date index, built on first use. */
+    private CapsuleDateIndex unlockDates() {
+        if (unlockDates == null) {
+            CapsuleDateIndex index = new CapsuleDateIndex(capsules.size());
+            if (capsules instanceof MappedCapsuleList mapped) {
+                mapped.indexDates(BinaryCapsuleStore.UNLOCK_DATE, index);
+            } else {
+                for (Capsule capsule : capsules) {
+                    index.put(capsule.getId(), capsule.getUnlockDate());
+                }
+            }
+            unlockDates = index;
+        }
+        return unlockDates;
+    }
+
+    /**
+     * @param key The sort key.
+     * @return The ordered index of the key, built on first use.
+     */
+    private CapsuleOrderedIndex sortIndex(CapsuleSortKey key) {
+        return switch (key) {
+            case TITLE -> titles();
+            case UNLOCK_DATE -> unlockDates();
+            case CREATED_DATE -> createdDates();
+            case CATEGORY -> categories();
+        };
+    }
+
+    /** @return The title index, built on first use. */
+    private CapsuleTextIndex titles() {
+        if (titles == null) {
+            CapsuleTextIndex index = new CapsuleTextIndex(capsules.size());
+            for (Capsule capsule : capsules) {
+                index.put(capsule.getId(), capsule.getTitle());
+            }
+            titles = index;
+        }
+        return titles;
+    }
+
+    /** @return The creation-date index, built on first use. */
+    private CapsuleDateIndex createdDates() {
+        if (createdDates == null) {
+            CapsuleDateIndex index = new CapsuleDateIndex(capsules.size());
+            if (capsules instanceof MappedCapsuleList mapped) {
+                mapped.indexDates(BinaryCapsuleStore.DATE_CREATED, index);
+            } else {
+                for (Capsule capsule : capsules) {
+                    index.put(capsule.getId(), capsule.getDateCreated());
+                }
+            }
+            createdDates = index;
+        }
+        return createdDates;
+    }
+
+    /** @return The category index, built on first use. */
+    private CapsuleTextIndex categories() {
+        if (categories == null) {
+            CapsuleTextIndex index = new CapsuleTextIndex(capsules.size());
+            for (Capsule capsule : capsules) {
+                index.put(capsule.getId(), capsule.getCategory());
+            }
+            categories = index;
+        }
+        return categories;
+    }
+
+    /** @return The deletion-time queue of trashed capsules, built from the trash partition on first use. */
+    private CapsuleDateIndex trashQueue() {
+        if (trashQueue == null) {
+            CapsuleDateIndex queue = new CapsuleDateIndex(partitions().size(CapsuleStatus.DELETED));
+            for (Capsule capsule : withStatus(CapsuleStatus.DELETED)) {
+                queue.put(capsule.getId(), capsule.getDeletedAt());
+            }
+            trashQueue = queue;
+        }
+        return trashQueue;
+    }
+
+    /**
+     * Files a capsule under its current status and, if it is trashed, queues
+     * it by deletion time.
+     */
+    private void statusChanged(Capsule capsule) {
+        partitions.put(capsule.getId(), capsule.getStatus());
+        if (trashQueue != null) {
+            if (capsule.getStatus() == CapsuleStatus.DELETED) {
+                trashQueue.put(capsule.getId(), capsule.getDeletedAt());
+            } else {
+                trashQueue.remove(capsule.getId());
+            }
+        }
+    }
+
+    /**
+     * Replaces the capsule with the same ID, or appends the capsule if there is none.
+     */
+    private void upsert(Capsule capsule) {
+        int index = indexOf(capsule.getId());
+        if (index >= 0) {
+            capsules.set(index, capsule);
+        } else {
+            positions.put(capsule.getId(), capsules.size());
+            capsules.add(capsule);
+            idAllocator.markUsed(capsule.getId());
+        }
+        statusChanged(capsule);
+        if (contents != null) {
+            contents.put(capsule.getId(), CapsuleContentIndex.hash(capsule));
+        }
+        if (unlockDates != null) {
+            unlockDates.put(capsule.getId(), capsule.getUnlockDate());
+        }
+        if (titles != null) {
+            titles.put(capsule.getId(), capsule.getTitle());
+        }
+        if (createdDates != null) {
+            createdDates.put(capsule.getId(), capsule.getDateCreated());
+        }
+        if (categories != null) {
+            categories.put(capsule.getId(), capsule.getCategory());
+        }
+    }
+
+    /**
+     * Removes the capsule at a position by moving the last capsule into its place.
+     *
+     * @param index The position of the capsule to remove.
+     */
+    private void removeAt(int index) {
+        int last = capsules.size() - 1;
+        int id = capsules.get(index).getId();
+        positions.remove(id);
+        partitions.remove(id);
+        idAllocator.release(id);
+        if (unlockDates != null) {
+            unlockDates.remove(id);
+        }
+        if (trashQueue != null) {
+            trashQueue.remove(id);
+        }
+        if (contents != null) {
+            contents.remove(id);
+        }
+        if (titles != null) {
+            titles.remove(id);
+        }
+        if (createdDates != null) {
+            createdDates.remove(id);
+        }
+        if (categories != null) {
+            categories.remove(id);
+        }
+        if (index != last) {
+            Capsule moved = capsules.get(last);
+            capsules.set(index, moved);
+            positions.put(moved.getId(), index);
+        }
+        capsules.remove(last);
     }
 
     /**
      * Adds a new capsule to the repository and saves it to storage.
+     * A capsule with the same ID is replaced.
      *
      * @param capsule The capsule to be added.
      */
-    public void addCapsule(Capsule capsule) {
-        capsules.add(capsule);
-        saveCapsulesToFile();
+    public synchronized void addCapsule(Capsule capsule) {
+        upsert(capsule);
+        persist(capsule, () -> store.capsuleAdded(capsule));
+    }
+
+    /**
+     * Persists the current state of a capsule that was changed in place
+     * (e.g. after {@link Capsule#openCapsule()}).
+     *
+     * @param capsule The changed capsule.
+     */
+    public synchronized void updateCapsule(Capsule capsule) {
+        upsert(capsule);
+        persist(capsule, () -> store.capsuleUpdated(capsule));
     }
 
     /**
@@ -101,13 +707,13 @@ public class CapsuleRepository {
      *
      * @param id The ID of the capsule to delete.
      */
-    public void deleteCapsule(int id) {
-        for (Capsule c : capsules) {
-            if (c.getId() == id) {
-                c.deleteCapsule();
-                saveCapsulesToFile();
-                return;
-            }
+    public synchronized void deleteCapsule(int id) {
+        int index = indexOf(id);
+        if (index >= 0) {
+            Capsule c = capsules.get(index);
+            c.deleteCapsule();
+            statusChanged(c);
+            persist(c, () -> store.capsuleUpdated(c));
         }
     }
 
@@ -116,9 +722,12 @@ public class CapsuleRepository {
      *
      * @param id The ID of the capsule to be permanently deleted.
      */
-    public void permanentlyDeleteCapsule(int id) {
-        capsules.removeIf(capsule -> capsule.getId() == id);
-        saveCapsulesToFile();
+    public synchronized void permanentlyDeleteCapsule(int id) {
+        int index = indexOf(id);
+        if (index >= 0) {
+            removeAt(index);
+            persistRemoval(id);
+        }
     }
 
     /**
@@ -126,99 +735,393 @@ public class CapsuleRepository {
      *
      * @param id The ID of the capsule to restore.
      */
-    public void restoreCapsule(int id) {
-        for (Capsule c : capsules) {
-            if (c.getId() == id) {
-                c.restoreCapsule();
-                saveCapsulesToFile();
-                return;
-            }
+    public synchronized void restoreCapsule(int id) {
+        int index = indexOf(id);
+        if (index >= 0) {
+            Capsule c = capsules.get(index);
+            c.restoreCapsule();
+            statusChanged(c);
+            persist(c, () -> store.capsuleUpdated(c));
         }
     }
 
     /**
      * Retrieves all capsules that are currently in the trash.
      *
-     * @return A list of deleted (trashed) capsules.
+     * @return A list of deleted (trashed) capsules, in list order.
      */
-    public List<Capsule> getDeletedCapsules() {
-        return capsules.stream()
-                .filter(capsule -> capsule.getStatus() == CapsuleStatus.DELETED)
-                .toList();
+    public synchronized List<Capsule> getDeletedCapsules() {
+        return withStatus(CapsuleStatus.DELETED);
+    }
+
+    /**
+     * Retrieves all capsules that are still locked.
+     *
+     * @return A list of locked capsules that are not deleted, in list order.
+     */
+    public synchronized List<Capsule> getLockedCapsules() {
+        return withStatus(CapsuleStatus.LOCKED);
+    }
+
+    /**
+     * Retrieves the capsules (including trashed ones) whose unlock date lies
+     * strictly between two dates, ordered by unlock date.
+     *
+     * @param from The exclusive lower bound.
+     * @param to   The exclusive upper bound.
+     * @return The matching capsules.
+     */
+    public synchronized List<Capsule> capsulesUnlockingBetween(LocalDateTime from, LocalDateTime to) {
+        return resolve(unlockDates().idsBetween(from, to));
+    }
+
+    /**
+     * Retrieves all capsules (including trashed ones) sorted by a key, by
+     * walking the key's ordered index. Capsules with equal keys are ordered
+     * by ID, and in reverse when descending.
+     *
+     * @param key        The sort key.
+     * @param descending Whether to sort from the largest key down.
+     * @return The sorted capsules.
+     */
+    public synchronized List<Capsule> getSortedCapsules(CapsuleSortKey key, boolean descending) {
+        return resolve(sortIndex(key).ids(descending));
+    }
+
+    /**
+     * Retrieves one page of the capsules sorted by a key, following a cursor
+     * instead of an offset: the page starts right after the given capsule's
+     * position in the sort order, found in O(log n) from the key values the
+     * capsule carries. Only the capsules of the page are resolved, and pages
+     * stay consistent when capsules before the cursor are added or removed.
+     *
+     * @param key        The sort key.
+     * @param descending Whether to sort from the largest key down.
+     * @param after      The last capsule of the previous page, or {@code null} for the first page.
+     * @param limit      The maximum number of capsules on the page.
+     * @return The capsules of the page; empty after the last page.
+     */
+    public synchronized List<Capsule> getSortedPage(CapsuleSortKey key, boolean descending, Capsule after, int limit) {
+        int afterId = after == null ? 0 : after.getId();
+        int[] ids = switch (key) {
+            case TITLE -> titles().idsAfter(after == null ? null : after.getTitle(), afterId, limit, descending);
+            case UNLOCK_DATE ->
+                    unlockDates().idsAfter(after == null ? null : after.getUnlockDate(), afterId, limit, descending);
+            case CREATED_DATE ->
+                    createdDates().idsAfter(after == null ? null : after.getDateCreated(), afterId, limit, descending);
+            case CATEGORY ->
+                    categories().idsAfter(after == null ? null : after.getCategory(), afterId, limit, descending);
+        };
+        return resolve(ids);
+    }
+
+    /**
+     * @param key The sort key.
+     * @return Whether the sorted view of the key is already built and maintained,
+     *         so reading it does not cost a full build.
+     */
+    public synchronized boolean hasSortedView(CapsuleSortKey key) {
+        return switch (key) {
+            case TITLE -> titles != null;
+            case UNLOCK_DATE -> unlockDates != null;
+            case CREATED_DATE -> createdDates != null;
+            case CATEGORY -> categories != null;
+        };
+    }
+
+    /**
+     * Runs a query. Candidates come from the access path that {@link #explain(CapsuleQuery)}
+     * describes and are then checked against all conditions of the query.
+     *
+     * @param query The query.
+     * @return The matching capsules, sorted if the query asks for it.
+     */
+    public synchronized List<Capsule> query(CapsuleQuery query) {
+        QueryPlan plan = plan(query);
+        int limit = query.limit();
+        if (limit == 0) {
+            return List.of();
+        }
+        List<Capsule> matched = new ArrayList<>();
+        if (plan.sortedWalk) {
+            CapsuleIdIndex index = positions();
+            sortIndex(query.sortKey()).walk(query.descending(), id -> {
+                Capsule capsule = capsules.get(index.get(id));
+                if (query.matches(capsule)) {
+                    matched.add(capsule);
+                }
+                return matched.size() < limit;
+            });
+            return List.copyOf(matched);
+        }
+        for (Capsule capsule : plan.candidates == null ? capsules : resolve(plan.candidates.get())) {
+            if (query.matches(capsule)) {
+                matched.add(capsule);
+            }
+        }
+        if (query.sortKey() != null) {
+            if (limit < matched.size()) {
+                return TopKSelection.select(matched, query.sortKey().comparator(query.descending()), null, limit);
+            }
+            return List.copyOf(CapsuleKeySort.sort(matched, query.sortKey(), query.descending()));
+        }
+        return List.copyOf(limit < matched.size() ? matched.subList(0, limit) : matched);
+    }
+
+    /**
+     * Counts the capsules a query matches, ignoring its sort. When the chosen
+     * index answers the only condition, the count comes from the index alone.
+     *
+     * @param query The query.
+     * @return The number of matching capsules, at most the query's limit.
+     */
+    public synchronized int count(CapsuleQuery query) {
+        QueryPlan plan = plan(query);
+        List<String> conditions = query.conditions();
+        if (conditions.isEmpty() || (plan.covered != null && conditions.size() == 1)) {
+            return Math.min(plan.estimate, query.limit());
+        }
+        int count = 0;
+        for (Capsule capsule : plan.candidates == null ? capsules : resolve(plan.candidates.get())) {
+            if (count == query.limit()) {
+                break;
+            }
+            if (query.matches(capsule)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Describes how {@link #query(CapsuleQuery)} would run a query: the access
+     * path with its number of candidate capsules, the conditions checked on
+     * each candidate, and how results are sorted and limited. Only indexes
+     * that are already built are considered; status partitions always are.
+     *
+     * @param query The query.
+     * @return A one-line plan, e.g.
+     *         {@code status partition LOCKED (120 candidates) -> filter [color] -> top 10 by TITLE}.
+     */
+    public synchronized String explain(CapsuleQuery query) {
+        QueryPlan plan = plan(query);
+        StringBuilder explanation = new StringBuilder(plan.access);
+        if (!plan.sortedWalk) {
+            explanation.append(" (").append(plan.estimate).append(" candidates)");
+        }
+        List<String> residual = new ArrayList<>(query.conditions());
+        residual.remove(plan.covered);
+        if (!residual.isEmpty()) {
+            explanation.append(" -> filter ").append(residual);
+        }
+        String direction = query.descending() ? " descending" : "";
+        if (plan.sortedWalk) {
+            explanation.append(" -> stop after ").append(query.limit());
+        } else if (query.sortKey() != null && query.limit() < Integer.MAX_VALUE) {
+            explanation.append(" -> top ").append(query.limit()).append(" by ").append(query.sortKey()).append(direction);
+        } else if (query.sortKey() != null) {
+            explanation.append(" -> sort by ").append(query.sortKey()).append(direction);
+        } else if (query.limit() < Integer.MAX_VALUE) {
+            explanation.append(" -> limit ").append(query.limit());
+        }
+        return explanation.toString();
+    }
+
+    /**
+     * Access path chosen for a query.
+     */
+    private static final class QueryPlan {
+        final String access;
+        /** The condition the access path satisfies by itself, or {@code null}. */
+        final String covered;
+        /** The exact number of candidates the access path yields. */
+        final int estimate;
+        /** Reads the candidate IDs, or {@code null} to scan all capsules. */
+        final Supplier<int[]> candidates;
+        /** Whether candidates are read in sort order from a sorted view until the limit is reached. */
+        final boolean sortedWalk;
+
+        QueryPlan(String access, String covered, int estimate, Supplier<int[]> candidates, boolean sortedWalk) {
+            this.access = access;
+            this.covered = covered;
+            this.estimate = estimate;
+            this.candidates = candidates;
+            this.sortedWalk = sortedWalk;
+        }
+    }
+
+    /**
+     * Picks the access path yielding the fewest candidates. Each index reports
+     * its exact number of candidates in O(log n) (status partitions in O(1)).
+     * Without a selective index, a sorted and limited query walks the sorted
+     * view of its key, if built, so it can stop early.
+     */
+    private QueryPlan plan(CapsuleQuery query) {
+        QueryPlan plan = new QueryPlan("full scan", null, capsules.size(), null, false);
+        CapsuleStatus status = query.status();
+        if (status != null) {
+            plan = cheaper(plan, new QueryPlan("status partition " + status, "status",
+                    partitions().size(status), () -> partitions.ids(status), false));
+        }
+        LocalDateTime unlockFrom = query.unlockFrom();
+        LocalDateTime unlockTo = query.unlockTo();
+        if (unlockFrom != null && unlockDates != null) {
+            plan = cheaper(plan, new QueryPlan("unlock-date index range", "unlock date",
+                    unlockDates.countBetween(unlockFrom, unlockTo), () -> unlockDates.idsBetween(unlockFrom, unlockTo),
+                    false));
+        }
+        LocalDateTime createdFrom = query.createdFrom();
+        LocalDateTime createdTo = query.createdTo();
+        if (createdFrom != null && createdDates != null) {
+            plan = cheaper(plan, new QueryPlan("created-date index range", "created date",
+                    createdDates.countBetween(createdFrom, createdTo),
+                    () -> createdDates.idsBetween(createdFrom, createdTo), false));
+        }
+        String category = query.category();
+        if (category != null && categories != null) {
+            plan = cheaper(plan, new QueryPlan("category index lookup", "category",
+                    categories.countEqual(category), () -> categories.idsEqual(category), false));
+        }
+        String prefix = query.titlePrefix();
+        if (prefix != null && titles != null) {
+            plan = cheaper(plan, new QueryPlan("title index prefix range", "title prefix",
+                    titles.countWithPrefix(prefix), () -> titles.idsWithPrefix(prefix), false));
+        }
+        CapsuleSortKey key = query.sortKey();
+        if (plan.candidates == null && key != null && query.limit() < capsules.size() && hasSortedView(key)) {
+            plan = new QueryPlan("sorted view walk by " + key + (query.descending() ? " descending" : ""), null,
+                    capsules.size(), null, true);
+        }
+        return plan;
+    }
+
+    private static QueryPlan cheaper(QueryPlan current, QueryPlan candidate) {
+        return candidate.estimate < current.estimate ? candidate : current;
     }
 
     /**
-     * Removes permanently deleted capsules that have been in trash for more than 15 days.
+     * @return The number of capsules, including trashed ones.
      */
-    public void cleanupOldDeletedCapsules() {
-        LocalDateTime threshold = LocalDateTime.now().minusDays(15);
-        capsules.removeIf(capsule -> capsule.getStatus() == CapsuleStatus.DELETED && capsule.getDeletedAt().isBefore(threshold));
-        saveCapsulesToFile();
+    public synchronized int getCapsuleCount() {
+        return capsules.size();
     }
 
     /**
-     * Checks if a capsule with the same title and message already exists.
+     * Counts the capsules (including trashed ones) whose unlock date lies
+     * strictly between two dates, in O(log n).
+     *
+     * @param from The exclusive lower bound.
+     * @param to   The exclusive upper bound.
+     * @return The number of matching capsules.
+     */
+    public synchronized int countUnlockingBetween(LocalDateTime from, LocalDateTime to) {
+        return unlockDates().countBetween(from, to);
+    }
+
+    /**
+     * Permanently removes capsules that have been in the trash for longer than
+     * {@link #TRASH_RETENTION}. Only the expired head of the deletion-time
+     * queue is visited, and nothing is persisted if no capsule expired.
+     *
+     * @return The number of removed capsules.
+     */
+    public synchronized int cleanupOldDeletedCapsules() {
+        int[] expired = trashQueue().idsBefore(LocalDateTime.now().minus(TRASH_RETENTION));
+        for (int id : expired) {
+            removeAt(indexOf(id));
+            persistRemoval(id);
+        }
+        return expired.length;
+    }
+
+    /**
+     * Runs {@link #cleanupOldDeletedCapsules()} now and then periodically on the
+     * background maintenance thread, until the repository is closed.
+     *
+     * @param period The time between cleanups.
+     */
+    public void scheduleTrashCleanup(Duration period) {
+        checkpointer().schedulePeriodic(this::cleanupOldDeletedCapsules, period);
+    }
+
+    /**
+     * Checks if a capsule that is not in the trash has the same title and message,
+     * ignoring case and surrounding whitespace. Locked capsules are compared by
+     * their actual message, not the placeholder shown while they are locked.
      *
      * @param title The title to check
      * @param message The message to check
      * @return true if a similar capsule exists, false otherwise
      */
-    public boolean doesSimilarCapsuleExist(String title, String message) {
-        return capsules.stream()
-                .filter(capsule -> capsule.getStatus() != CapsuleStatus.DELETED)
-                .anyMatch(capsule -> 
-                    capsule.getTitle().equalsIgnoreCase(title.trim()) &&
-                    capsule.getMessage().equalsIgnoreCase(message.trim())
-                );
+    public synchronized boolean doesSimilarCapsuleExist(String title, String message) {
+        for (int id : contents().candidates(CapsuleContentIndex.hash(title, message))) {
+            Capsule capsule = capsules.get(indexOf(id));
+            if (capsule.getStatus() != CapsuleStatus.DELETED
+                    && similar(capsule.getTitle(), title) && similar(capsule.getRawMessage(), message)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Retrieves all archived (opened) capsules.
-     *
-     * @return A list of opened capsules that are not deleted.
+     * @return The content index, built on first use. Message hashes come from
+     * the storage engine where it keeps them, so no message body is read.
      */
-    public List<Capsule> getArchivedCapsules() {
-        return capsules.stream()
-                .filter(capsule -> capsule.getStatus() == CapsuleStatus.OPENED)
-                .toList();
+    private CapsuleContentIndex contents() {
+        if (contents == null) {
+            CapsuleContentIndex index = new CapsuleContentIndex(capsules.size());
+            if (capsules instanceof MappedCapsuleList mapped) {
+                mapped.indexContents(index);
+            } else {
+                for (Capsule capsule : capsules) {
+                    index.put(capsule.getId(), CapsuleContentIndex.hash(capsule));
+                }
+            }
+            contents = index;
+        }
+        return contents;
     }
 
     /**
-     * Removes all capsules from the repository.
+     * @return Whether two texts are equal ignoring case and surrounding whitespace.
      */
-    public void clearAllCapsules() {
-        capsules.clear();
-        saveCapsulesToFile();  // Save the empty state to file
+    private static boolean similar(String stored, String candidate) {
+        if (stored == null || candidate == null) {
+            return stored == candidate;
+        }
+        return stored.trim().equalsIgnoreCase(candidate.trim());
     }
-}
 
-/**
- * A custom adapter to handle serialization and deserialization of {@link LocalDateTime} in JSON.
- */
-class LocalDateTimeAdapter implements JsonSerializer<LocalDateTime>, JsonDeserializer<LocalDateTime> {
     /**
-     * Serializes a LocalDateTime object into JSON format.
+     * Retrieves all archived (opened) capsules.
      *
-     * @param dateTime The LocalDateTime object to serialize.
-     * @param type     The type of the object.
-     * @param context  The serialization context.
-     * @return The serialized JSON element.
+     * @return A list of opened capsules that are not deleted, in list order.
      */
-    @Override
-    public JsonElement serialize(LocalDateTime dateTime, Type type, JsonSerializationContext context) {
-        return new JsonPrimitive(dateTime.toString());
+    public synchronized List<Capsule> getArchivedCapsules() {
+        return withStatus(CapsuleStatus.OPENED);
     }
 
     /**
-     * Deserializes a JSON element into a LocalDateTime object.
-     *
-     * @param json     The JSON element to deserialize.
-     * @param type     The type of the object.
-     * @param context  The deserialization context.
-     * @return The deserialized LocalDateTime object.
+     * Removes all capsules from the repository.
      */
-    @Override
-    public LocalDateTime deserialize(JsonElement json, Type type, JsonDeserializationContext context) {
-        return LocalDateTime.parse(json.getAsString());
+    public synchronized void clearAllCapsules() {
+        capsules.clear();
+        positions = null;
+        partitions = null;
+        idAllocator = null;
+        unlockDates = null;
+        trashQueue = null;
+        contents = null;
+        titles = null;
+        createdDates = null;
+        categories = null;
+        if (writeDelay.isZero()) {
+            persist(store::cleared);
+        } else {
+            pendingWrites.clear();
+            clearPending = true;
+            writer().markDirty();
+        }
     }
 }
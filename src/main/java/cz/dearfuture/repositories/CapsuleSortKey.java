@@ -0,0 +1,34 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.Capsule;
+
+import java.util.Comparator;
+
+/**
+ * Capsule fields the repository keeps sorted views of.
+ * Texts are ordered ignoring case; equal keys are ordered by capsule ID.
+ */
+public enum CapsuleSortKey {
+    TITLE,        // Title, ignoring case
+    UNLOCK_DATE,  // Unlock date
+    CREATED_DATE, // Creation date
+    CATEGORY;     // Category, ignoring case
+
+    /**
+     * Returns the order of the key's sorted view as a comparator, for sorting
+     * capsules that are not read from the view.
+     *
+     * @param descending Whether to order from the largest key down.
+     * @return A total order of capsules.
+     */
+    public Comparator<Capsule> comparator(boolean descending) {
+        Comparator<Capsule> comparator = switch (this) {
+            case TITLE -> Comparator.comparing(Capsule::getTitle, String.CASE_INSENSITIVE_ORDER);
+            case UNLOCK_DATE -> Comparator.comparing(Capsule::getUnlockDate);
+            case CREATED_DATE -> Comparator.comparing(Capsule::getDateCreated);
+            case CATEGORY -> Comparator.comparing(Capsule::getCategory, String.CASE_INSENSITIVE_ORDER);
+        };
+        comparator = comparator.thenComparingInt(Capsule::getId);
+        return descending ? comparator.reversed() : comparator;
+    }
+}
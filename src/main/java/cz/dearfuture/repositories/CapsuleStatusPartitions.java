@@ -0,0 +1,92 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.CapsuleStatus;
+
+import java.util.Arrays;
+
+/**
+ * Capsule IDs partitioned by {@link CapsuleStatus}.
+ * <p>
+ * Each partition is a dense array of IDs, and a {@link CapsuleIdIndex} records
+ * the partition and slot of every ID, so moving a capsule between partitions
+ * and removing it take constant time, and listing a partition takes time
+ * proportional to its size. Removal moves the last ID of the partition into
+ * the freed slot, so a partition is not kept in any particular order.
+ */
+final class CapsuleStatusPartitions {
+    private static final CapsuleStatus[] STATUSES = CapsuleStatus.values();
+
+    private final int[][] ids = new int[STATUSES.length][];
+    private final int[] sizes = new int[STATUSES.length];
+    /** Slot times the number of statuses plus the status ordinal, by ID. */
+    private final CapsuleIdIndex slots;
+
+    /**
+     * @param expectedSize The number of capsules to make room for without resizing.
+     */
+    CapsuleStatusPartitions(int expectedSize) {
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = new int[16];
+        }
+        slots = new CapsuleIdIndex(expectedSize);
+    }
+
+    /**
+     * Files a capsule under its status, moving it out of its previous partition.
+     *
+     * @param id     The capsule ID.
+     * @param status The current status of the capsule.
+     */
+    void put(int id, CapsuleStatus status) {
+        int entry = slots.get(id);
+        if (entry != CapsuleIdIndex.MISSING) {
+            if (entry % STATUSES.length == status.ordinal()) {
+                return;
+            }
+            remove(id);
+        }
+        int partition = status.ordinal();
+        int slot = sizes[partition]++;
+        if (slot == ids[partition].length) {
+            ids[partition] = Arrays.copyOf(ids[partition], slot + (slot >> 1));
+        }
+        ids[partition][slot] = id;
+        slots.put(id, slot * STATUSES.length + partition);
+    }
+
+    /**
+     * Removes a capsule from its partition.
+     *
+     * @param id The capsule ID.
+     */
+    void remove(int id) {
+        int entry = slots.remove(id);
+        if (entry == CapsuleIdIndex.MISSING) {
+            return;
+        }
+        int partition = entry % STATUSES.length;
+        int slot = entry / STATUSES.length;
+        int last = --sizes[partition];
+        if (slot != last) {
+            int moved = ids[partition][last];
+            ids[partition][slot] = moved;
+            slots.put(moved, slot * STATUSES.length + partition);
+        }
+    }
+
+    /**
+     * @param status The status.
+     * @return The IDs of all capsules with the status.
+     */
+    int[] ids(CapsuleStatus status) {
+        return Arrays.copyOf(ids[status.ordinal()], sizes[status.ordinal()]);
+    }
+
+    /**
+     * @param status The status.
+     * @return The number of capsules with the status.
+     */
+    int size(CapsuleStatus status) {
+        return sizes[status.ordinal()];
+    }
+}
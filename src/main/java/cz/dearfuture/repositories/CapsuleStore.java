@@ -0,0 +1,108 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.Capsule;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Storage engine used by {@link CapsuleRepository}.
+ * <p>
+ * The repository keeps capsules in memory and reports every mutation to its
+ * store, which decides how to persist it (e.g. as a change log record).
+ * Periodically the repository hands the store a full snapshot so it can
+ * compact whatever incremental records the snapshot covers.
+ * <p>
+ * Mutation callbacks and {@link #checkpointMark()} are always called while the
+ * repository lock is held; {@link #checkpoint(List, long)} is called without it,
+ * concurrently with further mutation callbacks.
+ */
+public interface CapsuleStore extends Closeable {
+
+    /**
+     * Opens the stored capsules as the repository's working list. Engines may
+     * return a list that reads capsules lazily; the default loads them all
+     * with {@link #load(List)}.
+     *
+     * @return A mutable list of the stored capsules, in storage order.
+     * @throws IOException If the stored data cannot be read.
+     */
+    default List<Capsule> open() throws IOException {
+        List<Capsule> capsules = new ArrayList<>();
+        load(capsules);
+        return capsules;
+    }
+
+    /**
+     * Loads all stored capsules into the given list, in storage order.
+     *
+     * @param target The list receiving the capsules.
+     * @throws IOException If the stored data cannot be read.
+     */
+    void load(List<Capsule> target) throws IOException;
+
+    /**
+     * Persists a newly added capsule (replacing a stored capsule with the same ID).
+     *
+     * @param capsule The added capsule.
+     * @throws IOException If the change cannot be persisted.
+     */
+    void capsuleAdded(Capsule capsule) throws IOException;
+
+    /**
+     * Persists the new state of an existing capsule.
+     *
+     * @param capsule The changed capsule.
+     * @throws IOException If the change cannot be persisted.
+     */
+    void capsuleUpdated(Capsule capsule) throws IOException;
+
+    /**
+     * Persists the permanent removal of a capsule.
+     *
+     * @param id The ID of the removed capsule.
+     * @throws IOException If the change cannot be persisted.
+     */
+    void capsuleRemoved(int id) throws IOException;
+
+    /**
+     * Persists the removal of all capsules.
+     *
+     * @throws IOException If the change cannot be persisted.
+     */
+    void cleared() throws IOException;
+
+    /**
+     * Forces all changes persisted so far to the storage device. Until then they
+     * may only be in the operating system's cache; checkpoints are always forced.
+     *
+     * @throws IOException If the changes cannot be forced.
+     */
+    default void sync() throws IOException {
+    }
+
+    /**
+     * @return The number of bytes a checkpoint would compact, e.g. change records not
+     * yet covered by a snapshot, or {@code 0} if a checkpoint is not worthwhile.
+     */
+    long pendingBytes();
+
+    /**
+     * Marks the point up to which a snapshot taken now covers the incremental records.
+     *
+     * @return An opaque marker to pass to {@link #checkpoint(List, long)}.
+     * @throws IOException If the marker cannot be determined.
+     */
+    long checkpointMark() throws IOException;
+
+    /**
+     * Writes a full snapshot and discards the incremental records it covers.
+     *
+     * @param snapshot The capsules at the time of the mark.
+     * @param mark     The marker returned by {@link #checkpointMark()}.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    void checkpoint(List<Capsule> snapshot, long mark) throws IOException;
+}
@@ -0,0 +1,84 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.Capsule;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Factory for the available {@link CapsuleStore} engines.
+ */
+public final class CapsuleStores {
+    /** Pretty-printed JSON snapshot ({@code <base>.json}) plus change log. */
+    public static final String JSON = "json";
+    /** Fixed-width binary record table ({@code <base>.bin}) plus string heap. */
+    public static final String BINARY = "binary";
+    /** The binary files, memory-mapped and read lazily (for large data sets). */
+    public static final String MAPPED = "mapped";
+    /** No persistence at all. */
+    public static final String MEMORY = "memory";
+
+    private CapsuleStores() {
+    }
+
+    /**
+     * Opens a storage engine by name.
+     * <p>
+     * When a binary engine is opened for the first time and a JSON file
+     * with the same base path exists, its capsules are converted into the
+     * binary file, so switching engines keeps existing data.
+     *
+     * @param engine   One of {@link #JSON}, {@link #BINARY}, {@link #MAPPED} or {@link #MEMORY}.
+     * @param basePath The storage file path without extension (e.g. {@code data/capsules}).
+     * @return The opened store.
+     * @throws IllegalArgumentException If the engine name is unknown.
+     */
+    public static CapsuleStore open(String engine, String basePath) {
+        try {
+            return switch (engine.toLowerCase()) {
+                case JSON -> {
+                    createParentDirectories(basePath);
+                    yield new JsonCapsuleStore(basePath + ".json");
+                }
+                case BINARY, MAPPED -> {
+                    createParentDirectories(basePath);
+                    Path binary = Paths.get(basePath + ".bin");
+                    Path json = Paths.get(basePath + ".json");
+                    if (!Files.exists(binary) && Files.exists(json)) {
+                        CapsuleFileConverter.jsonToBinary(json, binary);
+                    }
+                    yield new BinaryCapsuleStore(binary.toString(), MAPPED.equalsIgnoreCase(engine));
+                }
+                case MEMORY -> new InMemoryCapsuleStore();
+                default -> throw new IllegalArgumentException("Unknown storage engine: " + engine);
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Copies all capsules of one store into another as a single snapshot.
+     *
+     * @param source The store to read from.
+     * @param target The store to write to; its previous content is replaced.
+     * @throws IOException If reading or writing fails.
+     */
+    public static void copy(CapsuleStore source, CapsuleStore target) throws IOException {
+        List<Capsule> capsules = new ArrayList<>();
+        source.load(capsules);
+        target.checkpoint(capsules, target.checkpointMark());
+    }
+
+    private static void createParentDirectories(String basePath) throws IOException {
+        Path parent = Paths.get(basePath).toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package cz.dearfuture.repositories;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Forces committed changes to disk according to a {@link Durability} policy.
+ * <p>
+ * Group sync runs on its own background thread and only forces the store
+ * when something was committed since the previous sync.
+ */
+class CapsuleSyncer {
+    private final CapsuleStore store;
+    private final Durability durability;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+    /**
+     * Creates a syncer, starting the background thread for group sync.
+     *
+     * @param store      The store to force.
+     * @param durability The policy.
+     */
+    CapsuleSyncer(CapsuleStore store, Durability durability) {
+        this.store = store;
+        this.durability = durability;
+        long millis = durability.groupInterval().toMillis();
+        if (millis > 0) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "capsule-syncer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::syncIfDirty, millis, millis, TimeUnit.MILLISECONDS);
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Called after changes were persisted; forces them now or marks them for the next group sync.
+     */
+    void committed() {
+        if (durability == Durability.EVERY_COMMIT) {
+            sync();
+        } else if (executor != null) {
+            dirty.set(true);
+        }
+    }
+
+    /**
+     * Stops the background thread and forces changes committed since the last group sync.
+     */
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            syncIfDirty();
+        }
+    }
+
+    private void syncIfDirty() {
+        if (dirty.getAndSet(false)) {
+            sync();
+        }
+    }
+
+    private void sync() {
+        try {
+            store.sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package cz.dearfuture.repositories;
+
+import java.util.Arrays;
+
+/**
+ * Ordered index of capsule IDs by a text field such as the title or category,
+ * compared with {@link String#CASE_INSENSITIVE_ORDER}. Capsules without the
+ * field are not indexed.
+ */
+final class CapsuleTextIndex extends CapsuleOrderedIndex {
+    private String[] texts;
+
+    /**
+     * @param expectedSize The number of capsules to make room for without resizing.
+     */
+    CapsuleTextIndex(int expectedSize) {
+        super(expectedSize);
+        texts = new String[capacity(expectedSize)];
+    }
+
+    /**
+     * Indexes a capsule under a text, replacing its previous text.
+     *
+     * @param id   The capsule ID.
+     * @param text The text, or {@code null} to remove the capsule.
+     */
+    void put(int id, String text) {
+        int node = nodes.get(id);
+        if (node != CapsuleIdIndex.MISSING) {
+            if (texts[node].equals(text)) {
+                return;
+            }
+            remove(id);
+            texts[node] = null;
+        }
+        if (text != null) {
+            node = allocate(id);
+            texts[node] = text;
+            insert(node);
+        }
+    }
+
+    /**
+     * Lists the capsules ordered after a cursor position.
+     *
+     * @param text       The text at the cursor, or {@code null} to start from the first capsule.
+     * @param id         The ID at the cursor.
+     * @param limit      The maximum number of capsules to list.
+     * @param descending Whether the order runs from the largest text down.
+     * @return The IDs of up to {@code limit} capsules following the cursor.
+     */
+    int[] idsAfter(String text, int id, int limit, boolean descending) {
+        return page(text == null ? null : node -> compare(node, text), id, limit, descending);
+    }
+
+    /**
+     * @param text A text.
+     * @return The IDs of the capsules indexed under the text, ignoring case.
+     */
+    int[] idsEqual(String text) {
+        return range(node -> compare(node, text) < 0, node -> compare(node, text) <= 0);
+    }
+
+    /**
+     * @param text A text.
+     * @return The number of capsules indexed under the text, ignoring case.
+     */
+    int countEqual(String text) {
+        return rank(node -> compare(node, text) <= 0) - rank(node -> compare(node, text) < 0);
+    }
+
+    /**
+     * Lists the capsules whose text starts with a prefix, ignoring case. These
+     * are contiguous in the index, because {@link String#CASE_INSENSITIVE_ORDER}
+     * folds case per character just like the prefix test.
+     *
+     * @param prefix The prefix.
+     * @return The capsule IDs in text order.
+     */
+    int[] idsWithPrefix(String prefix) {
+        return range(node -> compare(node, prefix) < 0, node -> beforePrefixEnd(node, prefix));
+    }
+
+    /**
+     * @param prefix The prefix.
+     * @return The number of capsules whose text starts with the prefix, ignoring case.
+     */
+    int countWithPrefix(String prefix) {
+        return rank(node -> beforePrefixEnd(node, prefix)) - rank(node -> compare(node, prefix) < 0);
+    }
+
+    private boolean beforePrefixEnd(int node, String prefix) {
+        return compare(node, prefix) < 0 || texts[node].regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    private int compare(int node, String text) {
+        return String.CASE_INSENSITIVE_ORDER.compare(texts[node], text);
+    }
+
+    @Override
+    int compareKeys(int a, int b) {
+        return String.CASE_INSENSITIVE_ORDER.compare(texts[a], texts[b]);
+    }
+
+    @Override
+    void growKeys(int capacity) {
+        texts = Arrays.copyOf(texts, capacity);
+    }
+}
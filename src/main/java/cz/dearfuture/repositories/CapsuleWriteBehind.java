@@ -0,0 +1,67 @@
+package cz.dearfuture.repositories;
+
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Flushes a repository's pending writes on a background thread.
+ * <p>
+ * The first mutation after a flush schedules the next one after the write
+ * delay; mutations made in the meantime only mark the repository dirty.
+ * A burst of mutations therefore costs at most one flush per delay.
+ */
+class CapsuleWriteBehind {
+    private final Runnable flush;
+    private final long delayMillis;
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Creates and starts a writer.
+     *
+     * @param flush The flush to run.
+     * @param delay Maximum time a mutation waits before it is flushed.
+     */
+    CapsuleWriteBehind(Runnable flush, Duration delay) {
+        this.flush = flush;
+        this.delayMillis = delay.toMillis();
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "capsule-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Schedules a flush unless one is already scheduled.
+     */
+    void markDirty() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.schedule(() -> {
+                    scheduled.set(false);
+                    flush.run();
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false); // Already shut down, the final flush is done by the repository
+            }
+        }
+    }
+
+    /**
+     * Stops the background thread, dropping a scheduled flush and waiting for a
+     * running one to finish. The caller is responsible for the final flush.
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package cz.dearfuture.repositories;
+
+import java.time.Duration;
+
+/**
+ * Policy for forcing persisted changes to the storage device, trading write
+ * latency for the changes a crash can lose.
+ * <p>
+ * Under every policy changes are appended to a log or written in place and
+ * snapshots are written to a temporary file, forced and atomically renamed,
+ * so a crash never leaves a half-written file behind; the policy only decides
+ * how many of the latest changes may still be in the operating system's cache.
+ */
+public final class Durability {
+    /** Never force changes; a crash of the machine can lose everything since the last checkpoint. */
+    public static final Durability NO_SYNC = new Durability("no-sync", Duration.ZERO);
+    /**
+     * Force every commit before the mutation returns; nothing acknowledged is lost.
+     * With a write-behind delay a commit happens when the repository flushes,
+     * so only changes already flushed are covered.
+     */
+    public static final Durability EVERY_COMMIT = new Durability("fsync every commit", Duration.ZERO);
+
+    private final String name;
+    private final Duration groupInterval;
+
+    private Durability(String name, Duration groupInterval) {
+        this.name = name;
+        this.groupInterval = groupInterval;
+    }
+
+    /**
+     * Forces all commits made during an interval together on a background thread,
+     * so a crash loses at most the last interval of changes.
+     *
+     * @param interval The time between forced writes.
+     * @return The group sync policy.
+     * @throws IllegalArgumentException If the interval is not positive.
+     */
+    public static Durability groupSync(Duration interval) {
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("Group sync interval must be positive: " + interval);
+        }
+        return new Durability("group fsync every " + interval.toMillis() + " ms", interval);
+    }
+
+    /** @return The time between group syncs, or {@link Duration#ZERO} if commits are not grouped. */
+    Duration groupInterval() {
+        return groupInterval;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
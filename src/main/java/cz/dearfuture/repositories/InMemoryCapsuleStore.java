@@ -0,0 +1,50 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.Capsule;
+
+import java.util.List;
+
+/**
+ * Store that persists nothing. Capsules live only in the repository's memory,
+ * which makes it suitable for tests and benchmarks.
+ */
+public class InMemoryCapsuleStore implements CapsuleStore {
+
+    @Override
+    public void load(List<Capsule> target) {
+    }
+
+    @Override
+    public void capsuleAdded(Capsule capsule) {
+    }
+
+    @Override
+    public void capsuleUpdated(Capsule capsule) {
+    }
+
+    @Override
+    public void capsuleRemoved(int id) {
+    }
+
+    @Override
+    public void cleared() {
+    }
+
+    @Override
+    public long pendingBytes() {
+        return 0;
+    }
+
+    @Override
+    public long checkpointMark() {
+        return 0;
+    }
+
+    @Override
+    public void checkpoint(List<Capsule> snapshot, long mark) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,50 @@
+package cz.dearfuture.repositories;
+
+import com.google.gson.stream.JsonReader;
+import cz.dearfuture.models.Capsule;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Stores capsules in a pretty-printed JSON file ({@code capsules.json}) plus a change log.
+ */
+public class JsonCapsuleStore extends SnapshotLogStore {
+    /** Size of the character buffer used when streaming the JSON file. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Constructs a JSON store.
+     *
+     * @param filePath The JSON file where capsules are stored.
+     */
+    public JsonCapsuleStore(String filePath) {
+        super(filePath);
+    }
+
+    /**
+     * Streams the JSON array through a {@link JsonReader}, materializing one capsule at a time.
+     */
+    @Override
+    protected void readSnapshot(FileChannel channel, Consumer<Capsule> sink) throws IOException {
+        JsonReader reader = new JsonReader(new BufferedReader(
+                Channels.newReader(channel, StandardCharsets.UTF_8), BUFFER_SIZE));
+        CapsuleJsonCodec.readArray(reader, sink);
+    }
+
+    @Override
+    protected void writeSnapshot(List<Capsule> capsules, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        CapsuleJsonCodec.writeArray(capsules, writer);
+        writer.flush();
+    }
+}
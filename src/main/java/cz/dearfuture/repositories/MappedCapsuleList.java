@@ -0,0 +1,513 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.Capsule;
+import cz.dearfuture.models.CapsuleStatus;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.Supplier;
+
+import static cz.dearfuture.repositories.BinaryCapsuleStore.*;
+
+/**
+ * Capsule list over a memory mapping of a {@link BinaryCapsuleStore} table and heap.
+ * <p>
+ * Opening the list only maps the files. A capsule is decoded from the mapping
+ * the first time its position is read and kept on the heap from then on;
+ * {@link #ids()}, {@link #statuses()}, {@link #indexOfId(int)} and the
+ * index builders read the mapped records without materializing anything. The list is fully mutable:
+ * added and replaced capsules simply live on the heap.
+ * <p>
+ * The mapping is closed deterministically by {@link #detach()} (after
+ * materializing the remaining capsules), {@link #clear()} or {@link #close()},
+ * because mapped files cannot be replaced or truncated on every platform.
+ * A checkpoint instead takes a {@link #snapshot()} that only copies the
+ * materialized capsules and afterwards {@link #remap remaps} the list onto the
+ * compacted files, so capsules that were never read stay on disk.
+ */
+final class MappedCapsuleList extends AbstractList<Capsule> implements RandomAccess {
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final BinaryCapsuleStore store;
+    private Arena arena;
+    private MemorySegment table;
+    private MemorySegment heap;
+    private int recordCount;
+    /** Whether removed records must still be skipped when positions are first resolved. */
+    private boolean skipRemoved;
+
+    /** Record index per position, {@code null} while each position equals its record index. */
+    private int[] records;
+    /** Materialized capsules per position, allocated on first access. */
+    private Capsule[] capsules;
+    private int size;
+    private int materialized;
+
+    /**
+     * Maps the given table and heap files. Message bodies are not mapped; they
+     * are read on demand through the store.
+     *
+     * @param store       The store providing message sources.
+     * @param tablePath   The record table.
+     * @param heapPath    The string heap.
+     * @param recordCount The number of records in the table, including removed ones.
+     * @param hasRemoved  Whether the table may contain removed records.
+     * @throws IOException If the files cannot be mapped.
+     */
+    MappedCapsuleList(BinaryCapsuleStore store, Path tablePath, Path heapPath, int recordCount, boolean hasRemoved)
+            throws IOException {
+        this.store = store;
+        this.arena = Arena.ofShared();
+        try (FileChannel tableChannel = FileChannel.open(tablePath, StandardOpenOption.READ);
+             FileChannel heapChannel = FileChannel.open(heapPath, StandardOpenOption.READ)) {
+            table = tableChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    HEADER_SIZE + (long) recordCount * RECORD_SIZE, arena);
+            heap = heapChannel.map(FileChannel.MapMode.READ_ONLY, 0, heapChannel.size(), arena);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+        this.recordCount = recordCount;
+        this.skipRemoved = hasRemoved;
+        this.size = recordCount;
+    }
+
+    @Override
+    public synchronized int size() {
+        resolvePositions();
+        return size;
+    }
+
+    @Override
+    public synchronized Capsule get(int index) {
+        Objects.checkIndex(index, size());
+        ensureCapacity(size);
+        Capsule capsule = capsules[index];
+        if (capsule == null) {
+            capsule = decode(records == null ? index : records[index]);
+            capsules[index] = capsule;
+            materialized++;
+        }
+        return capsule;
+    }
+
+    @Override
+    public synchronized Capsule set(int index, Capsule capsule) {
+        Capsule previous = get(index);
+        capsules[index] = capsule;
+        return previous;
+    }
+
+    @Override
+    public synchronized void add(int index, Capsule capsule) {
+        Objects.checkIndex(index, size() + 1);
+        ensureCapacity(size + 1);
+        if (index < size) {
+            detachPositions();
+            System.arraycopy(capsules, index, capsules, index + 1, size - index);
+            System.arraycopy(records, index, records, index + 1, size - index);
+        }
+        capsules[index] = capsule;
+        if (records != null) {
+            records[index] = -1;
+        }
+        size++;
+        materialized++;
+        modCount++;
+    }
+
+    @Override
+    public synchronized Capsule remove(int index) {
+        Capsule removed = get(index);
+        detachPositions();
+        System.arraycopy(capsules, index + 1, capsules, index, size - index - 1);
+        System.arraycopy(records, index + 1, records, index, size - index - 1);
+        size--;
+        capsules[size] = null;
+        materialized--;
+        modCount++;
+        return removed;
+    }
+
+    /**
+     * Removes all capsules and closes the mapping.
+     */
+    @Override
+    public synchronized void clear() {
+        closeMapping();
+        capsules = null;
+        records = null;
+        skipRemoved = false;
+        size = 0;
+        materialized = 0;
+        modCount++;
+    }
+
+    /**
+     * Finds the position of a capsule by ID without materializing capsules.
+     *
+     * @param id The capsule ID.
+     * @return The position, or -1 if there is no such capsule.
+     */
+    synchronized int indexOfId(int id) {
+        int count = size();
+        for (int i = 0; i < count; i++) {
+            if (idAt(i) == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int idAt(int index) {
+        Capsule capsule = capsules == null ? null : capsules[index];
+        return capsule != null ? capsule.getId() : table.get(INT, offset(records == null ? index : records[index]) + ID);
+    }
+
+    /**
+     * Reads the IDs of all capsules in list order without materializing them.
+     *
+     * @return The capsule IDs.
+     */
+    synchronized int[] ids() {
+        int[] ids = new int[size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = idAt(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the statuses of all capsules in list order without materializing them.
+     *
+     * @return The capsule statuses.
+     */
+    synchronized CapsuleStatus[] statuses() {
+        CapsuleStatus[] statuses = new CapsuleStatus[size()];
+        for (int i = 0; i < statuses.length; i++) {
+            Capsule capsule = capsules == null ? null : capsules[i];
+            statuses[i] = capsule != null ? capsule.getStatus() : CapsuleBinaryCodec.status(
+                    table.get(ValueLayout.JAVA_BYTE, offset(records == null ? i : records[i]) + STATUS));
+        }
+        return statuses;
+    }
+
+    /**
+     * Indexes a date field of all capsules in list order without materializing them.
+     *
+     * @param field The record offset of the date (e.g. {@code UNLOCK_DATE}).
+     * @param index The index to fill.
+     */
+    synchronized void indexDates(long field, CapsuleDateIndex index) {
+        int count = size();
+        for (int i = 0; i < count; i++) {
+            Capsule capsule = capsules == null ? null : capsules[i];
+            if (capsule != null) {
+                index.put(capsule.getId(), dateOf(capsule, field));
+                continue;
+            }
+            long base = offset(records == null ? i : records[i]);
+            long second = table.get(LONG, base + field);
+            if (second != CapsuleBinaryCodec.NO_DATE) {
+                index.put(table.get(INT, base + ID), second, table.get(INT, base + field + 8));
+            }
+        }
+    }
+
+    /**
+     * Indexes the content hashes of all capsules in list order, decoding only
+     * the titles of capsules that were not materialized.
+     *
+     * @param index The index to fill.
+     */
+    synchronized void indexContents(CapsuleContentIndex index) {
+        int count = size();
+        for (int i = 0; i < count; i++) {
+            Capsule capsule = capsules == null ? null : capsules[i];
+            if (capsule != null) {
+                index.put(capsule.getId(), CapsuleContentIndex.hash(capsule));
+                continue;
+            }
+            long base = offset(records == null ? i : records[i]);
+            index.put(table.get(INT, base + ID),
+                    CapsuleContentIndex.hash(string(base + TITLE), table.get(INT, base + MESSAGE_HASH)));
+        }
+    }
+
+    private static LocalDateTime dateOf(Capsule capsule, long field) {
+        if (field == UNLOCK_DATE) {
+            return capsule.getUnlockDate();
+        }
+        return field == DELETED_AT ? capsule.getDeletedAt() : capsule.getDateCreated();
+    }
+
+    /** @return The number of capsules decoded or added so far. */
+    synchronized int materializedCount() {
+        return materialized;
+    }
+
+    /**
+     * Materializes all remaining capsules and closes the mapping, so the files
+     * can be replaced. The list stays fully usable.
+     */
+    synchronized void detach() {
+        if (arena == null) {
+            return;
+        }
+        for (int i = 0; i < size(); i++) {
+            get(i);
+        }
+        closeMapping();
+    }
+
+    /**
+     * Takes a snapshot for a checkpoint: materialized capsules are copied, the
+     * others are referenced by their record index in the mapped table.
+     *
+     * @return The snapshot, in list order.
+     */
+    synchronized Snapshot snapshot() {
+        int count = size();
+        Capsule[] copies = new Capsule[count];
+        int[] recordIndexes = new int[count];
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            Capsule capsule = capsules == null ? null : capsules[i];
+            if (capsule != null) {
+                copies[i] = new Capsule(capsule);
+                recordIndexes[i] = -1;
+                ids[i] = capsule.getId();
+            } else {
+                recordIndexes[i] = records == null ? i : records[i];
+                ids[i] = table.get(INT, offset(recordIndexes[i]) + ID);
+            }
+        }
+        return new Snapshot(this, copies, recordIndexes, ids);
+    }
+
+    /**
+     * Closes the mapping of the current files, keeping the record index of every
+     * capsule not materialized yet. Must be followed by {@link #remap} before
+     * the list is used again, while holding the list's lock.
+     */
+    void unmap() {
+        closeMapping();
+    }
+
+    /**
+     * Maps the files a checkpoint wrote from a snapshot of this list. The
+     * snapshot is in list order, so the record a capsule had at snapshot
+     * position {@code i} is record {@code i} of the new table; capsules that are
+     * still not materialized are moved to their new record index.
+     *
+     * @param tablePath   The new record table.
+     * @param heapPath    The new string heap.
+     * @param recordCount The number of records in the new table.
+     * @param snapshot    The snapshot the table was written from, or {@code null}
+     *                    if the table was not replaced and record indexes stay valid.
+     * @throws IOException If the files cannot be mapped.
+     */
+    void remap(Path tablePath, Path heapPath, int recordCount, Snapshot snapshot) throws IOException {
+        arena = Arena.ofShared();
+        try (FileChannel tableChannel = FileChannel.open(tablePath, StandardOpenOption.READ);
+             FileChannel heapChannel = FileChannel.open(heapPath, StandardOpenOption.READ)) {
+            table = tableChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    HEADER_SIZE + (long) recordCount * RECORD_SIZE, arena);
+            heap = heapChannel.map(FileChannel.MapMode.READ_ONLY, 0, heapChannel.size(), arena);
+        } catch (IOException | RuntimeException e) {
+            closeMapping();
+            throw e;
+        }
+        if (snapshot != null) {
+            int[] moved = new int[this.recordCount];
+            Arrays.fill(moved, -1);
+            for (int i = 0; i < snapshot.records.length; i++) {
+                if (snapshot.records[i] >= 0) {
+                    moved[snapshot.records[i]] = i;
+                }
+            }
+            if (capsules == null) {
+                ensureCapacity(size);
+            }
+            detachPositions();
+            for (int i = 0; i < size; i++) {
+                if (capsules[i] == null) {
+                    records[i] = moved[records[i]];
+                }
+            }
+        }
+        this.recordCount = recordCount;
+    }
+
+    /**
+     * Closes the mapping without materializing anything; capsules that were not
+     * read yet can no longer be accessed.
+     */
+    synchronized void close() {
+        closeMapping();
+    }
+
+    private void closeMapping() {
+        if (arena != null) {
+            arena.close();
+            arena = null;
+            table = null;
+            heap = null;
+        }
+    }
+
+    /**
+     * Builds the position to record table once if removed records have to be skipped.
+     */
+    private void resolvePositions() {
+        if (!skipRemoved) {
+            return;
+        }
+        records = new int[Math.max(16, recordCount)];
+        int count = 0;
+        for (int record = 0; record < recordCount; record++) {
+            if (table.get(ValueLayout.JAVA_BYTE, offset(record) + STATUS) != REMOVED) {
+                records[count++] = record;
+            }
+        }
+        size = count;
+        skipRemoved = false;
+    }
+
+    /**
+     * Makes positions independent of record indexes before they are shifted.
+     */
+    private void detachPositions() {
+        if (records == null) {
+            records = new int[capsules.length];
+            for (int i = 0; i < size; i++) {
+                records[i] = i;
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capsules == null) {
+            capsules = new Capsule[Math.max(16, Math.max(capacity, size))];
+        } else if (capacity > capsules.length) {
+            capsules = Arrays.copyOf(capsules, Math.max(capacity, capsules.length + (capsules.length >> 1)));
+        }
+        if (records != null && records.length < capsules.length) {
+            records = Arrays.copyOf(records, capsules.length);
+        }
+    }
+
+    private static long offset(int record) {
+        return HEADER_SIZE + (long) record * RECORD_SIZE;
+    }
+
+    private Capsule decode(int record) {
+        long base = offset(record);
+        int id = table.get(INT, base + ID);
+        CapsuleStatus status = CapsuleBinaryCodec.status(table.get(ValueLayout.JAVA_BYTE, base + STATUS));
+        LocalDateTime deletedAt = date(base + DELETED_AT);
+        LocalDateTime unlockDate = date(base + UNLOCK_DATE);
+        LocalDateTime dateCreated = date(base + DATE_CREATED);
+        String title = string(base + TITLE);
+        String color = string(base + COLOR);
+        String category = string(base + CATEGORY);
+        Capsule capsule = new Capsule(id, title, null, color, unlockDate, category, dateCreated, status, deletedAt);
+        Supplier<String> message = store.messageSource(id, table.get(LONG, base + MESSAGE),
+                table.get(INT, base + MESSAGE + 8), table.get(INT, base + MESSAGE_HASH));
+        if (message != null) {
+            capsule.setMessageSource(message);
+        }
+        return capsule;
+    }
+
+    private LocalDateTime date(long field) {
+        return CapsuleBinaryCodec.date(table.get(LONG, field), table.get(INT, field + 8));
+    }
+
+    private String string(long field) {
+        int length = table.get(INT, field + 8);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        MemorySegment.copy(heap, ValueLayout.JAVA_BYTE, table.get(LONG, field), bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Capsules of the list at the time of a checkpoint. Positions that were not
+     * materialized hold the record index they had in the mapped table and are
+     * only decoded if read, which {@link BinaryCapsuleStore} avoids by copying
+     * their records directly.
+     */
+    static final class Snapshot extends AbstractList<Capsule> implements RandomAccess {
+        private final MappedCapsuleList list;
+        private final Capsule[] copies;
+        private final int[] records;
+        private final int[] ids;
+
+        private Snapshot(MappedCapsuleList list, Capsule[] copies, int[] records, int[] ids) {
+            this.list = list;
+            this.copies = copies;
+            this.records = records;
+            this.ids = ids;
+        }
+
+        /**
+         * Decodes a record that was not materialized; only valid until the
+         * checkpoint the snapshot was taken for has replaced the files.
+         */
+        @Override
+        public Capsule get(int index) {
+            Capsule copy = copies[index];
+            if (copy != null) {
+                return copy;
+            }
+            synchronized (list) {
+                return list.decode(records[index]);
+            }
+        }
+
+        @Override
+        public int size() {
+            return copies.length;
+        }
+
+        /**
+         * @param index A snapshot position.
+         * @return The record index in the mapped table, or -1 if the capsule was copied.
+         */
+        int record(int index) {
+            return records[index];
+        }
+
+        /**
+         * @param index A snapshot position.
+         * @return The ID of the capsule at that position, read without decoding it.
+         */
+        int id(int index) {
+            return ids[index];
+        }
+
+        /**
+         * @param list A mapped list.
+         * @return Whether the snapshot was taken of that list.
+         */
+        boolean isOf(MappedCapsuleList list) {
+            return this.list == list;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package cz.dearfuture.repositories;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least-recently-used cache of message bodies, keyed by their offset
+ * in the message file. Only non-empty bodies may be cached, because an empty
+ * body has the same offset as the body written after it. The bound is the
+ * approximate size of the cached strings, not the number of entries.
+ */
+final class MessageCache {
+    private final long capacityBytes;
+    private final LinkedHashMap<Long, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+
+    /**
+     * @param capacityBytes The maximum size of the cached messages, in bytes.
+     */
+    MessageCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * @param offset The message offset.
+     * @return The cached message, or {@code null} if it is not cached.
+     */
+    synchronized String get(long offset) {
+        return entries.get(offset);
+    }
+
+    /**
+     * Caches a message and evicts the least recently used ones while over capacity.
+     *
+     * @param offset  The message offset.
+     * @param message The message.
+     */
+    synchronized void put(long offset, String message) {
+        long weight = weight(message);
+        if (weight > capacityBytes) {
+            return;
+        }
+        String previous = entries.put(offset, message);
+        sizeBytes += weight - (previous == null ? 0 : weight(previous));
+        Iterator<Map.Entry<Long, String>> eldest = entries.entrySet().iterator();
+        while (sizeBytes > capacityBytes && eldest.hasNext()) {
+            sizeBytes -= weight(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    /** Removes all cached messages, e.g. when the offsets become invalid. */
+    synchronized void clear() {
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    /** @return The number of cached messages. */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static long weight(String message) {
+        return 2L * message.length();
+    }
+}
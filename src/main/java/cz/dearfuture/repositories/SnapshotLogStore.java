@@ -0,0 +1,132 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.Capsule;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Base class for stores that keep a full snapshot file plus an append-only
+ * {@link CapsuleLog} of the mutations made since that snapshot.
+ * Subclasses only decide how the snapshot itself is encoded.
+ */
+abstract class SnapshotLogStore implements CapsuleStore {
+    private final Path snapshotPath;
+    private final CapsuleLog log;
+
+    /**
+     * @param filePath The snapshot file; the change log is kept at {@code <filePath>.log}.
+     */
+    SnapshotLogStore(String filePath) {
+        this.snapshotPath = Paths.get(filePath);
+        this.log = new CapsuleLog(Paths.get(filePath + ".log"));
+    }
+
+    /**
+     * Reads all capsules of a snapshot file.
+     *
+     * @param channel The open snapshot file.
+     * @param sink    Receives each capsule as soon as it is read.
+     * @throws IOException If the snapshot cannot be read.
+     */
+    protected abstract void readSnapshot(FileChannel channel, Consumer<Capsule> sink) throws IOException;
+
+    /**
+     * Encodes a snapshot of capsules.
+     *
+     * @param capsules The capsules to write.
+     * @param out      The destination, positioned at the start of an empty file.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    protected abstract void writeSnapshot(List<Capsule> capsules, OutputStream out) throws IOException;
+
+    /**
+     * Loads the snapshot and replays the change log on top of it.
+     */
+    @Override
+    public void load(List<Capsule> target) throws IOException {
+        if (Files.exists(snapshotPath) && Files.size(snapshotPath) > 0) {
+            try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+                readSnapshot(channel, target::add);
+            }
+        }
+        log.replay(target);
+    }
+
+    @Override
+    public void capsuleAdded(Capsule capsule) throws IOException {
+        log.appendAdd(capsule);
+    }
+
+    @Override
+    public void capsuleUpdated(Capsule capsule) throws IOException {
+        log.appendUpdate(capsule);
+    }
+
+    @Override
+    public void capsuleRemoved(int id) throws IOException {
+        log.appendRemove(id);
+    }
+
+    @Override
+    public void cleared() throws IOException {
+        log.appendClear();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        log.force();
+    }
+
+    /**
+     * @return The size of the change log, or 0 if it cannot be determined.
+     */
+    @Override
+    public long pendingBytes() {
+        try {
+            return log.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public long checkpointMark() throws IOException {
+        return log.size();
+    }
+
+    /**
+     * Writes the snapshot to a temporary file, forces it to disk, atomically
+     * renames it over the snapshot file and then discards the covered log records.
+     */
+    @Override
+    public void checkpoint(List<Capsule> snapshot, long mark) throws IOException {
+        Path temp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = Channels.newOutputStream(channel);
+            writeSnapshot(snapshot, out);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.discardUpTo(mark);
+    }
+
+    /**
+     * Closes the change log.
+     */
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
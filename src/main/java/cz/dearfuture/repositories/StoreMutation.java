@@ -0,0 +1,11 @@
+package cz.dearfuture.repositories;
+
+import java.io.IOException;
+
+/**
+ * A single call to the storage engine that persists a mutation.
+ */
+@FunctionalInterface
+interface StoreMutation {
+    void run() throws IOException;
+}
@@ -2,15 +2,22 @@ package cz.dearfuture.services;
 
 import cz.dearfuture.models.Capsule;
 import cz.dearfuture.models.CapsuleStatus;
+import cz.dearfuture.repositories.CapsuleKeySort;
+import cz.dearfuture.repositories.CapsuleQuery;
 import cz.dearfuture.repositories.CapsuleRepository;
+import cz.dearfuture.repositories.CapsuleSortKey;
 import cz.dearfuture.utils.CapsuleFileUtils;
+import cz.dearfuture.utils.ComputePool;
 import cz.dearfuture.utils.MultiThreadedMergeSort;
+import cz.dearfuture.utils.TopKSelection;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 
 /**
@@ -19,58 +26,62 @@ import java.util.stream.Collectors;
  */
 public class CapsuleService {
     private final CapsuleRepository repository;
+    private final ComputePool pool;
+    private final CapsuleSortPlanner sortPlanner;
 
     /**
-     * Constructs a new CapsuleService.
+     * Constructs a new CapsuleService with a default compute pool.
      *
      * @param repository The repository responsible for capsule data storage.
      */
     public CapsuleService(CapsuleRepository repository) {
+        this(repository, new ComputePool());
+    }
+
+    /**
+     * Constructs a new CapsuleService.
+     *
+     * @param repository The repository responsible for capsule data storage.
+     * @param pool       The pool all parallel work (import, export, statistics) runs on.
+     */
+    public CapsuleService(CapsuleRepository repository, ComputePool pool) {
         this.repository = repository;
+        this.pool = pool;
+        this.sortPlanner = new CapsuleSortPlanner(pool.parallelism());
     }
 
     /**
-     * Adds a new capsule if the title and message are valid.
+     * Shuts down the compute pool. Call once when the application exits.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Adds a new capsule if the title and message are valid and no capsule
+     * outside the trash already has the same title and message.
      *
      * @param capsule The capsule to be added.
      * @return {@code true} if the capsule was successfully added, otherwise {@code false}.
      */
     public boolean addCapsule(Capsule capsule) {
-        if (capsule.getTitle().isBlank() || capsule.getMessage().isBlank()) {
+        if (capsule.getTitle().isBlank() || capsule.getMessage().isBlank()
+                || repository.doesSimilarCapsuleExist(capsule.getTitle(), capsule.getRawMessage())) {
+            repository.releaseCapsuleId(capsule.getId()); // Free the ID if it was reserved for this capsule
             return false; // Validation failed
         }
         repository.addCapsule(capsule);
         return true;
     }
     /**
-     * Generates a unique ID for a new capsule by finding the first available ID.
-     * This includes checking for gaps in the ID sequence from deleted capsules.
+     * Reserves a unique ID for a new capsule, reusing the first gap left by
+     * permanently deleted capsules. The ID stays reserved until the capsule
+     * is added, so concurrent callers never receive the same ID.
      *
      * @return The first available ID.
      */
     public int generateUniqueCapsuleId() {
-        List<Capsule> allCapsules = repository.getAllCapsules();
-        if (allCapsules.isEmpty()) {
-            return 1;
-        }
-
-        // Get all existing IDs and sort them
-        List<Integer> existingIds = allCapsules.stream()
-                .map(Capsule::getId)
-                .sorted()
-                .toList();
-
-        // Find the first gap in the sequence
-        int expectedId = 1;
-        for (int currentId : existingIds) {
-            if (currentId > expectedId) {
-                return expectedId;
-            }
-            expectedId = currentId + 1;
-        }
-
-        // If no gaps found, return next number after the highest ID
-        return expectedId;
+        return repository.allocateCapsuleId();
     }
 
     /**
@@ -79,9 +90,7 @@ public class CapsuleService {
      * @return A list of locked capsules.
      */
     public List<Capsule> getLockedCapsules() {
-        return repository.getAllCapsules().stream()
-                .filter(capsule -> capsule.getStatus() == CapsuleStatus.LOCKED)
-                .toList();
+        return repository.getLockedCapsules();
     }
 
     /**
@@ -90,9 +99,7 @@ public class CapsuleService {
      * @return A list of archived capsules.
      */
     public List<Capsule> getArchivedCapsules() {
-        return repository.getAllCapsules().stream()
-                .filter(capsule -> capsule.getStatus() == CapsuleStatus.OPENED)
-                .toList();
+        return repository.getArchivedCapsules();
     }
 
     /**
@@ -116,7 +123,7 @@ public class CapsuleService {
             return "Capsule not found.";
         }
         if (capsule.openCapsule()) {
-            repository.addCapsule(capsule); // Update repository
+            repository.updateCapsule(capsule); // Update repository
             return capsule.getMessage(); // Return the message
         }
         return "This capsule is still locked!";
@@ -162,7 +169,7 @@ public class CapsuleService {
      */
     public void exportCapsulesToFile(String filePath) {
         List<Capsule> capsules = repository.getAllCapsules();
-        CapsuleFileUtils.exportCapsulesToFile(capsules, filePath);
+        CapsuleFileUtils.exportCapsulesToFile(capsules, filePath, pool);
     }
 
     /**
@@ -173,7 +180,7 @@ public class CapsuleService {
         repository.clearAllCapsules();
         
         // Then import new capsules
-        List<Capsule> importedCapsules = CapsuleFileUtils.importCapsulesFromFile(filePath);
+        List<Capsule> importedCapsules = CapsuleFileUtils.importCapsulesFromFile(filePath, pool);
         for (Capsule capsule : importedCapsules) {
             repository.addCapsule(capsule);
         }
@@ -189,24 +196,24 @@ public class CapsuleService {
 
         // 1. Total Capsules Count 🔢
         int totalCapsules = allCapsules.size();
-        int locked = (int) allCapsules.stream()
-                .filter(c -> c.getStatus() == CapsuleStatus.LOCKED)
-                .count();
-        int opened = (int) allCapsules.stream()
-                .filter(c -> c.getStatus() == CapsuleStatus.OPENED)
-                .count();
-        int deleted = (int) allCapsules.stream()
-                .filter(c -> c.getStatus() == CapsuleStatus.DELETED)
-                .count();
+        int locked = repository.count(new CapsuleQuery().status(CapsuleStatus.LOCKED));
+        int opened = repository.count(new CapsuleQuery().status(CapsuleStatus.OPENED));
+        int deleted = repository.count(new CapsuleQuery().status(CapsuleStatus.DELETED));
         stats.put("Total Capsules", String.valueOf(totalCapsules));
         stats.put("Locked Capsules", String.valueOf(locked));
         stats.put("Opened Capsules", String.valueOf(opened));
         stats.put("Deleted Capsules", String.valueOf(deleted));
 
-        // 2. Most Common Category
-        Map<String, Long> categoryCount = allCapsules.stream()
+        // Group by category and color in parallel on the compute pool
+        ForkJoinTask<Map<String, Long>> categoryTask = pool.compute().submit(() -> allCapsules.parallelStream()
                 .filter(c -> c.getStatus() != CapsuleStatus.DELETED)
-                .collect(Collectors.groupingBy(Capsule::getCategory, Collectors.counting()));
+                .collect(Collectors.groupingBy(Capsule::getCategory, Collectors.counting())));
+        ForkJoinTask<Map<String, Long>> colorTask = pool.compute().submit(() -> allCapsules.parallelStream()
+                .filter(c -> c.getStatus() != CapsuleStatus.DELETED)
+                .collect(Collectors.groupingBy(Capsule::getColor, Collectors.counting())));
+
+        // 2. Most Common Category
+        Map<String, Long> categoryCount = categoryTask.join();
         String mostCommonCategory = categoryCount.entrySet().stream()
                 .max(Map.Entry.comparingByValue())
                 .map(Map.Entry::getKey)
@@ -215,9 +222,7 @@ public class CapsuleService {
         stats.put("Category Breakdown", categoryCount.toString());
 
         // 3. Most Used Capsule Color
-        Map<String, Long> colorCount = allCapsules.stream()
-                .filter(c -> c.getStatus() != CapsuleStatus.DELETED)
-                .collect(Collectors.groupingBy(Capsule::getColor, Collectors.counting()));
+        Map<String, Long> colorCount = colorTask.join();
         String mostUsedColor = colorCount.entrySet().stream()
                 .max(Map.Entry.comparingByValue())
                 .map(Map.Entry::getKey)
@@ -227,29 +232,17 @@ public class CapsuleService {
 
         // 4. Unlock History & Trends
         LocalDateTime now = LocalDateTime.now();
-        long last7Days = allCapsules.stream()
-                .filter(c -> c.getUnlockDate().isAfter(now.minusDays(7)) && c.getUnlockDate().isBefore(now))
-                .count();
-        long last30Days = allCapsules.stream()
-                .filter(c -> c.getUnlockDate().isAfter(now.minusDays(30)) && c.getUnlockDate().isBefore(now))
-                .count();
-        long lastYear = allCapsules.stream()
-                .filter(c -> c.getUnlockDate().isAfter(now.minusYears(1)) && c.getUnlockDate().isBefore(now))
-                .count();
+        int last7Days = repository.countUnlockingBetween(now.minusDays(7), now);
+        int last30Days = repository.countUnlockingBetween(now.minusDays(30), now);
+        int lastYear = repository.countUnlockingBetween(now.minusYears(1), now);
         stats.put("Unlocked Last 7 Days", String.valueOf(last7Days));
         stats.put("Unlocked Last 30 Days", String.valueOf(last30Days));
         stats.put("Unlocked Last Year", String.valueOf(lastYear));
 
         // 5. Upcoming Unlocks
-        long next7Days = allCapsules.stream()
-                .filter(c -> c.getUnlockDate().isAfter(now) && c.getUnlockDate().isBefore(now.plusDays(7)))
-                .count();
-        long next30Days = allCapsules.stream()
-                .filter(c -> c.getUnlockDate().isAfter(now) && c.getUnlockDate().isBefore(now.plusDays(30)))
-                .count();
-        long nextYear = allCapsules.stream()
-                .filter(c -> c.getUnlockDate().isAfter(now) && c.getUnlockDate().isBefore(now.plusYears(1)))
-                .count();
+        int next7Days = repository.countUnlockingBetween(now, now.plusDays(7));
+        int next30Days = repository.countUnlockingBetween(now, now.plusDays(30));
+        int nextYear = repository.countUnlockingBetween(now, now.plusYears(1));
         stats.put("Upcoming in 7 Days", String.valueOf(next7Days));
         stats.put("Upcoming in 30 Days", String.valueOf(next30Days));
         stats.put("Upcoming in 1 Year", String.valueOf(nextYear));
@@ -261,24 +254,162 @@ public class CapsuleService {
      * Sorts capsules based on the chosen sorting option.
      *
      * @param sortOption The sorting option to use.
-     * @return A sorted list of capsules.
+     * @return A sorted list of capsules, or all capsules unsorted for an unknown option.
      */
     public List<Capsule> sortCapsules(String sortOption) {
-        List<Capsule> capsules = repository.getAllCapsules();
+        return sortCapsules(sortOption, Integer.MAX_VALUE);
+    }
 
-        Comparator<Capsule> comparator = switch (sortOption) {
-            case "Title A-Z" -> Comparator.comparing(Capsule::getTitle, String.CASE_INSENSITIVE_ORDER);
-            case "Title Z-A" -> Comparator.comparing(Capsule::getTitle, String.CASE_INSENSITIVE_ORDER).reversed();
-            case "Unlock Soonest" -> Comparator.comparing(Capsule::getUnlockDate);
-            case "Unlock Latest" -> Comparator.comparing(Capsule::getUnlockDate).reversed();
-            case "Created Newest" -> Comparator.comparing(Capsule::getDateCreated).reversed();
-            case "Created Oldest" -> Comparator.comparing(Capsule::getDateCreated);
-            case "Category A-Z" -> Comparator.comparing(Capsule::getCategory, String.CASE_INSENSITIVE_ORDER);
-            case "Category Z-A" -> Comparator.comparing(Capsule::getCategory, String.CASE_INSENSITIVE_ORDER).reversed();
-            default -> (a, b) -> 0;
+    /**
+     * Sorts capsules based on the chosen sorting option and returns the first
+     * of them. A sorted view the repository maintains is read directly, and
+     * the {@link CapsuleSortPlanner} has the view built once the key is
+     * requested repeatedly; otherwise the planner picks the strategy from the
+     * number of capsules, the kind of key, how presorted the capsules are and
+     * the limit. The strategy used is counted in {@link #getSortMetrics()}.
+     *
+     * @param sortOption The sorting option to use.
+     * @param limit      The maximum number of capsules to return.
+     * @return A sorted list of capsules, or all capsules unsorted for an unknown option.
+     * @throws IllegalArgumentException If the limit is negative.
+     */
+    public List<Capsule> sortCapsules(String sortOption, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative: " + limit);
+        }
+        CapsuleSortKey key = sortKey(sortOption);
+        if (key == null) {
+            return repository.getAllCapsules();
+        }
+        boolean descending = isDescending(sortOption);
+        boolean sortedView = sortPlanner.useSortedView(key, repository.hasSortedView(key));
+        List<Capsule> capsules = sortedView ? null : repository.getAllCapsules();
+        CapsuleSortPlanner.Strategy strategy = sortedView
+                ? CapsuleSortPlanner.Strategy.SORTED_VIEW
+                : sortPlanner.plan(capsules, key, descending, limit);
+        sortPlanner.record(strategy);
+
+        Comparator<Capsule> order = key.comparator(descending);
+        List<Capsule> sorted = switch (strategy) {
+            case SORTED_VIEW -> repository.getSortedPage(key, descending, null, limit);
+            case TOP_K -> TopKSelection.select(capsules, order, null, limit);
+            case TIMSORT -> {
+                List<Capsule> copy = new ArrayList<>(capsules);
+                copy.sort(order);
+                yield copy;
+            }
+            case PARALLEL_MERGE -> MultiThreadedMergeSort.sort(capsules, order,
+                    MultiThreadedMergeSort.DEFAULT_THRESHOLD, pool.compute());
+            case KEY_SORT -> CapsuleKeySort.sort(capsules, key, descending);
+            case RADIX -> CapsuleKeySort.radixSort(capsules, key, descending, pool.compute());
         };
+        return limit < sorted.size() ? sorted.subList(0, limit) : sorted;
+    }
+
+    /**
+     * @return How often each sort strategy has been used since the service was created.
+     */
+    public Map<CapsuleSortPlanner.Strategy, Long> getSortMetrics() {
+        return sortPlanner.metrics();
+    }
 
-        return MultiThreadedMergeSort.sort(capsules, comparator);
+    /**
+     * Retrieves the next page of capsules in the order of a sorting option.
+     * The page starts after the last capsule of the previous page, so only
+     * the page itself is built. Once the repository maintains a sorted view of
+     * the option's key, the page is read from it in O(log n + limit). Until
+     * the {@link CapsuleSortPlanner} adopts the view for a repeatedly requested
+     * key, pages are selected with {@link #topCapsules} in O(n log limit),
+     * which is cheaper than building the view for the first few pages.
+     *
+     * @param sortOption The sorting option to use.
+     * @param afterKey   The last capsule of the previous page, or {@code null} for the first page.
+     * @param limit      The maximum number of capsules on the page.
+     * @return The capsules of the page; empty after the last page.
+     * @throws IllegalArgumentException If the sorting option is unknown.
+     */
+    public List<Capsule> page(String sortOption, Capsule afterKey, int limit) {
+        CapsuleSortKey key = sortKey(sortOption);
+        if (key == null) {
+            throw new IllegalArgumentException("Unknown sorting option: " + sortOption);
+        }
+        if (sortPlanner.useSortedView(key, repository.hasSortedView(key))) {
+            sortPlanner.record(CapsuleSortPlanner.Strategy.SORTED_VIEW);
+            return repository.getSortedPage(key, isDescending(sortOption), afterKey, limit);
+        }
+        return topCapsules(sortOption, afterKey, limit);
+    }
+
+    /**
+     * Selects the first capsules in the order of a sorting option that follow
+     * a cursor, with a bounded heap instead of sorting all capsules. The
+     * order matches {@link #sortCapsules(String)}.
+     *
+     * @param sortOption The sorting option to use.
+     * @param afterKey   The last capsule of the previous page, or {@code null} to start from the first.
+     * @param k          The maximum number of capsules to select.
+     * @return Up to {@code k} capsules, sorted.
+     * @throws IllegalArgumentException If the sorting option is unknown.
+     */
+    public List<Capsule> topCapsules(String sortOption, Capsule afterKey, int k) {
+        CapsuleSortKey key = sortKey(sortOption);
+        if (key == null) {
+            throw new IllegalArgumentException("Unknown sorting option: " + sortOption);
+        }
+        sortPlanner.record(CapsuleSortPlanner.Strategy.TOP_K);
+        return TopKSelection.select(repository.getAllCapsules(), key.comparator(isDescending(sortOption)), afterKey, k);
+    }
+
+    /**
+     * Finds the capsules matching a query, using the repository's indexes where possible.
+     *
+     * @param query The query.
+     * @return The matching capsules.
+     */
+    public List<Capsule> findCapsules(CapsuleQuery query) {
+        return repository.query(query);
+    }
+
+    /**
+     * Describes how a query would be run, for tuning.
+     *
+     * @param query The query.
+     * @return A one-line query plan.
+     */
+    public String explainQuery(CapsuleQuery query) {
+        return repository.explain(query);
+    }
+
+    /**
+     * @return The total number of capsules, including trashed ones.
+     */
+    public int countCapsules() {
+        return repository.getCapsuleCount();
+    }
+
+    /**
+     * @param sortOption The sorting option.
+     * @return The key sorted by, or {@code null} for an unknown option.
+     */
+    private static CapsuleSortKey sortKey(String sortOption) {
+        return switch (sortOption) {
+            case "Title A-Z", "Title Z-A" -> CapsuleSortKey.TITLE;
+            case "Unlock Soonest", "Unlock Latest" -> CapsuleSortKey.UNLOCK_DATE;
+            case "Created Newest", "Created Oldest" -> CapsuleSortKey.CREATED_DATE;
+            case "Category A-Z", "Category Z-A" -> CapsuleSortKey.CATEGORY;
+            default -> null;
+        };
+    }
+
+    /**
+     * @param sortOption The sorting option.
+     * @return Whether the option sorts from the largest key down.
+     */
+    private static boolean isDescending(String sortOption) {
+        return switch (sortOption) {
+            case "Title Z-A", "Unlock Latest", "Created Newest", "Category Z-A" -> true;
+            default -> false;
+        };
     }
 
 
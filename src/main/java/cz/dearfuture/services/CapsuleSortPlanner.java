@@ -0,0 +1,144 @@
+package cz.dearfuture.services;
+
+import cz.dearfuture.models.Capsule;
+import cz.dearfuture.repositories.CapsuleKeySort;
+import cz.dearfuture.repositories.CapsuleSortKey;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Chooses how to sort capsules, and counts how often each strategy is used.
+ * <p>
+ * A key that is requested repeatedly is served from the repository's sorted
+ * view of it, see {@link #useSortedView(CapsuleSortKey, boolean)}. For the
+ * other requests the choice looks at how many capsules are requested and sorted, whether the
+ * key is a date or a text, and how presorted the capsules already are:
+ * <ul>
+ *     <li>{@link Strategy#TOP_K} when only a small share of the capsules is requested,</li>
+ *     <li>{@link Strategy#TIMSORT} for small or mostly presorted inputs, where TimSort
+ *     is close to linear and handing work to other threads costs more than it saves,</li>
+ *     <li>{@link Strategy#RADIX} for large inputs sorted by a date,</li>
+ *     <li>{@link Strategy#PARALLEL_MERGE} for large inputs sorted by a text when there
+ *     are several compute workers, and {@link Strategy#KEY_SORT} when there is one.</li>
+ * </ul>
+ */
+public class CapsuleSortPlanner {
+    /** Input size up to which capsules are sorted sequentially with TimSort. */
+    static final int SEQUENTIAL_THRESHOLD = 8192;
+    /** Average ascending run length from which an input counts as presorted. */
+    static final int PRESORTED_RUN_LENGTH = 1024;
+    /** Top-K selection is used when at most one capsule in this many is requested. */
+    static final int TOP_K_RATIO = 16;
+    /** Requests on a key without a sorted view after which the view is built and used. */
+    static final int VIEW_ADOPTION_REQUESTS = 3;
+
+    /**
+     * Ways of sorting capsules.
+     */
+    public enum Strategy {
+        SORTED_VIEW,    // Read from the repository's maintained sorted view
+        TOP_K,          // Bounded-heap selection of the first capsules
+        TIMSORT,        // Sequential comparator sort
+        PARALLEL_MERGE, // Fork/join merge sort on the compute pool
+        KEY_SORT,       // Sequential merge sort on extracted keys
+        RADIX           // Radix sort on epoch keys, passes split across the compute pool
+    }
+
+    private final int parallelism;
+    private final AtomicLongArray uses = new AtomicLongArray(Strategy.values().length);
+    private final AtomicIntegerArray requests = new AtomicIntegerArray(CapsuleSortKey.values().length);
+
+    /**
+     * Constructs a new CapsuleSortPlanner.
+     *
+     * @param parallelism The number of compute workers available for sorting.
+     */
+    public CapsuleSortPlanner(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Decides whether a request on a key is served from the repository's
+     * sorted view. A view that is already maintained is always used. Otherwise
+     * the request is counted, and the view is adopted on the
+     * {@value #VIEW_ADOPTION_REQUESTS}th request on the key: building it costs
+     * about one full sort, after which every request reads it in
+     * O(log n + limit). Keys that are rarely sorted never pay for building or
+     * maintaining a view.
+     *
+     * @param key        The sort key.
+     * @param viewExists Whether the repository already maintains the view of the key.
+     * @return Whether to read the request from the view, building it if needed.
+     */
+    public boolean useSortedView(CapsuleSortKey key, boolean viewExists) {
+        return viewExists || requests.incrementAndGet(key.ordinal()) >= VIEW_ADOPTION_REQUESTS;
+    }
+
+    /**
+     * Chooses how to sort capsules. Never returns {@link Strategy#SORTED_VIEW},
+     * which is chosen by {@link #useSortedView(CapsuleSortKey, boolean)}.
+     *
+     * @param capsules   The capsules to sort.
+     * @param key        The sort key.
+     * @param descending Whether to sort from the largest key down.
+     * @param limit      The number of sorted capsules requested.
+     * @return The strategy to sort with.
+     */
+    public Strategy plan(List<Capsule> capsules, CapsuleSortKey key, boolean descending, int limit) {
+        int size = capsules.size();
+        if (limit < size && (long) limit * TOP_K_RATIO <= size) {
+            return Strategy.TOP_K;
+        }
+        if (size <= SEQUENTIAL_THRESHOLD || isPresorted(capsules, key.comparator(descending))) {
+            return Strategy.TIMSORT;
+        }
+        if (CapsuleKeySort.isDate(key)) {
+            return Strategy.RADIX;
+        }
+        return parallelism > 1 ? Strategy.PARALLEL_MERGE : Strategy.KEY_SORT;
+    }
+
+    /**
+     * Counts one use of a strategy.
+     *
+     * @param strategy The strategy used.
+     */
+    public void record(Strategy strategy) {
+        uses.incrementAndGet(strategy.ordinal());
+    }
+
+    /**
+     * @return How often each strategy has been used, in declaration order.
+     */
+    public Map<Strategy, Long> metrics() {
+        Map<Strategy, Long> metrics = new EnumMap<>(Strategy.class);
+        for (Strategy strategy : Strategy.values()) {
+            metrics.put(strategy, uses.get(strategy.ordinal()));
+        }
+        return metrics;
+    }
+
+    /**
+     * Counts the ascending runs of the capsules, stopping as soon as there are
+     * too many for the input to count as presorted.
+     *
+     * @return Whether the runs average at least {@link #PRESORTED_RUN_LENGTH} capsules.
+     */
+    static boolean isPresorted(List<Capsule> capsules, Comparator<Capsule> order) {
+        int maxRuns = 1 + capsules.size() / PRESORTED_RUN_LENGTH;
+        int runs = 1;
+        Capsule previous = null;
+        for (Capsule capsule : capsules) {
+            if (previous != null && order.compare(previous, capsule) > 0 && ++runs > maxRuns) {
+                return false;
+            }
+            previous = capsule;
+        }
+        return true;
+    }
+}
@@ -6,6 +6,9 @@ import java.io.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 
 /**
  * Utility class for exporting and importing capsules to/from CSV files.
@@ -13,6 +16,11 @@ import java.util.List;
  */
 public class CapsuleFileUtils {
 
+    private static final String HEADER = "ID,Title,Message,UnlockDate,Category,Color,Status\n";
+
+    /** Number of rows encrypted or decrypted per compute task. */
+    static final int CHUNK_SIZE = 1024;
+
     /**
      * Exports capsules to a CSV file.
      * Encrypts sensitive data for security.
@@ -23,21 +31,10 @@ public class CapsuleFileUtils {
     public static void exportCapsulesToFile(List<Capsule> capsules, String filePath) {
         try (Writer writer = new FileWriter(filePath)) {
             // Write CSV header
-            writer.write("ID,Title,Message,UnlockDate,Category,Color,Status\n");
+            writer.write(HEADER);
             
             for (Capsule capsule : capsules) {
-                // Use getRawTitle and getRawMessage instead of getTitle and getMessage
-                String encryptedTitle = EncryptionUtil.encrypt(capsule.getRawTitle());
-                String encryptedMessage = EncryptionUtil.encrypt(capsule.getRawMessage());
-                
-                writer.write(String.format("%d,%s,%s,%s,%s,%s,%s\n",
-                        capsule.getId(),
-                        encryptedTitle,
-                        encryptedMessage,
-                        capsule.getUnlockDate(),
-                        capsule.getCategory(),
-                        capsule.getColor(),
-                        capsule.getStatus()));
+                writer.write(toCsvLine(capsule));
             }
             System.out.println(Capsule.GREEN + "Capsules successfully exported to " + filePath + Capsule.RESET);
         } catch (IOException e) {
@@ -45,6 +42,47 @@ public class CapsuleFileUtils {
         }
     }
 
+    /**
+     * Exports capsules to a CSV file using a compute pool.
+     * Chunks of rows are encrypted in parallel on the compute workers while
+     * an I/O thread writes the finished chunks in their original order.
+     *
+     * @param capsules The list of capsules to export.
+     * @param filePath The destination file path.
+     * @param pool     The pool to run the export on.
+     */
+    public static void exportCapsulesToFile(List<Capsule> capsules, String filePath, ComputePool pool) {
+        List<ForkJoinTask<String>> chunks = new ArrayList<>();
+        for (int from = 0; from < capsules.size(); from += CHUNK_SIZE) {
+            List<Capsule> chunk = capsules.subList(from, Math.min(from + CHUNK_SIZE, capsules.size()));
+            chunks.add(pool.compute().submit(() -> {
+                StringBuilder rows = new StringBuilder();
+                for (Capsule capsule : chunk) {
+                    rows.append(toCsvLine(capsule));
+                }
+                return rows.toString();
+            }));
+        }
+        Future<?> write = pool.io().submit(() -> {
+            try (Writer writer = new BufferedWriter(new FileWriter(filePath))) {
+                writer.write(HEADER);
+                for (ForkJoinTask<String> chunk : chunks) {
+                    writer.write(chunk.join());
+                }
+            }
+            return null;
+        });
+        try {
+            write.get();
+            System.out.println(Capsule.GREEN + "Capsules successfully exported to " + filePath + Capsule.RESET);
+        } catch (ExecutionException e) {
+            System.out.println(Capsule.RED + "Error exporting capsules: " + e.getCause().getMessage() + Capsule.RESET);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println(Capsule.RED + "Export interrupted." + Capsule.RESET);
+        }
+    }
+
     /**
      * Imports capsules from a CSV file.
      * Decrypts sensitive data during import.
@@ -55,50 +93,129 @@ public class CapsuleFileUtils {
     public static List<Capsule> importCapsulesFromFile(String filePath) {
         List<Capsule> importedCapsules = new ArrayList<>();
         try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+            reader.readLine(); // Skip header line
             String line;
-            boolean isFirstLine = true;
-            
             while ((line = reader.readLine()) != null) {
-                // Skip header line
-                if (isFirstLine) {
-                    isFirstLine = false;
-                    continue;
+                Capsule capsule = parseCsvLine(line);
+                if (capsule != null) {
+                    importedCapsules.add(capsule);
                 }
-                
-                String[] data = line.split(",");
-                if (data.length >= 7) {
-                    try {
-                        // Decrypt sensitive data from CSV
-                        String decryptedTitle = EncryptionUtil.decrypt(data[1]);
-                        String decryptedMessage = EncryptionUtil.decrypt(data[2]);
-                        
-                        Capsule capsule = new Capsule(
-                                Integer.parseInt(data[0]),     // ID
-                                decryptedTitle,                // Title (decrypted)
-                                decryptedMessage,              // Message (decrypted)
-                                LocalDateTime.parse(data[3]),  // Unlock Date
-                                data[4],                       // Category
-                                data[5]                        // Color
-                        );
-
-                        // Set the status based on imported value
-                        CapsuleStatus status = CapsuleStatus.valueOf(data[6]);
-                        switch (status) {
-                            case OPENED -> capsule.openCapsule();
-                            case DELETED -> capsule.deleteCapsule();
-                            // LOCKED is default state, no action needed
-                        }
+            }
+            System.out.println(Capsule.GREEN + "Capsules successfully imported from " + filePath + Capsule.RESET);
+        } catch (IOException e) {
+            System.out.println(Capsule.RED + "Error importing capsules: " + e.getMessage() + Capsule.RESET);
+        }
+        return importedCapsules;
+    }
 
-                        importedCapsules.add(capsule);
-                    } catch (Exception e) {
-                        System.out.println(Capsule.YELLOW + "Warning: Skipping invalid capsule entry: " + e.getMessage() + Capsule.RESET);
+    /**
+     * Imports capsules from a CSV file using a compute pool.
+     * An I/O thread reads the file and hands chunks of lines to the compute
+     * workers for decryption; the capsules keep the order of the file.
+     *
+     * @param filePath The source file path.
+     * @param pool     The pool to run the import on.
+     * @return A list of imported capsules.
+     */
+    public static List<Capsule> importCapsulesFromFile(String filePath, ComputePool pool) {
+        List<Capsule> importedCapsules = new ArrayList<>();
+        Future<List<ForkJoinTask<List<Capsule>>>> read = pool.io().submit(() -> {
+            List<ForkJoinTask<List<Capsule>>> chunks = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+                reader.readLine(); // Skip header line
+                List<String> lines = new ArrayList<>(CHUNK_SIZE);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                    if (lines.size() == CHUNK_SIZE) {
+                        chunks.add(parseChunk(lines, pool));
+                        lines = new ArrayList<>(CHUNK_SIZE);
                     }
                 }
+                chunks.add(parseChunk(lines, pool));
+            }
+            return chunks;
+        });
+        try {
+            for (ForkJoinTask<List<Capsule>> chunk : read.get()) {
+                importedCapsules.addAll(chunk.join());
             }
             System.out.println(Capsule.GREEN + "Capsules successfully imported from " + filePath + Capsule.RESET);
-        } catch (IOException | NumberFormatException e) {
-            System.out.println(Capsule.RED + "Error importing capsules: " + e.getMessage() + Capsule.RESET);
+        } catch (ExecutionException e) {
+            System.out.println(Capsule.RED + "Error importing capsules: " + e.getCause().getMessage() + Capsule.RESET);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println(Capsule.RED + "Import interrupted." + Capsule.RESET);
         }
         return importedCapsules;
     }
+
+    private static ForkJoinTask<List<Capsule>> parseChunk(List<String> lines, ComputePool pool) {
+        return pool.compute().submit(() -> {
+            List<Capsule> capsules = new ArrayList<>(lines.size());
+            for (String line : lines) {
+                Capsule capsule = parseCsvLine(line);
+                if (capsule != null) {
+                    capsules.add(capsule);
+                }
+            }
+            return capsules;
+        });
+    }
+
+    /**
+     * Formats a capsule as one CSV row, encrypting its title and message.
+     */
+    private static String toCsvLine(Capsule capsule) {
+        // Use getRawTitle and getRawMessage instead of getTitle and getMessage
+        String encryptedTitle = EncryptionUtil.encrypt(capsule.getRawTitle());
+        String encryptedMessage = EncryptionUtil.encrypt(capsule.getRawMessage());
+
+        return String.format("%d,%s,%s,%s,%s,%s,%s\n",
+                capsule.getId(),
+                encryptedTitle,
+                encryptedMessage,
+                capsule.getUnlockDate(),
+                capsule.getCategory(),
+                capsule.getColor(),
+                capsule.getStatus());
+    }
+
+    /**
+     * Parses one CSV row, decrypting its title and message.
+     *
+     * @return The capsule, or {@code null} if the row is incomplete or invalid.
+     */
+    private static Capsule parseCsvLine(String line) {
+        String[] data = line.split(",");
+        if (data.length < 7) {
+            return null;
+        }
+        try {
+            // Decrypt sensitive data from CSV
+            String decryptedTitle = EncryptionUtil.decrypt(data[1]);
+            String decryptedMessage = EncryptionUtil.decrypt(data[2]);
+
+            Capsule capsule = new Capsule(
+                    Integer.parseInt(data[0]),     // ID
+                    decryptedTitle,                // Title (decrypted)
+                    decryptedMessage,              // Message (decrypted)
+                    LocalDateTime.parse(data[3]),  // Unlock Date
+                    data[4],                       // Category
+                    data[5]                        // Color
+            );
+
+            // Set the status based on imported value
+            CapsuleStatus status = CapsuleStatus.valueOf(data[6]);
+            switch (status) {
+                case OPENED -> capsule.openCapsule();
+                case DELETED -> capsule.deleteCapsule();
+                // LOCKED is default state, no action needed
+            }
+            return capsule;
+        } catch (Exception e) {
+            System.out.println(Capsule.YELLOW + "Warning: Skipping invalid capsule entry: " + e.getMessage() + Capsule.RESET);
+            return null;
+        }
+    }
 }
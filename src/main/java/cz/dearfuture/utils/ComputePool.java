@@ -0,0 +1,98 @@
+package cz.dearfuture.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Application-wide thread pools for parallel work, created once and shut down
+ * with {@link #shutdown()}.
+ * <p>
+ * CPU-bound work (sorting, encryption, aggregation) runs on a work-stealing
+ * {@link ForkJoinPool} of configurable parallelism. I/O-bound stages (reading
+ * and writing files) run on a separate executor so they never occupy compute
+ * workers; it uses a virtual thread per task when enabled, otherwise a small
+ * pool of daemon platform threads. Threads are only started when work arrives.
+ */
+public class ComputePool {
+    /** Default parallelism: one worker per available processor. */
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private final ForkJoinPool compute;
+    private final ExecutorService io;
+
+    /**
+     * Creates a pool with the default parallelism and platform I/O threads.
+     */
+    public ComputePool() {
+        this(DEFAULT_PARALLELISM, false);
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param parallelism       The number of compute workers.
+     * @param virtualThreadsForIo Whether I/O-bound stages run on virtual threads.
+     * @throws IllegalArgumentException If the parallelism is not positive.
+     */
+    public ComputePool(int parallelism, boolean virtualThreadsForIo) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.compute = new ForkJoinPool(parallelism);
+        this.io = virtualThreadsForIo
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("capsule-io-", 1).factory())
+                : newPlatformIoPool(parallelism);
+    }
+
+    private static ExecutorService newPlatformIoPool(int parallelism) {
+        AtomicInteger threads = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, "capsule-io-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** @return The pool for CPU-bound work. */
+    public ForkJoinPool compute() {
+        return compute;
+    }
+
+    /** @return The executor for I/O-bound stages. */
+    public ExecutorService io() {
+        return io;
+    }
+
+    /** @return The number of compute workers. */
+    public int parallelism() {
+        return compute.getParallelism();
+    }
+
+    /**
+     * Stops accepting work and waits briefly for running tasks to finish.
+     */
+    public void shutdown() {
+        compute.shutdown();
+        io.shutdown();
+        try {
+            if (!compute.awaitTermination(5, TimeUnit.SECONDS) || !io.awaitTermination(5, TimeUnit.SECONDS)) {
+                compute.shutdownNow();
+                io.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            compute.shutdownNow();
+            io.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
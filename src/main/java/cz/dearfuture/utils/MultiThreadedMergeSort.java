@@ -2,15 +2,24 @@ package cz.dearfuture.utils;
 
 import cz.dearfuture.models.Capsule;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Multi-Threaded Merge Sort for sorting Capsules.
+ * <p>
+ * The list is split recursively into fork/join tasks, so idle workers steal
+ * halves instead of blocking on them. Ranges up to a threshold are sorted
+ * sequentially with {@link Arrays#sort(Object[], int, int, Comparator)}
+ * (TimSort), and all merges share one buffer allocated up front. The sort is
+ * stable.
  */
 public class MultiThreadedMergeSort {
+    /** Default size up to which ranges are sorted sequentially. */
+    public static final int DEFAULT_THRESHOLD = 8192;
 
     /**
      * Sorts a list of capsules using multi-threaded merge sort.
@@ -20,66 +29,95 @@ public class MultiThreadedMergeSort {
      * @return A sorted list of capsules.
      */
     public static List<Capsule> sort(List<Capsule> capsules, Comparator<Capsule> comparator) {
-        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        List<Capsule> sortedList = mergeSort(capsules, comparator, executor);
-        executor.shutdown();
-        return sortedList;
+        return sort(capsules, comparator, DEFAULT_THRESHOLD);
     }
 
-    private static List<Capsule> mergeSort(List<Capsule> capsules, Comparator<Capsule> comparator, ExecutorService executor) {
-        if (capsules.size() <= 1) {
-            return capsules;
-        }
-
-        int mid = capsules.size() / 2;
-        List<Capsule> leftPart = new ArrayList<>(capsules.subList(0, mid));
-        List<Capsule> rightPart = new ArrayList<>(capsules.subList(mid, capsules.size()));
-
-        Future<List<Capsule>> leftFuture = executor.submit(() -> mergeSort(leftPart, comparator, executor));
-        Future<List<Capsule>> rightFuture = executor.submit(() -> mergeSort(rightPart, comparator, executor));
-
-        List<Capsule> sortedLeft;
-        List<Capsule> sortedRight;
-
-        try {
-            sortedLeft = leftFuture.get();
-            sortedRight = rightFuture.get();
-        } catch (InterruptedException | ExecutionException e) {
-            Thread.currentThread().interrupt();
-            return capsules; // Fallback to original list in case of failure
-        }
-
-        return merge(sortedLeft, sortedRight, comparator);
+    /**
+     * Sorts a list of capsules using multi-threaded merge sort.
+     *
+     * @param capsules The list of capsules to sort.
+     * @param comparator The comparator to determine the sorting order.
+     * @param threshold The size up to which ranges are sorted sequentially.
+     * @return A sorted list of capsules; the input list is not modified.
+     */
+    public static List<Capsule> sort(List<Capsule> capsules, Comparator<Capsule> comparator, int threshold) {
+        return sort(capsules, comparator, threshold, ForkJoinPool.commonPool());
     }
 
     /**
-     * Merges two sorted lists into a single sorted list.
+     * Sorts a list of capsules using multi-threaded merge sort on the given pool.
      *
-     * @param left The left sorted sublist.
-     * @param right The right sorted sublist.
+     * @param capsules The list of capsules to sort.
      * @param comparator The comparator to determine the sorting order.
-     * @return A merged and sorted list.
+     * @param threshold The size up to which ranges are sorted sequentially.
+     * @param pool The pool to run the sort on.
+     * @return A sorted list of capsules; the input list is not modified.
      */
-    private static List<Capsule> merge(List<Capsule> left, List<Capsule> right, Comparator<Capsule> comparator) {
-        List<Capsule> merged = new ArrayList<>();
-        int leftIndex = 0, rightIndex = 0;
-
-        while (leftIndex < left.size() && rightIndex < right.size()) {
-            if (comparator.compare(left.get(leftIndex), right.get(rightIndex)) <= 0) {
-                merged.add(left.get(leftIndex++));
-            } else {
-                merged.add(right.get(rightIndex++));
-            }
+    public static List<Capsule> sort(List<Capsule> capsules, Comparator<Capsule> comparator, int threshold,
+                                     ForkJoinPool pool) {
+        Capsule[] sorted = capsules.toArray(new Capsule[0]);
+        if (sorted.length <= threshold) {
+            Arrays.sort(sorted, comparator);
+        } else {
+            Capsule[] buffer = new Capsule[sorted.length];
+            pool.invoke(
+                    new SortTask(sorted, buffer, 0, sorted.length, comparator, Math.max(1, threshold)));
         }
+        return Arrays.asList(sorted);
+    }
+
+    /**
+     * Sorts a range of the array, using the same range of the buffer for merging.
+     */
+    private static class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Capsule[] capsules;
+        private final transient Capsule[] buffer;
+        private final int from;
+        private final int to;
+        private final transient Comparator<Capsule> comparator;
+        private final int threshold;
 
-        while (leftIndex < left.size()) {
-            merged.add(left.get(leftIndex++));
+        SortTask(Capsule[] capsules, Capsule[] buffer, int from, int to, Comparator<Capsule> comparator, int threshold) {
+            this.capsules = capsules;
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+            this.comparator = comparator;
+            this.threshold = threshold;
         }
 
-        while (rightIndex < right.size()) {
-            merged.add(right.get(rightIndex++));
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                Arrays.sort(capsules, from, to, comparator);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SortTask(capsules, buffer, from, mid, comparator, threshold),
+                    new SortTask(capsules, buffer, mid, to, comparator, threshold));
+            merge(mid);
         }
 
-        return merged;
+        /**
+         * Merges the sorted halves {@code [from, mid)} and {@code [mid, to)} in place,
+         * moving only the left half out to the buffer.
+         */
+        private void merge(int mid) {
+            if (comparator.compare(capsules[mid - 1], capsules[mid]) <= 0) {
+                return; // Already in order
+            }
+            System.arraycopy(capsules, from, buffer, from, mid - from);
+            int left = from;
+            int right = mid;
+            int next = from;
+            while (left < mid && right < to) {
+                // Take from the left on ties to keep the sort stable
+                capsules[next++] = comparator.compare(capsules[right], buffer[left]) < 0
+                        ? capsules[right++] : buffer[left++];
+            }
+            System.arraycopy(buffer, left, capsules, next, mid - left);
+        }
     }
 }
@@ -0,0 +1,83 @@
+package cz.dearfuture.utils;
+
+import cz.dearfuture.models.Capsule;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Top-K selection of capsules with a bounded heap.
+ * <p>
+ * Selecting the first {@code k} capsules of an order takes O(n log k) time and
+ * O(k) extra memory instead of sorting all of them, which is all a page view
+ * needs. Further pages are selected the same way after a cursor.
+ */
+public class TopKSelection {
+
+    /**
+     * Selects the first capsules in an order that follow a cursor capsule.
+     *
+     * @param capsules   The capsules to select from.
+     * @param comparator A total order (no two distinct capsules may compare equal).
+     * @param after      The cursor, or {@code null} to select from the start.
+     * @param k          The maximum number of capsules to select.
+     * @return Up to {@code k} capsules ordered after the cursor, sorted.
+     */
+    public static List<Capsule> select(List<Capsule> capsules, Comparator<Capsule> comparator, Capsule after, int k) {
+        if (k <= 0) {
+            return List.of();
+        }
+        // Max-heap of the k smallest capsules seen so far
+        Capsule[] heap = new Capsule[Math.min(k, capsules.size())];
+        int size = 0;
+        for (Capsule capsule : capsules) {
+            if (after != null && comparator.compare(capsule, after) <= 0) {
+                continue;
+            }
+            if (size < heap.length) {
+                heap[size] = capsule;
+                siftUp(heap, size++, comparator);
+            } else if (size > 0 && comparator.compare(capsule, heap[0]) < 0) {
+                heap[0] = capsule;
+                siftDown(heap, size, comparator);
+            }
+        }
+        Capsule[] selected = Arrays.copyOf(heap, size);
+        Arrays.sort(selected, comparator);
+        return List.of(selected);
+    }
+
+    private static void siftUp(Capsule[] heap, int index, Comparator<Capsule> comparator) {
+        Capsule capsule = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (comparator.compare(capsule, heap[parent]) <= 0) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = capsule;
+    }
+
+    private static void siftDown(Capsule[] heap, int size, Comparator<Capsule> comparator) {
+        Capsule capsule = heap[0];
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && comparator.compare(heap[child + 1], heap[child]) > 0) {
+                child++;
+            }
+            if (comparator.compare(capsule, heap[child]) >= 0) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = capsule;
+    }
+}
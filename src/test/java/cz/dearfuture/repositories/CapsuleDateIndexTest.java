@@ -0,0 +1,65 @@
+package cz.dearfuture.repositories;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CapsuleDateIndexTest {
+    private static final LocalDateTime BASE = LocalDateTime.of(2025, 1, 1, 0, 0);
+
+    @Test
+    void testRangesAreExclusive() {
+        CapsuleDateIndex index = new CapsuleDateIndex(0);
+        index.put(1, BASE);
+        index.put(2, BASE.plusDays(1));
+        index.put(3, BASE.plusDays(1).plusNanos(1));
+        index.put(4, null);
+
+        assertEquals(3, index.size(), "Capsules without a date should not be indexed.");
+        assertEquals(1, index.countBetween(BASE, BASE.plusDays(1).plusNanos(1)), "Both bounds should be exclusive.");
+        assertArrayEquals(new int[]{2, 3}, index.idsBetween(BASE, BASE.plusDays(2)));
+        assertEquals(0, index.countBetween(BASE.plusDays(2), BASE), "Reversed bounds should match nothing.");
+    }
+
+    @Test
+    void testMatchesLinearScanUnderRandomChurn() {
+        CapsuleDateIndex index = new CapsuleDateIndex(16);
+        Map<Integer, LocalDateTime> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 50_000; i++) {
+            int id = random.nextInt(2_000);
+            if (random.nextInt(4) == 0) {
+                index.remove(id);
+                expected.remove(id);
+            } else {
+                LocalDateTime date = BASE.plusHours(random.nextInt(500)); // Many equal dates
+                index.put(id, date);
+                expected.put(id, date);
+            }
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (int i = 0; i < 200; i++) {
+            LocalDateTime from = BASE.plusHours(random.nextInt(520) - 10);
+            LocalDateTime to = from.plusHours(random.nextInt(200));
+            int[] ids = expected.entrySet().stream()
+                    .filter(entry -> entry.getValue().isAfter(from) && entry.getValue().isBefore(to))
+                    .mapToInt(Map.Entry::getKey)
+                    .toArray();
+            assertEquals(ids.length, index.countBetween(from, to), "Count between " + from + " and " + to);
+            int[] found = index.idsBetween(from, to);
+            for (int j = 1; j < found.length; j++) {
+                assertFalse(expected.get(found[j]).isBefore(expected.get(found[j - 1])), "IDs should be in date order.");
+            }
+            Arrays.sort(ids);
+            Arrays.sort(found);
+            assertArrayEquals(ids, found);
+        }
+    }
+}
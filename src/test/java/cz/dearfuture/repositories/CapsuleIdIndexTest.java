@@ -0,0 +1,51 @@
+package cz.dearfuture.repositories;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CapsuleIdIndexTest {
+
+    @Test
+    void testPutGetRemove() {
+        CapsuleIdIndex index = new CapsuleIdIndex(0);
+        index.put(7, 0);
+        index.put(-3, 5);
+        index.put(7, 2);
+
+        assertEquals(2, index.get(7), "Put should replace the previous value.");
+        assertEquals(5, index.get(-3), "Negative IDs should be supported.");
+        assertEquals(CapsuleIdIndex.MISSING, index.get(8));
+        assertEquals(2, index.size());
+        assertEquals(5, index.remove(-3));
+        assertEquals(CapsuleIdIndex.MISSING, index.remove(-3), "Removing twice should find nothing.");
+        index.clear();
+        assertEquals(CapsuleIdIndex.MISSING, index.get(7), "Cleared index should be empty.");
+    }
+
+    @Test
+    void testMatchesHashMapUnderRandomChurn() {
+        CapsuleIdIndex index = new CapsuleIdIndex(16);
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            int id = random.nextInt(5_000); // Small key space, so removals shift colliding entries
+            if (random.nextInt(3) == 0) {
+                assertEquals((int) expected.getOrDefault(id, CapsuleIdIndex.MISSING), index.remove(id));
+                expected.remove(id);
+            } else {
+                index.put(id, i);
+                expected.put(id, i);
+            }
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (int id = 0; id < 5_000; id++) {
+            assertEquals((int) expected.getOrDefault(id, CapsuleIdIndex.MISSING), index.get(id), "ID " + id);
+        }
+    }
+}
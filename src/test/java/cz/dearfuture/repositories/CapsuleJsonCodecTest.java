@@ -0,0 +1,74 @@
+package cz.dearfuture.repositories;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+import com.google.gson.stream.JsonReader;
+import cz.dearfuture.models.Capsule;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CapsuleJsonCodecTest {
+
+    private List<Capsule> sampleCapsules() {
+        Capsule locked = new Capsule(1, "Plain", "Nothing special",
+                LocalDateTime.of(2030, 5, 1, 8, 30), "Event", "#3498DB");
+        Capsule trashed = new Capsule(2, "<b>Tom & Jerry's</b>", "Quotes \" and = signs\nand ünïcödé",
+                LocalDateTime.of(2024, 1, 2, 3, 4, 5, 600_000_000), "Reminder", "#E74C3C");
+        trashed.deleteCapsule();
+        Capsule noColor = new Capsule(3, "No color", "Color is null", LocalDateTime.now(), "Reflection", null);
+        return List.of(locked, trashed, noColor);
+    }
+
+    @Test
+    void testOutputMatchesReflectiveGson() throws IOException {
+        Gson gson = new GsonBuilder()
+                .registerTypeAdapter(LocalDateTime.class,
+                        (JsonSerializer<LocalDateTime>) (date, type, context) -> new JsonPrimitive(date.toString()))
+                .setPrettyPrinting()
+                .create();
+        List<Capsule> capsules = sampleCapsules();
+        StringWriter writer = new StringWriter();
+        CapsuleJsonCodec.writeArray(capsules, writer);
+
+        assertEquals(gson.toJson(capsules), writer.toString(), "Codec output should be byte-compatible.");
+    }
+
+    @Test
+    void testRoundTrip() throws IOException {
+        List<Capsule> original = sampleCapsules();
+        StringWriter writer = new StringWriter();
+        CapsuleJsonCodec.writeArray(original, writer);
+
+        List<Capsule> decoded = new ArrayList<>();
+        CapsuleJsonCodec.readArray(new JsonReader(new StringReader(writer.toString())), decoded::add);
+
+        assertEquals(original.size(), decoded.size());
+        for (int i = 0; i < original.size(); i++) {
+            assertEquals(original.get(i).getRawTitle(), decoded.get(i).getRawTitle());
+            assertEquals(original.get(i).getRawMessage(), decoded.get(i).getRawMessage());
+            assertEquals(original.get(i).getColor(), decoded.get(i).getColor());
+            assertEquals(original.get(i).getUnlockDate(), decoded.get(i).getUnlockDate());
+            assertEquals(original.get(i).getDateCreated(), decoded.get(i).getDateCreated());
+            assertEquals(original.get(i).getStatus(), decoded.get(i).getStatus());
+            assertEquals(original.get(i).getDeletedAt(), decoded.get(i).getDeletedAt());
+        }
+    }
+
+    @Test
+    void testParseDateShapes() {
+        for (String text : new String[]{"2025-03-04T05:06", "2025-03-04T05:06:07", "2025-03-04T05:06:07.1",
+                "2025-03-04T05:06:07.123456789", "+12025-03-04T05:06"}) {
+            assertEquals(LocalDateTime.parse(text), CapsuleJsonCodec.parseDate(text), text);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package cz.dearfuture.repositories;
+
+import cz.dearfuture.models.Capsule;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CapsuleKeySortTest {
+
+    @Test
+    void testSortMatchesComparatorForEveryKey() {
+        String[] texts = {"a", "A", "ab", "aB", "Abc", "abcd", "ABCDE", "abcde", "Zeta", "zz", "é", "É", "", "a\0"};
+        LocalDateTime base = LocalDateTime.of(2030, 1, 1, 0, 0);
+        List<Capsule> capsules = new ArrayList<>();
+        // Few distinct texts are sorted by rank, mostly distinct ones by their whole key
+        for (int distinct : new int[]{3, 5_000}) {
+            Random random = new Random(11);
+            capsules = new ArrayList<>();
+            for (int id = 1; id <= 5_000; id++) {
+                String title = "Capsule " + texts[random.nextInt(texts.length)] + id % distinct;
+                LocalDateTime unlockDate = base.plusSeconds(random.nextInt(100)).plusNanos(random.nextInt(3) * 1_000L);
+                capsules.add(new Capsule(id, title, "Message", unlockDate, texts[random.nextInt(texts.length)], "#3498DB"));
+            }
+
+            for (CapsuleSortKey key : CapsuleSortKey.values()) {
+                for (boolean descending : new boolean[]{false, true}) {
+                    List<Capsule> expected = new ArrayList<>(capsules);
+                    expected.sort(key.comparator(descending));
+                    assertEquals(expected, CapsuleKeySort.sort(capsules, key, descending),
+                            "Key sort should match the comparator: " + key + (descending ? " descending" : ""));
+                }
+            }
+        }
+        assertEquals(1, capsules.get(0).getId(), "The input list should not be modified.");
+        assertTrue(CapsuleKeySort.sort(List.of(), CapsuleSortKey.TITLE, false).isEmpty());
+    }
+
+    @Test
+    void testParallelRadixSortMatchesComparator() {
+        Random random = new Random(5);
+        LocalDateTime base = LocalDateTime.of(2030, 1, 1, 0, 0);
+        List<Capsule> capsules = new ArrayList<>();
+        for (int id = 1; id <= 200_000; id++) { // Large enough to split the radix passes
+            LocalDateTime unlockDate = base.plusMinutes(random.nextInt(50_000)).plusNanos(random.nextInt(2));
+            capsules.add(new Capsule(random.nextInt(1_000_000) - 500_000, "Title", "Message", unlockDate,
+                    "Event", "#3498DB"));
+        }
+        capsules.add(new Capsule(1, "Title", "Message", LocalDateTime.of(1900, 1, 1, 0, 0), "Event", "#3498DB"));
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (boolean descending : new boolean[]{false, true}) {
+            List<Capsule> expected = new ArrayList<>(capsules);
+            expected.sort(CapsuleSortKey.UNLOCK_DATE.comparator(descending));
+            assertEquals(expected, CapsuleKeySort.radixSort(capsules, CapsuleSortKey.UNLOCK_DATE, descending, pool),
+                    "Radix sort should match the comparator" + (descending ? " descending" : ""));
+        }
+        pool.shutdown();
+        assertThrows(IllegalArgumentException.class,
+                () -> CapsuleKeySort.radixSort(capsules, CapsuleSortKey.TITLE, false, pool));
+    }
+}
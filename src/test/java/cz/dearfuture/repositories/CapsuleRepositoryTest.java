@@ -1,11 +1,21 @@
 package cz.dearfuture.repositories;
 
 import cz.dearfuture.models.Capsule;
+import cz.dearfuture.models.CapsuleStatus;
 import org.junit.jupiter.api.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -13,6 +23,7 @@ import static org.junit.jupiter.api.Assertions.*;
 class CapsuleRepositoryTest {
     private CapsuleRepository repository;
     private final String TEST_FILE_PATH = "data/test_capsules.json"; // Separate test file
+    private final String TEST_BINARY_PATH = "data/test_capsules.bin";
 
     @BeforeAll
     void setupTestFile() {
@@ -107,9 +118,681 @@ class CapsuleRepositoryTest {
         assertEquals(1, deletedCapsules.size(), "Capsules deleted over 15 days ago should be removed.");
     }
 
+    @Test
+    void testChangeLogReplay() {
+        repository.addCapsule(new Capsule(7, "Kept", "Stays in the repository",
+                LocalDateTime.now().plusDays(3), "Event", "#3498DB"));
+        repository.addCapsule(new Capsule(8, "Trashed", "Goes to trash",
+                LocalDateTime.now().plusDays(3), "Reminder", "#E74C3C"));
+        repository.addCapsule(new Capsule(9, "Erased", "Gets erased",
+                LocalDateTime.now().plusDays(3), "Reminder", "#9B59B6"));
+        repository.deleteCapsule(8);
+        repository.permanentlyDeleteCapsule(9);
+
+        CapsuleRepository reopened = new CapsuleRepository(TEST_FILE_PATH);
+
+        assertEquals(2, reopened.getAllCapsules().size(), "Replay should restore all remaining capsules.");
+        assertEquals("Kept", reopened.getCapsuleById(7).getTitle());
+        assertEquals(1, reopened.getDeletedCapsules().size(), "Replay should restore the trash.");
+        assertEquals(repository.getDeletedCapsules().get(0).getDeletedAt(),
+                reopened.getDeletedCapsules().get(0).getDeletedAt(), "Deletion time should survive replay.");
+        assertNull(reopened.getCapsuleById(9), "Permanently deleted capsule should stay deleted.");
+    }
+
+    @Test
+    void testTornLogTailIsCutBeforeAppending() throws Exception {
+        repository.addCapsule(new Capsule(1, "First", "Committed", LocalDateTime.now().plusDays(1), "Event", "#3498DB"));
+        repository.addCapsule(new Capsule(2, "Second", "Committed", LocalDateTime.now().plusDays(1), "Event", "#3498DB"));
+        repository.close();
+        // A crash mid-append leaves a partial record without its line break
+        Files.writeString(Path.of(TEST_FILE_PATH + ".log"), "{\"op\":\"ADD\",\"caps", StandardOpenOption.APPEND);
+
+        CapsuleRepository reopened = new CapsuleRepository(new JsonCapsuleStore(TEST_FILE_PATH), Duration.ZERO,
+                Durability.EVERY_COMMIT);
+        assertEquals(2, reopened.getAllCapsules().size(), "Replay should skip the torn record.");
+        reopened.addCapsule(new Capsule(3, "Third", "Committed after the crash",
+                LocalDateTime.now().plusDays(1), "Event", "#3498DB"));
+        // Crash again without a checkpoint, so capsule 3 exists only in the log
+
+        CapsuleRepository restarted = new CapsuleRepository(TEST_FILE_PATH);
+        assertNotNull(restarted.getCapsuleById(3), "A record appended after a torn tail should survive a restart.");
+        assertEquals(3, restarted.getAllCapsules().size());
+        restarted.close();
+    }
+
+    @Test
+    void testCorruptLogRecordFailsReplay() throws Exception {
+        repository.close();
+        CapsuleRepository crashed = new CapsuleRepository(new JsonCapsuleStore(TEST_FILE_PATH), Duration.ZERO,
+                Durability.EVERY_COMMIT);
+        crashed.addCapsule(new Capsule(1, "First", "Committed", LocalDateTime.now().plusDays(1), "Event", "#3498DB"));
+        Path log = Path.of(TEST_FILE_PATH + ".log");
+        Files.writeString(log, "{\"op\":\"ADD\",\"caps\n", StandardOpenOption.APPEND);
+        crashed.addCapsule(new Capsule(2, "Second", "Committed after the damage",
+                LocalDateTime.now().plusDays(1), "Event", "#3498DB"));
+        // Crash without a checkpoint, so both capsules exist only in the log
+        String before = Files.readString(log);
+
+        UncheckedIOException failure = assertThrows(UncheckedIOException.class,
+                () -> new CapsuleRepository(TEST_FILE_PATH));
+        assertTrue(failure.getCause().getMessage().contains("byte offset"), failure.getCause().getMessage());
+        assertEquals(before, Files.readString(log), "A corrupt record must not truncate the records after it.");
+    }
+
+    @Test
+    void testFailedMaintenanceRunKeepsSchedule() throws InterruptedException {
+        CapsuleCheckpointer checkpointer = new CapsuleCheckpointer(() -> { }, Long.MAX_VALUE, Duration.ofMinutes(10),
+                () -> 0);
+        CountDownLatch runs = new CountDownLatch(2);
+        checkpointer.schedulePeriodic(() -> {
+            runs.countDown();
+            if (runs.getCount() == 1) {
+                throw new UncheckedIOException(new IOException("Simulated write failure"));
+            }
+        }, Duration.ofMillis(10));
+
+        assertTrue(runs.await(5, TimeUnit.SECONDS), "A failed run should not cancel the next ones.");
+        checkpointer.shutdown();
+    }
+
+    @Test
+    void testStatusViewsKeepListOrder() {
+        for (int id = 1; id <= 8; id++) {
+            LocalDateTime unlockDate = id <= 5 ? LocalDateTime.now().plusDays(1) : LocalDateTime.now().minusDays(1);
+            repository.addCapsule(new Capsule(id, "Ordered " + id, "Message " + id, unlockDate, "Event", "#3498DB"));
+        }
+        repository.deleteCapsule(2);
+        repository.deleteCapsule(4);
+        repository.restoreCapsule(2);
+        for (int id : new int[]{8, 6, 7}) {
+            Capsule capsule = repository.getCapsuleById(id);
+            capsule.openCapsule();
+            repository.updateCapsule(capsule);
+        }
+
+        assertEquals(List.of(1, 2, 3, 5), repository.getLockedCapsules().stream().map(Capsule::getId).toList(),
+                "Restoring a capsule should not reorder the locked capsules.");
+        assertEquals(List.of(4), repository.getDeletedCapsules().stream().map(Capsule::getId).toList());
+        assertEquals(List.of(6, 7, 8), repository.getArchivedCapsules().stream().map(Capsule::getId).toList(),
+                "Opening capsules should not reorder the archive.");
+    }
+
+    @Test
+    void testCheckpointClearsLog() {
+        repository.addCapsule(new Capsule(10, "Checkpointed", "Written to the snapshot",
+                LocalDateTime.now().plusDays(1), "Event", "#2ECC71"));
+        repository.checkpoint();
+
+        assertEquals(0, new File(TEST_FILE_PATH + ".log").length(), "Checkpoint should truncate the change log.");
+        assertEquals(1, new CapsuleRepository(TEST_FILE_PATH).getAllCapsules().size(),
+                "Snapshot should contain the checkpointed capsule.");
+    }
+
+    @Test
+    void testBackgroundCheckpoint() throws InterruptedException {
+        CapsuleRepository eager = new CapsuleRepository(new JsonCapsuleStore(TEST_FILE_PATH), 1, Duration.ofMinutes(10));
+        eager.addCapsule(new Capsule(11, "Background", "Checkpointed off the caller's thread",
+                LocalDateTime.now().plusDays(1), "Event", "#1ABC9C"));
+
+        File logFile = new File(TEST_FILE_PATH + ".log");
+        for (int i = 0; i < 100 && logFile.length() > 0; i++) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(0, logFile.length(), "Background checkpoint should truncate the change log.");
+        eager.close();
+        assertEquals(1, new CapsuleRepository(TEST_FILE_PATH).getAllCapsules().size(),
+                "Snapshot should contain the capsule.");
+    }
+
+    @Test
+    void testAsyncWritesAreCoalesced() {
+        List<Integer> updates = new ArrayList<>();
+        CapsuleStore counting = new InMemoryCapsuleStore() {
+            @Override
+            public void capsuleUpdated(Capsule capsule) {
+                updates.add(capsule.getId());
+            }
+        };
+        CapsuleRepository async = new CapsuleRepository(counting, Duration.ofMinutes(10));
+        async.addCapsule(new Capsule(16, "Burst", "Trashed and restored many times",
+                LocalDateTime.now().plusDays(1), "Event", "#9B59B6"));
+        for (int i = 0; i < 50; i++) {
+            async.deleteCapsule(16);
+            async.restoreCapsule(16);
+        }
+
+        assertTrue(updates.isEmpty(), "Mutations should wait for the write delay.");
+        async.flush();
+        assertEquals(List.of(16), updates, "A burst of changes should be written once.");
+        async.close();
+    }
+
+    @Test
+    void testDurabilityPolicies() {
+        int[] syncs = new int[1];
+        CapsuleStore counting = new InMemoryCapsuleStore() {
+            @Override
+            public void sync() {
+                syncs[0]++;
+            }
+        };
+        Capsule capsule = new Capsule(19, "Durable", "Forced to disk", LocalDateTime.now().plusDays(1), "Event", "#2ECC71");
+
+        CapsuleRepository everyCommit = new CapsuleRepository(counting, CapsuleRepository.SYNCHRONOUS, Durability.EVERY_COMMIT);
+        everyCommit.addCapsule(capsule);
+        everyCommit.deleteCapsule(19);
+        everyCommit.close();
+        assertEquals(2, syncs[0], "Every synchronous mutation should be forced.");
+
+        syncs[0] = 0;
+        CapsuleRepository batched = new CapsuleRepository(counting, Duration.ofMinutes(10), Durability.EVERY_COMMIT);
+        batched.addCapsule(capsule);
+        batched.restoreCapsule(19);
+        batched.flush();
+        assertEquals(1, syncs[0], "An asynchronous flush should be forced once.");
+        batched.close();
+
+        syncs[0] = 0;
+        CapsuleRepository grouped = new CapsuleRepository(counting, CapsuleRepository.SYNCHRONOUS,
+                Durability.groupSync(Duration.ofMinutes(10)));
+        grouped.addCapsule(capsule);
+        grouped.restoreCapsule(19);
+        assertEquals(0, syncs[0], "Group sync should not force on the caller's thread.");
+        grouped.close();
+        assertEquals(1, syncs[0], "Closing should force the pending group.");
+
+        syncs[0] = 0;
+        CapsuleRepository unsynced = new CapsuleRepository(counting, CapsuleRepository.SYNCHRONOUS, Durability.NO_SYNC);
+        unsynced.addCapsule(capsule);
+        unsynced.close();
+        assertEquals(0, syncs[0], "No-sync should never force.");
+    }
+
+    @Test
+    void testAsyncWritesAreFlushedInBackgroundAndOnClose() throws InterruptedException {
+        CapsuleRepository async = new CapsuleRepository(new JsonCapsuleStore(TEST_FILE_PATH), Duration.ofMillis(20));
+        async.addCapsule(new Capsule(17, "Later", "Written by the background writer",
+                LocalDateTime.now().plusDays(1), "Event", "#3498DB"));
+
+        File logFile = new File(TEST_FILE_PATH + ".log");
+        for (int i = 0; i < 100 && logFile.length() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(logFile.length() > 0, "Background writer should persist the capsule.");
+
+        async.permanentlyDeleteCapsule(17);
+        async.addCapsule(new Capsule(18, "Pending", "Written on close",
+                LocalDateTime.now().plusDays(1), "Event", "#3498DB"));
+        async.close();
+        async.close();
+
+        CapsuleRepository reopened = new CapsuleRepository(TEST_FILE_PATH);
+        assertNull(reopened.getCapsuleById(17), "Pending removal should be persisted on close.");
+        assertNotNull(reopened.getCapsuleById(18), "Pending capsule should be persisted on close.");
+        reopened.close();
+    }
+
+    @Test
+    void testPermanentDeleteKeepsIdLookupsConsistent() {
+        for (int id = 40; id < 45; id++) {
+            repository.addCapsule(new Capsule(id, "Indexed " + id, "Found by ID", LocalDateTime.now().plusDays(1),
+                    "Event", "#3498DB"));
+        }
+        repository.permanentlyDeleteCapsule(41);
+        repository.permanentlyDeleteCapsule(44);
+
+        assertNull(repository.getCapsuleById(41));
+        assertNull(repository.getCapsuleById(44));
+        for (int id : new int[]{40, 42, 43}) {
+            assertEquals("Indexed " + id, repository.getCapsuleById(id).getTitle(), "Moved capsule should stay findable.");
+        }
+        assertEquals(3, repository.getAllCapsules().size());
+    }
+
+    @Test
+    void testStatusViewsFollowTransitions() {
+        Capsule unlocked = new Capsule(50, "Unlocked", "Ready to open", LocalDateTime.now().minusDays(1), "Event", "#3498DB");
+        repository.addCapsule(unlocked);
+        repository.addCapsule(new Capsule(51, "Locked", "Not yet", LocalDateTime.now().plusDays(1), "Event", "#3498DB"));
+        repository.addCapsule(new Capsule(52, "Trashed", "Going away", LocalDateTime.now().plusDays(1), "Event", "#3498DB"));
+
+        unlocked.openCapsule();
+        repository.updateCapsule(unlocked);
+        repository.deleteCapsule(52);
+
+        assertEquals(List.of(51), repository.getLockedCapsules().stream().map(Capsule::getId).toList());
+        assertEquals(List.of(50), repository.getArchivedCapsules().stream().map(Capsule::getId).toList());
+        assertEquals(List.of(52), repository.getDeletedCapsules().stream().map(Capsule::getId).toList());
+
+        repository.restoreCapsule(52);
+        repository.permanentlyDeleteCapsule(51);
+        assertEquals(List.of(52), repository.getLockedCapsules().stream().map(Capsule::getId).toList(),
+                "Restored capsule should be locked again, removed one gone.");
+        assertTrue(repository.getDeletedCapsules().isEmpty());
+    }
+
+    @Test
+    void testUnlockDateRangeQueries() {
+        LocalDateTime now = LocalDateTime.now();
+        repository.addCapsule(new Capsule(60, "Soon", "In two days", now.plusDays(2), "Event", "#3498DB"));
+        repository.addCapsule(new Capsule(61, "Later", "In twenty days", now.plusDays(20), "Event", "#3498DB"));
+        assertEquals(1, repository.countUnlockingBetween(now, now.plusDays(7)));
+
+        Capsule moved = new Capsule(61, "Later", "Moved closer", now.plusDays(3), "Event", "#3498DB");
+        repository.updateCapsule(moved);
+        repository.addCapsule(new Capsule(62, "Sooner", "Tomorrow", now.plusDays(1), "Event", "#3498DB"));
+        assertEquals(List.of(62, 60, 61), repository.capsulesUnlockingBetween(now, now.plusDays(7)).stream()
+                .map(Capsule::getId).toList(), "Range should follow updates in unlock order.");
+
+        repository.permanentlyDeleteCapsule(60);
+        assertEquals(2, repository.countUnlockingBetween(now, now.plusDays(7)));
+    }
+
+    @Test
+    void testCleanupOnlyPersistsExpiredTrash() {
+        List<Integer> removed = new ArrayList<>();
+        CapsuleStore counting = new InMemoryCapsuleStore() {
+            @Override
+            public void capsuleRemoved(int id) {
+                removed.add(id);
+            }
+        };
+        CapsuleRepository trash = new CapsuleRepository(counting);
+        Capsule expired = new Capsule(70, "Expired", "Trashed long ago", "#E74C3C", LocalDateTime.now().plusDays(1),
+                "Event", LocalDateTime.now().minusDays(40), CapsuleStatus.DELETED, LocalDateTime.now().minusDays(20));
+        trash.addCapsule(expired);
+        trash.addCapsule(new Capsule(71, "Recent", "Trashed just now", LocalDateTime.now().plusDays(1), "Event", "#E74C3C"));
+        trash.deleteCapsule(71);
+
+        assertEquals(1, trash.cleanupOldDeletedCapsules());
+        assertEquals(List.of(70), removed, "Only the expired capsule should be removed.");
+        assertEquals(0, trash.cleanupOldDeletedCapsules(), "Nothing else has expired.");
+        assertEquals(List.of(70), removed, "Nothing should be persisted when nothing expired.");
+
+        trash.restoreCapsule(71);
+        trash.updateCapsule(new Capsule(72, "Old", "Re-added as trashed", "#E74C3C", LocalDateTime.now().plusDays(1),
+                "Event", LocalDateTime.now().minusDays(40), CapsuleStatus.DELETED, LocalDateTime.now().minusDays(30)));
+        assertEquals(1, trash.cleanupOldDeletedCapsules(), "Queue should follow later changes.");
+        assertNotNull(trash.getCapsuleById(71), "Restored capsules should not expire.");
+        trash.close();
+    }
+
+    @Test
+    void testDuplicateDetectionUsesActualMessages() {
+        repository.addCapsule(new Capsule(80, "Hello Future", "Secret plans", LocalDateTime.now().plusDays(5),
+                "Event", "#3498DB"));
+
+        assertTrue(repository.doesSimilarCapsuleExist("  hello future ", "SECRET PLANS"),
+                "Locked capsules should be compared by their real message.");
+        assertFalse(repository.doesSimilarCapsuleExist("Hello Future", "This capsule is locked!"),
+                "The locked placeholder should not match.");
+
+        repository.updateCapsule(new Capsule(80, "Hello Future", "Changed plans", LocalDateTime.now().plusDays(5),
+                "Event", "#3498DB"));
+        assertFalse(repository.doesSimilarCapsuleExist("Hello Future", "Secret plans"), "Index should follow updates.");
+        assertTrue(repository.doesSimilarCapsuleExist("hello future", "changed plans"));
+
+        repository.deleteCapsule(80);
+        assertFalse(repository.doesSimilarCapsuleExist("Hello Future", "Changed plans"), "Trashed capsules should not match.");
+        repository.restoreCapsule(80);
+        assertTrue(repository.doesSimilarCapsuleExist("Hello Future", "Changed plans"));
+        repository.permanentlyDeleteCapsule(80);
+        assertFalse(repository.doesSimilarCapsuleExist("Hello Future", "Changed plans"));
+    }
+
+    @Test
+    void testSortedViewsFollowMutations() {
+        LocalDateTime base = LocalDateTime.of(2030, 1, 1, 12, 0);
+        repository.addCapsule(new Capsule(90, "banana", "Message", base.plusDays(3), "Reminder", "#3498DB"));
+        repository.addCapsule(new Capsule(91, "Apple", "Message", base.plusDays(1), "event", "#3498DB"));
+        repository.addCapsule(new Capsule(92, "cherry", "Message", base.plusDays(2), "Event", "#3498DB"));
+
+        assertEquals(List.of(91, 90, 92), ids(repository.getSortedCapsules(CapsuleSortKey.TITLE, false)));
+        assertEquals(List.of(92, 90, 91), ids(repository.getSortedCapsules(CapsuleSortKey.TITLE, true)));
+        assertEquals(List.of(91, 92, 90), ids(repository.getSortedCapsules(CapsuleSortKey.UNLOCK_DATE, false)));
+        assertEquals(List.of(91, 92, 90), ids(repository.getSortedCapsules(CapsuleSortKey.CATEGORY, false)),
+                "Equal categories should be ordered by ID, ignoring case.");
+        assertEquals(3, repository.getSortedCapsules(CapsuleSortKey.CREATED_DATE, true).size());
+
+        repository.updateCapsule(new Capsule(91, "Zucchini", "Message", base.plusDays(9), "Reflection", "#3498DB"));
+        repository.addCapsule(new Capsule(93, "Date", "Message", base, "Event", "#3498DB"));
+        repository.permanentlyDeleteCapsule(90);
+
+        assertEquals(List.of(92, 93, 91), ids(repository.getSortedCapsules(CapsuleSortKey.TITLE, false)),
+                "Sorted views should follow updates, additions and removals.");
+        assertEquals(List.of(91, 92, 93), ids(repository.getSortedCapsules(CapsuleSortKey.UNLOCK_DATE, true)));
+        assertEquals(List.of(92, 93, 91), ids(repository.getSortedCapsules(CapsuleSortKey.CATEGORY, false)));
+    }
+
+    @Test
+    void testQueriesUseMostSelectiveIndex() {
+        LocalDateTime base = LocalDateTime.of(2030, 1, 1, 12, 0);
+        for (int id = 1; id <= 30; id++) {
+            repository.addCapsule(new Capsule(id, (id % 3 == 0 ? "Birthday " : "Note ") + id, "Message",
+                    base.plusDays(id), id % 2 == 0 ? "Event" : "Reminder", id % 5 == 0 ? "#E74C3C" : "#3498DB"));
+        }
+        repository.deleteCapsule(4);
+        repository.deleteCapsule(5);
+
+        CapsuleQuery trashed = new CapsuleQuery().status(CapsuleStatus.DELETED);
+        assertEquals("status partition DELETED (2 candidates)", repository.explain(trashed));
+        assertEquals(2, repository.count(trashed));
+
+        CapsuleQuery window = new CapsuleQuery().unlockBetween(base.plusDays(10), base.plusDays(14))
+                .category("EVENT").sortBy(CapsuleSortKey.TITLE, true);
+        assertEquals("full scan (30 candidates) -> filter [category, unlock date] -> sort by TITLE descending",
+                repository.explain(window), "Indexes that are not built yet should not be used.");
+        repository.countUnlockingBetween(base, base); // Builds the unlock-date index
+        assertEquals("unlock-date index range (3 candidates) -> filter [category] -> sort by TITLE descending",
+                repository.explain(window));
+        assertEquals(List.of(12), ids(repository.query(window)));
+        assertEquals(List.of(28, 26), ids(repository.query(window.unlockBetween(base.plusDays(11), null).limit(2))),
+                "Open-ended ranges and limits should apply.");
+
+        repository.getSortedCapsules(CapsuleSortKey.TITLE, false); // Builds the title index
+        CapsuleQuery birthdays = new CapsuleQuery().titleStartsWith("birth").color("#e74c3c");
+        assertEquals("title index prefix range (10 candidates) -> filter [color]", repository.explain(birthdays));
+        assertEquals(List.of(15, 30), ids(repository.query(birthdays.sortBy(CapsuleSortKey.UNLOCK_DATE, false))));
+        assertEquals(2, repository.count(birthdays));
+
+        CapsuleQuery latest = new CapsuleQuery().color("#3498DB").sortBy(CapsuleSortKey.TITLE, false).limit(2);
+        assertEquals("sorted view walk by TITLE -> filter [color] -> stop after 2", repository.explain(latest));
+        assertEquals(List.of(12, 18), ids(repository.query(latest)));
+    }
+
+    private static List<Integer> ids(List<Capsule> capsules) {
+        return capsules.stream().map(Capsule::getId).toList();
+    }
+
+    @Test
+    void testIdAllocationReusesFreedIds() throws InterruptedException {
+        for (int id = 1; id <= 4; id++) {
+            repository.addCapsule(new Capsule(id, "Capsule " + id, "Message", LocalDateTime.now().plusDays(1),
+                    "Event", "#3498DB"));
+        }
+        repository.addCapsule(new Capsule(200, "Imported", "Message", LocalDateTime.now().plusDays(1),
+                "Event", "#3498DB"));
+        repository.permanentlyDeleteCapsule(2);
+
+        assertEquals(2, repository.allocateCapsuleId(), "The gap left by a permanent delete should be reused.");
+        assertEquals(5, repository.allocateCapsuleId());
+        repository.releaseCapsuleId(2);
+        repository.releaseCapsuleId(3); // Still used by a capsule
+        assertEquals(2, repository.allocateCapsuleId(), "A released reservation should be reused.");
+        assertEquals(6, repository.allocateCapsuleId());
+
+        int threads = 8;
+        int perThread = 1000;
+        int[][] allocated = new int[threads][perThread];
+        List<Thread> creators = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int[] ids = allocated[t];
+            creators.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = repository.allocateCapsuleId();
+                }
+            }));
+        }
+        for (Thread creator : creators) {
+            creator.join();
+        }
+        boolean[] seen = new boolean[threads * perThread + 300];
+        for (int[] ids : allocated) {
+            for (int id : ids) {
+                assertTrue(id > 6 && id != 200, "Allocated IDs should not be in use: " + id);
+                assertFalse(seen[id], "Concurrent allocations should never collide: " + id);
+                seen[id] = true;
+            }
+        }
+    }
+
+    @Test
+    void testBinaryStoreRoundTrip() {
+        CapsuleRepository binary = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        binary.addCapsule(new Capsule(12, "Binary", "Stored without JSON",
+                LocalDateTime.now().plusDays(4), "Reflection", "#F1C40F"));
+        binary.addCapsule(new Capsule(13, "Binary Trash", "Deleted before the checkpoint",
+                LocalDateTime.now().plusDays(4), "Reminder", "#E74C3C"));
+        binary.deleteCapsule(13);
+        binary.close();
+
+        CapsuleRepository reopened = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        assertEquals(2, reopened.getAllCapsules().size(), "Binary snapshot should contain all capsules.");
+        assertEquals("Stored without JSON", reopened.getCapsuleById(12).getRawMessage());
+        assertEquals(binary.getDeletedCapsules().get(0).getDeletedAt(),
+                reopened.getDeletedCapsules().get(0).getDeletedAt(), "Binary snapshot should keep exact timestamps.");
+        reopened.close();
+    }
+
+    @Test
+    void testBinaryStatusChangesAreWrittenInPlace() {
+        CapsuleRepository binary = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        binary.addCapsule(new Capsule(15, "In Place", "Status changes should not grow the files",
+                LocalDateTime.now().plusDays(2), "Event", "#3498DB"));
+        File table = new File(TEST_BINARY_PATH);
+        File heap = new File(TEST_BINARY_PATH + ".heap.0");
+        long tableLength = table.length();
+        long heapLength = heap.length();
+
+        binary.deleteCapsule(15);
+        binary.restoreCapsule(15);
+        binary.deleteCapsule(15);
+
+        assertEquals(tableLength, table.length(), "Status changes should overwrite the fixed-width record.");
+        assertEquals(heapLength, heap.length(), "Status changes should not append strings.");
+        binary.close();
+        assertEquals(binary.getDeletedCapsules().get(0).getDeletedAt(),
+                new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH)).getDeletedCapsules().get(0).getDeletedAt());
+    }
+
+    @Test
+    void testBinaryCheckpointCompactsRemovedRecords() {
+        CapsuleRepository binary = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        for (int id = 20; id < 30; id++) {
+            binary.addCapsule(new Capsule(id, "Capsule " + id, "Message " + id,
+                    LocalDateTime.now().plusDays(1), "Reminder", "#FFFFFF"));
+        }
+        binary.permanentlyDeleteCapsule(21);
+        binary.getCapsuleById(22).setTitle("Renamed");
+        binary.updateCapsule(binary.getCapsuleById(22));
+        long tableLength = new File(TEST_BINARY_PATH).length();
+
+        binary.checkpoint();
+
+        assertTrue(new File(TEST_BINARY_PATH).length() < tableLength, "Checkpoint should drop the removed record.");
+        assertFalse(new File(TEST_BINARY_PATH + ".heap.0").exists(), "Checkpoint should replace the old heap.");
+        binary.close();
+        CapsuleRepository reopened = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        assertEquals(9, reopened.getAllCapsules().size());
+        assertNull(reopened.getCapsuleById(21));
+        assertEquals("Renamed", reopened.getCapsuleById(22).getTitle());
+        reopened.close();
+    }
+
+    @Test
+    void testMappedStoreMaterializesLazily() throws Exception {
+        CapsuleRepository binary = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        for (int id = 30; id < 40; id++) {
+            binary.addCapsule(new Capsule(id, "Mapped " + id, "Message " + id,
+                    LocalDateTime.now().plusDays(1), "Event", "#1ABC9C"));
+        }
+        binary.permanentlyDeleteCapsule(31);
+        binary.close();
+
+        try (BinaryCapsuleStore store = new BinaryCapsuleStore(TEST_BINARY_PATH, true)) {
+            MappedCapsuleList capsules = (MappedCapsuleList) store.open();
+            assertEquals(9, capsules.size(), "Removed records should be skipped.");
+            assertEquals("Mapped 35", capsules.get(capsules.indexOfId(35)).getTitle());
+            assertEquals(-1, capsules.indexOfId(31));
+            assertEquals(1, capsules.materializedCount(), "Only touched capsules should be materialized.");
+        }
+
+        CapsuleRepository mapped = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH, true));
+        mapped.deleteCapsule(36);
+        mapped.addCapsule(new Capsule(40, "Added", "Lives on the heap",
+                LocalDateTime.now().plusDays(1), "Event", "#FFFFFF"));
+        mapped.permanentlyDeleteCapsule(32);
+        assertTrue(mapped.doesSimilarCapsuleExist("mapped 38", "MESSAGE 38"));
+        assertFalse(mapped.doesSimilarCapsuleExist("Mapped 32", "Message 32"));
+        assertEquals(9, mapped.getAllCapsules().size());
+        mapped.close();
+
+        CapsuleRepository reopened = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        assertEquals(9, reopened.getAllCapsules().size());
+        assertEquals(1, reopened.getDeletedCapsules().size());
+        assertEquals("Added", reopened.getCapsuleById(40).getTitle());
+        assertNull(reopened.getCapsuleById(32));
+        reopened.close();
+    }
+
+    @Test
+    void testMappedCheckpointCopiesUnreadRecords() throws Exception {
+        CapsuleRepository binary = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        for (int id = 30; id < 40; id++) {
+            binary.addCapsule(new Capsule(id, "Mapped " + id, "Message " + id,
+                    LocalDateTime.now().minusDays(1), "Event", "#1ABC9C"));
+        }
+        binary.close();
+
+        try (BinaryCapsuleStore store = new BinaryCapsuleStore(TEST_BINARY_PATH, true)) {
+            MappedCapsuleList capsules = (MappedCapsuleList) store.open();
+            Capsule touched = capsules.get(capsules.indexOfId(33));
+            touched.setTitle("Touched");
+            store.capsuleUpdated(touched);
+            capsules.remove(capsules.indexOfId(34));
+            store.capsuleRemoved(34);
+
+            store.checkpoint(capsules.snapshot(), store.checkpointMark());
+
+            assertEquals(1, capsules.materializedCount(), "A checkpoint should not load unread capsules.");
+            Capsule unread = capsules.get(capsules.indexOfId(37));
+            assertEquals("Mapped 37", unread.getTitle(), "The list should read the new files.");
+            assertEquals("Message 37", unread.getRawMessage());
+            assertEquals("Message 33", touched.getRawMessage());
+        }
+
+        CapsuleRepository reopened = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        assertEquals(9, reopened.getAllCapsules().size());
+        assertEquals("Touched", reopened.getCapsuleById(33).getTitle());
+        assertNull(reopened.getCapsuleById(34));
+        assertEquals("Message 39", reopened.getCapsuleById(39).getRawMessage());
+        reopened.close();
+    }
+
+    @Test
+    void testBinaryMessagesLoadOnDemand() {
+        CapsuleRepository binary = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        binary.addCapsule(new Capsule(41, "Lazy", "Read only when needed",
+                LocalDateTime.now().minusDays(1), "Reflection", "#2ECC71"));
+        binary.close();
+
+        BinaryCapsuleStore store = new BinaryCapsuleStore(TEST_BINARY_PATH, false, 1024);
+        CapsuleRepository reopened = new CapsuleRepository(store);
+        Capsule capsule = reopened.getCapsuleById(41);
+        assertNotNull(capsule.getMessageSource(), "Message bodies should stay on disk after loading.");
+        assertEquals(0, store.messageCache().size());
+        assertEquals("This capsule is locked!", capsule.getMessage());
+        assertEquals(0, store.messageCache().size(), "Locked capsules should not read their message.");
+
+        assertTrue(capsule.openCapsule());
+        reopened.updateCapsule(capsule);
+        assertEquals("Read only when needed", capsule.getMessage());
+        assertEquals(1, store.messageCache().size());
+
+        File messages = new File(TEST_BINARY_PATH + ".messages.0");
+        long messagesLength = messages.length();
+        capsule.setTitle("Renamed lazily");
+        reopened.updateCapsule(capsule);
+        assertEquals(messagesLength, messages.length(), "An unchanged message body should not be rewritten.");
+        reopened.close();
+
+        Capsule renamed = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH)).getCapsuleById(41);
+        assertEquals("Renamed lazily", renamed.getTitle());
+        assertEquals("Read only when needed", renamed.getMessage());
+    }
+
+    @Test
+    void testBinaryDuplicateCheckUsesStoredHashes() {
+        CapsuleRepository binary = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        for (int id = 50; id < 55; id++) {
+            binary.addCapsule(new Capsule(id, "Hashed " + id, "Body " + id,
+                    LocalDateTime.now().plusDays(1), "Event", "#FFFFFF"));
+        }
+        binary.close();
+
+        BinaryCapsuleStore store = new BinaryCapsuleStore(TEST_BINARY_PATH, false, 1024);
+        CapsuleRepository reopened = new CapsuleRepository(store);
+        assertFalse(reopened.doesSimilarCapsuleExist("Hashed 51", "Body 52"));
+        assertEquals(0, store.messageCache().size(), "Building the index should not read message bodies.");
+        assertTrue(reopened.doesSimilarCapsuleExist("hashed 53", "BODY 53"));
+        reopened.close();
+    }
+
+    @Test
+    void testEmptyMessageDoesNotShadowNextMessage() {
+        CapsuleRepository binary = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        binary.addCapsule(new Capsule(42, "Empty", "", LocalDateTime.now().minusDays(1), "Event", "#FFFFFF"));
+        binary.addCapsule(new Capsule(43, "Secret", "secret B", LocalDateTime.now().minusDays(1), "Event", "#FFFFFF"));
+        binary.close();
+
+        CapsuleRepository reopened = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        assertEquals("", reopened.getCapsuleById(42).getRawMessage());
+        assertEquals("secret B", reopened.getCapsuleById(43).getRawMessage(),
+                "An empty message should not be served for the message stored after it.");
+        reopened.close();
+    }
+
+    @Test
+    void testMessageCacheEvictsLeastRecentlyUsed() {
+        MessageCache cache = new MessageCache(20); // Two 5-character messages
+        cache.put(0, "first");
+        cache.put(5, "other");
+        cache.get(0);
+        cache.put(10, "third");
+
+        assertEquals(2, cache.size());
+        assertEquals("first", cache.get(0), "Recently read messages should stay cached.");
+        assertNull(cache.get(5), "The least recently used message should be evicted.");
+    }
+
+    @Test
+    void testConvertJsonToBinary() throws Exception {
+        repository.addCapsule(new Capsule(16, "Legacy", "Written as JSON",
+                LocalDateTime.now().plusDays(3), "Reflection", "#9B59B6"));
+        repository.close();
+
+        int converted = CapsuleFileConverter.jsonToBinary(new File(TEST_FILE_PATH).toPath(),
+                new File(TEST_BINARY_PATH).toPath());
+
+        assertEquals(1, converted);
+        CapsuleRepository binary = new CapsuleRepository(new BinaryCapsuleStore(TEST_BINARY_PATH));
+        assertEquals("Written as JSON", binary.getCapsuleById(16).getRawMessage());
+        binary.close();
+    }
+
+    @Test
+    void testInMemoryStorePersistsNothing() {
+        CapsuleRepository memory = new CapsuleRepository(new InMemoryCapsuleStore());
+        memory.addCapsule(new Capsule(14, "Volatile", "Gone after close",
+                LocalDateTime.now().plusDays(1), "Event", "#FFFFFF"));
+        memory.close();
+
+        assertEquals(1, memory.getAllCapsules().size(), "In-memory store should keep capsules while open.");
+        assertTrue(new CapsuleRepository(new InMemoryCapsuleStore()).getAllCapsules().isEmpty(),
+                "A new in-memory store should start empty.");
+    }
+
     @AfterEach
     void tearDown() {
         // Clear the test file after each test
         new File(TEST_FILE_PATH).delete();
+        new File(TEST_FILE_PATH + ".log").delete();
+        new File(TEST_BINARY_PATH).delete();
+        File[] binaryFiles = new File(TEST_BINARY_PATH).getAbsoluteFile().getParentFile()
+                .listFiles((dir, name) -> name.startsWith("test_capsules.bin."));
+        for (File file : binaryFiles == null ? new File[0] : binaryFiles) {
+            file.delete();
+        }
     }
 }
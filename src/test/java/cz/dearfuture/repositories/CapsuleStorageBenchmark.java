@@ -0,0 +1,398 @@
+package cz.dearfuture.repositories;
+
+import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import cz.dearfuture.models.Capsule;
+import cz.dearfuture.utils.MultiThreadedMergeSort;
+import cz.dearfuture.utils.TopKSelection;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Manual benchmark for capsule storage.
+ * Not part of the test suite; run it with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=cz.dearfuture.repositories.CapsuleStorageBenchmark}
+ * and optionally pass the capsule counts as arguments (default: 100000 1000000).
+ */
+public class CapsuleStorageBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{100_000, 1_000_000};
+        Path directory = Files.createTempDirectory("capsule-benchmark");
+
+        for (int size : sizes) {
+            Path file = directory.resolve("capsules-" + size + ".json");
+            writeJson(generateCapsules(size), file);
+            System.out.printf("%n=== %,d capsules (%,d KiB JSON) ===%n", size, Files.size(file) / 1024);
+            benchmarkStartup(file);
+            benchmarkLookups(generateCapsules(size));
+            benchmarkSortedViews(generateCapsules(size));
+            benchmarkKeySort(generateCapsules(size));
+        }
+        benchmarkCodec(generateCapsules(Math.min(sizes[0], 100_000)));
+    }
+
+    /**
+     * Compares the legacy whole-file load with the streaming JSON and binary engines.
+     */
+    private static void benchmarkStartup(Path file) throws IOException {
+        measure("startup, readString + Capsule[]", () -> {
+            String json = Files.readString(file);
+            return new ArrayList<>(Arrays.asList(legacyGson(false).fromJson(json, Capsule[].class))).size();
+        });
+        measure("startup, streaming JsonReader", () -> {
+            try (CapsuleRepository repository = new CapsuleRepository(file.toString())) {
+                return repository.getAllCapsules().size();
+            }
+        });
+
+        String binaryPath = file.toString().replace(".json", ".bin");
+        measure("convert JSON to binary", () -> CapsuleFileConverter.jsonToBinary(file, Path.of(binaryPath)));
+        measure("startup, binary store", () -> {
+            try (CapsuleRepository repository = new CapsuleRepository(new BinaryCapsuleStore(binaryPath))) {
+                return repository.getAllCapsules().size();
+            }
+        });
+        measure("startup, mapped binary store + 1 lookup", () -> {
+            try (CapsuleRepository repository = new CapsuleRepository(new BinaryCapsuleStore(binaryPath, true))) {
+                return repository.getCapsuleById(1) != null ? 1 : 0;
+            }
+        });
+        retainedHeap("resident heap, streaming JSON", () -> new CapsuleRepository(file.toString()));
+        retainedHeap("resident heap, binary (lazy messages)",
+                () -> new CapsuleRepository(new BinaryCapsuleStore(binaryPath)));
+        for (Durability durability : List.of(Durability.NO_SYNC, Durability.groupSync(Duration.ofMillis(50)),
+                Durability.EVERY_COMMIT)) {
+            benchmarkStatusUpdates("JSON log, " + durability, new JsonCapsuleStore(file.toString()), durability);
+            benchmarkStatusUpdates("binary, " + durability, new BinaryCapsuleStore(binaryPath), durability);
+        }
+    }
+
+    /**
+     * Measures the write latency of trashing and restoring capsules under a
+     * durability policy. The binary engine persists them as fixed-width
+     * positional writes.
+     */
+    private static void benchmarkStatusUpdates(String name, CapsuleStore store, Durability durability) {
+        int updates = 2_000;
+        try (CapsuleRepository repository = new CapsuleRepository(store, CapsuleRepository.SYNCHRONOUS, durability)) {
+            List<Capsule> capsules = repository.getAllCapsules();
+            repository.restoreCapsule(capsules.get(0).getId()); // Builds lookup structures before timing
+            long[] latencies = new long[updates];
+            long start = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                int id = capsules.get(i % capsules.size()).getId();
+                long updateStart = System.nanoTime();
+                if (i % 2 == 0) {
+                    repository.deleteCapsule(id);
+                } else {
+                    repository.restoreCapsule(id);
+                }
+                latencies[i] = System.nanoTime() - updateStart;
+            }
+            long micros = (System.nanoTime() - start) / 1_000;
+            Arrays.sort(latencies);
+            System.out.printf("%-52s %,8d updates  %,8.1f us/update   p99 %,8.1f us%n", name, updates,
+                    micros / (double) updates, latencies[updates * 99 / 100] / 1_000.0);
+        }
+    }
+
+    /**
+     * Measures random lookups and permanent deletions by ID in memory.
+     */
+    private static void benchmarkLookups(List<Capsule> capsules) {
+        int operations = 100_000;
+        Random random = new Random(1);
+        try (CapsuleRepository repository = new CapsuleRepository(new InMemoryCapsuleStore())) {
+            capsules.forEach(repository::addCapsule);
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < operations; i++) {
+                found += repository.getCapsuleById(1 + random.nextInt(capsules.size())) != null ? 1 : 0;
+            }
+            long lookups = System.nanoTime() - start;
+            LocalDateTime base = LocalDateTime.of(2025, 1, 1, 12, 0);
+            start = System.nanoTime();
+            repository.countUnlockingBetween(base, base.plusDays(1)); // Builds the unlock-date index
+            long indexBuild = System.nanoTime() - start;
+            start = System.nanoTime();
+            long matches = 0;
+            for (int i = 0; i < operations; i++) {
+                LocalDateTime from = base.plusDays(random.nextInt(700));
+                matches += repository.countUnlockingBetween(from, from.plusDays(30));
+            }
+            long rangeCounts = System.nanoTime() - start;
+            start = System.nanoTime();
+            int views = repository.getDeletedCapsules().size() + repository.getArchivedCapsules().size();
+            long viewNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                repository.permanentlyDeleteCapsule(1 + random.nextInt(capsules.size()));
+            }
+            long deletions = System.nanoTime() - start;
+            System.out.printf("%-52s %,8d lookups  %,8.3f us/lookup   (%,d found)%n", "lookups by ID",
+                    operations, lookups / 1_000.0 / operations, found);
+            System.out.printf("%-52s %,8d deletes  %,8.3f us/delete%n", "permanent deletions by ID",
+                    operations, deletions / 1_000.0 / operations);
+            System.out.printf("%-52s %,8d ms   (%,d capsules)%n", "trash + archive views", viewNanos / 1_000_000,
+                    views);
+            System.out.printf("%-52s %,8d ms%n", "build unlock-date index", indexBuild / 1_000_000);
+            System.out.printf("%-52s %,8d counts   %,8.3f us/count   (avg %,d matches)%n", "unlock range counts",
+                    operations, rangeCounts / 1_000.0 / operations, matches / operations);
+        }
+    }
+
+    /**
+     * Compares the repository's sorted views with sorting all capsules per request.
+     */
+    private static void benchmarkSortedViews(List<Capsule> capsules) {
+        Comparator<Capsule> byTitle = Comparator.comparing(Capsule::getTitle, String.CASE_INSENSITIVE_ORDER);
+        long start = System.nanoTime();
+        new ArrayList<>(capsules).sort(byTitle);
+        long listSort = System.nanoTime() - start;
+        System.out.printf("%-52s %,8d ms%n", "sort by title, List.sort", listSort / 1_000_000);
+        Comparator<Capsule> totalOrder = byTitle.thenComparingInt(Capsule::getId);
+        List<Capsule> topPage = null;
+        start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            topPage = TopKSelection.select(capsules, totalOrder,
+                    topPage == null ? null : topPage.get(topPage.size() - 1), 3);
+        }
+        long topK = (System.nanoTime() - start) / 10;
+        System.out.printf("%-52s %,8d ms%n", "first pages of 3 by title, top-K selection", topK / 1_000_000);
+        for (int threshold : new int[]{1024, MultiThreadedMergeSort.DEFAULT_THRESHOLD, 65_536}) {
+            MultiThreadedMergeSort.sort(capsules, byTitle, threshold); // Warm-up
+            start = System.nanoTime();
+            MultiThreadedMergeSort.sort(capsules, byTitle, threshold);
+            long parallelSort = System.nanoTime() - start;
+            System.out.printf("%-52s %,8d ms%n", "sort by title, MultiThreadedMergeSort, cutoff " + threshold,
+                    parallelSort / 1_000_000);
+        }
+
+        try (CapsuleRepository repository = new CapsuleRepository(new InMemoryCapsuleStore())) {
+            capsules.forEach(repository::addCapsule);
+            for (CapsuleSortKey key : CapsuleSortKey.values()) {
+                start = System.nanoTime();
+                repository.getSortedCapsules(key, false); // Builds the index
+                long build = System.nanoTime() - start;
+                int views = 10;
+                start = System.nanoTime();
+                for (int i = 0; i < views; i++) {
+                    repository.getSortedCapsules(key, i % 2 == 0);
+                }
+                long walk = (System.nanoTime() - start) / views;
+                System.out.printf("%-52s %,8d ms   build %,8d ms%n", "sorted view, " + key, walk / 1_000_000,
+                        build / 1_000_000);
+            }
+            int pages = 100_000;
+            Capsule after = null;
+            start = System.nanoTime();
+            for (int i = 0; i < pages; i++) {
+                List<Capsule> page = repository.getSortedPage(CapsuleSortKey.TITLE, false, after, 3);
+                after = page.get(page.size() - 1);
+            }
+            long paging = System.nanoTime() - start;
+            System.out.printf("%-52s %,8d pages    %,8.3f us/page%n", "keyset pages of 3 by title", pages,
+                    paging / 1_000.0 / pages);
+            int updates = 100_000;
+            Random random = new Random(2);
+            start = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                Capsule capsule = capsules.get(random.nextInt(capsules.size()));
+                repository.updateCapsule(new Capsule(capsule.getId(), "Renamed " + i, "Message",
+                        capsule.getUnlockDate(), capsule.getCategory(), capsule.getColor()));
+            }
+            long maintained = System.nanoTime() - start;
+            System.out.printf("%-52s %,8d updates  %,8.3f us/update%n", "updates maintaining all sorted views",
+                    updates, maintained / 1_000.0 / updates);
+        }
+    }
+
+    /**
+     * Compares comparator sorts with sorting on extracted keys, for each sort key;
+     * date keys are radix-sorted.
+     */
+    private static void benchmarkKeySort(List<Capsule> capsules) {
+        Collections.shuffle(capsules, new Random(3));
+        for (CapsuleSortKey key : CapsuleSortKey.values()) {
+            Comparator<Capsule> order = key.comparator(false);
+            new ArrayList<>(capsules).sort(order); // Warm-up
+            CapsuleKeySort.sort(capsules, key, false);
+            long start = System.nanoTime();
+            new ArrayList<>(capsules).sort(order);
+            long listSort = System.nanoTime() - start;
+            start = System.nanoTime();
+            MultiThreadedMergeSort.sort(capsules, order);
+            long parallelSort = System.nanoTime() - start;
+            start = System.nanoTime();
+            CapsuleKeySort.sort(capsules, key, false);
+            long keySort = System.nanoTime() - start;
+            System.out.printf("%-52s %,8d ms   merge %,6d ms   %-5s %,6d ms%n", "sort by " + key + ", List.sort",
+                    listSort / 1_000_000, parallelSort / 1_000_000, CapsuleKeySort.isDate(key) ? "radix" : "keys",
+                    keySort / 1_000_000);
+        }
+    }
+
+    /**
+     * Compares encode and decode throughput of reflective Gson binding with
+     * {@link CapsuleJsonCodec}.
+     */
+    private static void benchmarkCodec(List<Capsule> capsules) throws IOException {
+        Gson gson = legacyGson(true);
+        String json = gson.toJson(capsules);
+        String codecJson = encode(capsules);
+        System.out.printf("%n=== Codec throughput, %,d capsules (%s) ===%n", capsules.size(),
+                json.equals(codecJson) ? "outputs identical" : "OUTPUTS DIFFER");
+
+        throughput("encode, Gson reflection", json.length(), () -> gson.toJson(capsules).isEmpty() ? 0 : capsules.size());
+        throughput("encode, CapsuleJsonCodec", json.length(), () -> encode(capsules).isEmpty() ? 0 : capsules.size());
+        throughput("decode, Gson reflection", json.length(), () -> gson.fromJson(json, Capsule[].class).length);
+        throughput("decode, CapsuleJsonCodec", json.length(), () -> {
+            List<Capsule> decoded = new ArrayList<>(capsules.size());
+            CapsuleJsonCodec.readArray(new JsonReader(new StringReader(json)), decoded::add);
+            return decoded.size();
+        });
+    }
+
+    private static String encode(List<Capsule> capsules) throws IOException {
+        StringWriter writer = new StringWriter();
+        CapsuleJsonCodec.writeArray(capsules, writer);
+        return writer.toString();
+    }
+
+    /**
+     * Runs a task repeatedly after a warm-up and prints the best observed throughput.
+     */
+    private static void throughput(String name, long bytes, Task task) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            task.run();
+        }
+        long best = Long.MAX_VALUE;
+        int count = 0;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            count = task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%-40s %,8d ms   %,8.1f MiB/s   %,12.0f capsules/s%n", name, best / 1_000_000,
+                bytes / (1024.0 * 1024.0) / (best / 1e9), count / (best / 1e9));
+    }
+
+    /**
+     * Runs a task once, printing its wall time and the peak heap usage during the run.
+     */
+    static void measure(String name, Task task) throws IOException {
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .toList();
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+        long start = System.nanoTime();
+        int result = task.run();
+        long elapsed = System.nanoTime() - start;
+
+        long peak = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+        System.out.printf("%-40s %,8d ms   peak heap %,8d MiB   (%,d capsules)%n",
+                name, elapsed / 1_000_000, peak / (1024 * 1024), result);
+    }
+
+    /**
+     * Opens a repository and prints the heap it retains while open.
+     */
+    private static void retainedHeap(String name, Supplier<CapsuleRepository> opener) {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        try (CapsuleRepository repository = opener.get()) {
+            System.gc();
+            long retained = runtime.totalMemory() - runtime.freeMemory() - before;
+            System.out.printf("%-40s %,8d MiB   (%,d capsules)%n", name, retained / (1024 * 1024),
+                    repository.getAllCapsules().size());
+        }
+    }
+
+    /**
+     * Generates capsules with realistic field sizes.
+     */
+    static List<Capsule> generateCapsules(int count) {
+        List<Capsule> capsules = new ArrayList<>(count);
+        LocalDateTime base = LocalDateTime.of(2025, 1, 1, 12, 0);
+        String[] categories = {"Event", "Reminder", "Reflection"};
+        String[] colors = {"#E74C3C", "#3498DB", "#2ECC71", "#F1C40F", "#9B59B6", "#FFFFFF"};
+        for (int i = 1; i <= count; i++) {
+            Capsule capsule = new Capsule(i, "Capsule " + i, "Dear future me, this is message number " + i + ".",
+                    base.plusMinutes(i * 37L % 1_000_000), categories[i % categories.length], colors[i % colors.length]);
+            if (i % 10 == 0) {
+                capsule.deleteCapsule();
+            }
+            capsules.add(capsule);
+        }
+        return capsules;
+    }
+
+    /**
+     * Writes capsules in the repository's JSON file format.
+     */
+    static void writeJson(List<Capsule> capsules, Path file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            CapsuleJsonCodec.writeArray(capsules, writer);
+        }
+    }
+
+    /**
+     * @return A Gson instance configured like the repository before {@link CapsuleJsonCodec}.
+     */
+    static Gson legacyGson(boolean prettyPrinting) {
+        GsonBuilder builder = new GsonBuilder()
+                .registerTypeAdapter(LocalDateTime.class, new LegacyLocalDateTimeAdapter());
+        if (prettyPrinting) {
+            builder.setPrettyPrinting();
+        }
+        return builder.create();
+    }
+
+    /**
+     * The tree-model {@link LocalDateTime} adapter the repository used before {@link CapsuleJsonCodec}.
+     */
+    static class LegacyLocalDateTimeAdapter implements JsonSerializer<LocalDateTime>, JsonDeserializer<LocalDateTime> {
+        @Override
+        public JsonElement serialize(LocalDateTime dateTime, Type type, JsonSerializationContext context) {
+            return new JsonPrimitive(dateTime.toString());
+        }
+
+        @Override
+        public LocalDateTime deserialize(JsonElement json, Type type, JsonDeserializationContext context) {
+            return LocalDateTime.parse(json.getAsString());
+        }
+    }
+
+    /**
+     * A benchmarked operation returning the number of capsules it processed.
+     */
+    @FunctionalInterface
+    interface Task {
+        int run() throws IOException;
+    }
+}
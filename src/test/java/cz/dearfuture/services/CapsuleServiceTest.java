@@ -2,11 +2,15 @@ package cz.dearfuture.services;
 
 import cz.dearfuture.models.Capsule;
 import cz.dearfuture.repositories.CapsuleRepository;
+import cz.dearfuture.repositories.CapsuleSortKey;
+import cz.dearfuture.utils.ComputePool;
 import org.junit.jupiter.api.*;
 
 import java.io.File;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -43,6 +47,22 @@ class CapsuleServiceTest {
         assertEquals("#3498DB", capsules.get(0).getColor(), "Capsule should retain assigned color.");
     }
 
+    @Test
+    void testAddCapsuleRejectsDuplicate() {
+        service.addCapsule(new Capsule(1, "Test Capsule", "This is a test message",
+                LocalDateTime.now().plusDays(2), "Reminder", "#3498DB"));
+
+        assertFalse(service.addCapsule(new Capsule(2, " test capsule", "THIS IS A TEST MESSAGE",
+                LocalDateTime.now().plusDays(5), "Event", "#E74C3C")), "Locked duplicates should be rejected.");
+        assertTrue(service.addCapsule(new Capsule(3, "Test Capsule", "Another message",
+                LocalDateTime.now().plusDays(2), "Reminder", "#3498DB")));
+
+        service.deleteCapsule(1);
+        assertTrue(service.addCapsule(new Capsule(4, "Test Capsule", "This is a test message",
+                LocalDateTime.now().plusDays(2), "Reminder", "#3498DB")), "Trashed capsules should not block a new one.");
+        assertEquals(2, service.getLockedCapsules().size());
+    }
+
     @Test
     void testOpenCapsule_Locked() {
         Capsule capsule = new Capsule(2, "Locked Capsule", "Secret Message",
@@ -122,9 +142,107 @@ class CapsuleServiceTest {
         assertEquals(1, deletedCapsules.size(), "Capsules deleted over 15 days ago should be removed.");
     }
 
+    @Test
+    void testPagesFollowSortOrder() {
+        for (int id = 1; id <= 7; id++) {
+            service.addCapsule(new Capsule(id, "Title " + (id * 3 % 7), "Message " + id,
+                    LocalDateTime.now().plusDays(id % 3), "Event", "#3498DB"));
+        }
+
+        for (String option : List.of("Title Z-A", "Unlock Soonest", "Created Newest", "Category A-Z")) {
+            List<Capsule> paged = new ArrayList<>();
+            List<Capsule> page = service.page(option, null, 3);
+            while (!page.isEmpty()) {
+                assertTrue(page.size() <= 3, "Pages should respect the limit.");
+                paged.addAll(page);
+                page = service.page(option, page.get(page.size() - 1), 3);
+            }
+            assertEquals(service.sortCapsules(option), paged, "Pages should cover the sorted list in order: " + option);
+        }
+
+        List<Capsule> first = service.page("Title A-Z", null, 3);
+        service.permanentlyDeleteCapsule(first.get(0).getId());
+        List<Capsule> second = service.page("Title A-Z", first.get(2), 3);
+        assertEquals(service.sortCapsules("Title A-Z").subList(2, 5), second,
+                "A page should continue after its cursor even when earlier capsules were removed.");
+        assertThrows(IllegalArgumentException.class, () -> service.page("Color", null, 3));
+    }
+
+    @Test
+    void testTopCapsulesMatchFullSort() {
+        for (int id = 1; id <= 20; id++) {
+            service.addCapsule(new Capsule(id, (id % 2 == 0 ? "title " : "Title ") + (id * 7 % 5), "Message " + id,
+                    LocalDateTime.now().plusHours(id * 5 % 11), id % 3 == 0 ? "Event" : "Reminder", "#3498DB"));
+        }
+
+        for (String option : List.of("Title A-Z", "Title Z-A", "Unlock Soonest", "Unlock Latest",
+                "Created Newest", "Created Oldest", "Category A-Z", "Category Z-A")) {
+            List<Capsule> first = service.topCapsules(option, null, 4);
+            List<Capsule> next = service.topCapsules(option, first.get(3), 4);
+            List<Capsule> sorted = service.sortCapsules(option);
+            assertEquals(sorted.subList(0, 4), first, "Top-K should match the sorted order: " + option);
+            assertEquals(sorted.subList(4, 8), next, "The next page should follow the first: " + option);
+        }
+        assertEquals(0, service.topCapsules("Title A-Z", null, 0).size());
+        assertEquals(20, service.topCapsules("Title A-Z", null, 50).size());
+    }
+
+    @Test
+    void testSortCapsulesRecordsStrategy() {
+        for (int id = 1; id <= 20; id++) {
+            service.addCapsule(new Capsule(id, "Title " + (id * 7 % 20), "Message " + id,
+                    LocalDateTime.now().plusHours(id * 5 % 11), "Reminder", "#3498DB"));
+        }
+
+        List<Capsule> sorted = service.sortCapsules("Title Z-A");
+        assertEquals(service.topCapsules("Title Z-A", null, 20), sorted);
+        assertEquals(sorted.subList(0, 1), service.sortCapsules("Title Z-A", 1));
+        Map<CapsuleSortPlanner.Strategy, Long> metrics = service.getSortMetrics();
+        assertEquals(1, metrics.get(CapsuleSortPlanner.Strategy.TIMSORT).longValue(),
+                "Twenty capsules should use TimSort.");
+        assertEquals(2, metrics.get(CapsuleSortPlanner.Strategy.TOP_K).longValue(),
+                "A limit of 1 of 20 should select the top.");
+        assertFalse(repository.hasSortedView(CapsuleSortKey.TITLE));
+
+        assertEquals(sorted, service.sortCapsules("Title Z-A"));
+        assertTrue(repository.hasSortedView(CapsuleSortKey.TITLE), "A repeatedly sorted key should get a view.");
+        assertEquals(sorted, service.sortCapsules("Title Z-A"));
+        assertEquals(2, service.getSortMetrics().get(CapsuleSortPlanner.Strategy.SORTED_VIEW).longValue());
+        assertThrows(IllegalArgumentException.class, () -> service.sortCapsules("Title Z-A", -1));
+    }
+
+    @Test
+    void testExportImportRoundTripOnPool() {
+        String csvPath = "data/test_capsules_export.csv";
+        CapsuleService pooled = new CapsuleService(repository, new ComputePool(2, true));
+        for (int id = 1; id <= 2500; id++) { // Spans several chunks
+            Capsule capsule = new Capsule(id, "Title " + id, "Message " + id,
+                    LocalDateTime.now().plusDays(id % 30 - 10), "Event", "#3498DB");
+            if (id % 7 == 0) {
+                capsule.deleteCapsule();
+            }
+            pooled.addCapsule(capsule);
+        }
+        List<Capsule> before = repository.getAllCapsules();
+
+        pooled.exportCapsulesToFile(csvPath);
+        pooled.importCapsulesFromFile(csvPath);
+        pooled.shutdown();
+        new File(csvPath).delete();
+
+        List<Capsule> after = repository.getAllCapsules();
+        assertEquals(before.size(), after.size(), "All capsules should round-trip.");
+        for (int i = 0; i < before.size(); i++) {
+            assertEquals(before.get(i).getId(), after.get(i).getId(), "Import should keep the file order.");
+            assertEquals(before.get(i).getRawMessage(), after.get(i).getRawMessage());
+            assertEquals(before.get(i).getStatus(), after.get(i).getStatus());
+        }
+    }
+
     @AfterEach
     void tearDown() {
         // Clear the test file after each test
         new File(TEST_FILE_PATH).delete();
+        new File(TEST_FILE_PATH + ".log").delete();
     }
 }
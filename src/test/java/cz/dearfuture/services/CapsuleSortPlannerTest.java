@@ -0,0 +1,60 @@
+package cz.dearfuture.services;
+
+import cz.dearfuture.models.Capsule;
+import cz.dearfuture.repositories.CapsuleSortKey;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static cz.dearfuture.services.CapsuleSortPlanner.Strategy.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CapsuleSortPlannerTest {
+
+    @Test
+    void testPlanFollowsSizeKeyAndPresortedness() {
+        LocalDateTime base = LocalDateTime.of(2030, 1, 1, 0, 0);
+        List<Capsule> sorted = new ArrayList<>();
+        for (int id = 1; id <= 50_000; id++) {
+            sorted.add(new Capsule(id, String.format("Title %06d", id), "Message", base.plusMinutes(id),
+                    "Event", "#3498DB"));
+        }
+        List<Capsule> shuffled = new ArrayList<>(sorted);
+        Collections.shuffle(shuffled, new Random(1));
+        CapsuleSortPlanner planner = new CapsuleSortPlanner(4);
+        CapsuleSortPlanner singleCore = new CapsuleSortPlanner(1);
+
+        assertEquals(TIMSORT, planner.plan(shuffled.subList(0, 5), CapsuleSortKey.TITLE, false, Integer.MAX_VALUE),
+                "Small inputs should not be handed to other threads.");
+        assertEquals(TOP_K, planner.plan(shuffled, CapsuleSortKey.TITLE, false, 10));
+        assertEquals(TIMSORT, planner.plan(sorted, CapsuleSortKey.UNLOCK_DATE, false, Integer.MAX_VALUE),
+                "Presorted inputs should use TimSort.");
+        assertEquals(RADIX, planner.plan(sorted, CapsuleSortKey.UNLOCK_DATE, true, Integer.MAX_VALUE),
+                "An input sorted the other way is not presorted.");
+        assertEquals(RADIX, planner.plan(shuffled, CapsuleSortKey.CREATED_DATE, false, 40_000));
+        assertEquals(PARALLEL_MERGE, planner.plan(shuffled, CapsuleSortKey.TITLE, false, Integer.MAX_VALUE));
+        assertEquals(KEY_SORT, singleCore.plan(shuffled, CapsuleSortKey.CATEGORY, false, Integer.MAX_VALUE));
+
+        planner.record(RADIX);
+        planner.record(RADIX);
+        planner.record(TOP_K);
+        assertEquals(2, planner.metrics().get(RADIX).longValue());
+        assertEquals(1, planner.metrics().get(TOP_K).longValue());
+        assertEquals(0, planner.metrics().get(TIMSORT).longValue());
+    }
+
+    @Test
+    void testSortedViewIsAdoptedForRepeatedKeys() {
+        CapsuleSortPlanner planner = new CapsuleSortPlanner(1);
+        for (int request = 1; request < CapsuleSortPlanner.VIEW_ADOPTION_REQUESTS; request++) {
+            assertFalse(planner.useSortedView(CapsuleSortKey.TITLE, false));
+        }
+        assertTrue(planner.useSortedView(CapsuleSortKey.TITLE, false), "A repeatedly requested key should adopt a view.");
+        assertFalse(planner.useSortedView(CapsuleSortKey.CATEGORY, false), "Keys should be counted separately.");
+        assertTrue(planner.useSortedView(CapsuleSortKey.CATEGORY, true), "An existing view should always be used.");
+    }
+}
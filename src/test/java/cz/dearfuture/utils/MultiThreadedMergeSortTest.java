@@ -0,0 +1,36 @@
+package cz.dearfuture.utils;
+
+import cz.dearfuture.models.Capsule;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultiThreadedMergeSortTest {
+
+    @Test
+    void testSortMatchesSequentialSortAndIsStable() {
+        Random random = new Random(7);
+        LocalDateTime base = LocalDateTime.of(2030, 1, 1, 0, 0);
+        List<Capsule> capsules = new ArrayList<>();
+        for (int id = 1; id <= 50_000; id++) {
+            capsules.add(new Capsule(id, "Title " + random.nextInt(500), "Message",
+                    base.plusMinutes(random.nextInt(10_000)), "Event", "#3498DB"));
+        }
+        Comparator<Capsule> byTitle = Comparator.comparing(Capsule::getTitle, String.CASE_INSENSITIVE_ORDER);
+        List<Capsule> expected = new ArrayList<>(capsules);
+        expected.sort(byTitle); // Stable, so equal titles keep their input order
+
+        for (int threshold : new int[]{1, 64, MultiThreadedMergeSort.DEFAULT_THRESHOLD, 100_000}) {
+            assertEquals(expected, MultiThreadedMergeSort.sort(capsules, byTitle, threshold),
+                    "Sort should be stable and ordered with threshold " + threshold);
+        }
+        assertEquals(1, capsules.get(0).getId(), "The input list should not be modified.");
+        assertTrue(MultiThreadedMergeSort.sort(List.of(), byTitle).isEmpty());
+    }
+}